@@ -0,0 +1,404 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.tukaani.xz.SeekableInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * A compression format whose files are made of independently decompressible
+ * blocks. Knows how to find the blocks of a file, and how to decompress a
+ * single block.
+ */
+abstract class BlockCodec {
+
+  static final int BZIP2 = 1;
+  static final int XZ = 2;
+
+  private static final byte[] XZ_MAGIC = {
+    (byte) 0xfd, '7', 'z', 'X', 'Z', 0
+  };
+
+  /**
+   * Decompresses blocks of one file. Not thread safe, each thread uses its
+   * own decoder.
+   */
+  interface Decoder extends Closeable {
+    /**
+     * Opens block i of the file, positioned <code>offset</code> uncompressed
+     * bytes into the block. The stream may run past the end of the block.
+     */
+    InputStream open(CompressedBlockIndex index, int i, long offset)
+        throws IOException;
+  }
+
+  abstract int getId();
+
+  /**
+   * Finds the blocks of a file. Uncompressed lengths the format does not
+   * record are left as -1.
+   */
+  abstract CompressedBlockIndex locateBlocks(FileSystem fs, Path path)
+      throws IOException;
+
+  abstract Decoder newDecoder(FileSystem fs, Path path) throws IOException;
+
+  /**
+   * The codec a file is compressed with, by its magic number, or null if it
+   * is not a supported block compressed format
+   */
+  static BlockCodec detect(FileSystem fs, Path path) throws IOException {
+    byte[] magic = new byte[XZ_MAGIC.length];
+    FSDataInputStream in = fs.open(path);
+    try {
+      int n = 0;
+      while (n < magic.length) {
+        int r = in.read(magic, n, magic.length - n);
+        if (r == -1)
+          return null;
+        n += r;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h'
+        && magic[3] >= '1' && magic[3] <= '9')
+      return forId(BZIP2);
+    if (Arrays.equals(magic, XZ_MAGIC))
+      return forId(XZ);
+    return null;
+  }
+
+  static BlockCodec forId(int id) throws IOException {
+    switch (id) {
+    case BZIP2:
+      return new BZip2();
+    case XZ:
+      return new XZ();
+    default:
+      throw new IOException("Unknown block codec " + id);
+    }
+  }
+
+  /**
+   * bzip2. Blocks start with a 48 bit magic number and are not byte aligned,
+   * so finding them takes a bit level scan of the whole file. A block is
+   * decompressed by copying it into a stream of its own, behind a stream
+   * header and in front of an end of stream marker. <br/>
+   * Parallel compressors like pbzip2 write many streams back to back, which
+   * is handled the same way.
+   */
+  static class BZip2 extends BlockCodec {
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MASK48 = 0xffffffffffffL;
+    /** bits after the block magic that are checked: crc, randomised, origPtr */
+    private static final int CHECKED_BITS = 32 + 1 + 24;
+
+    @Override
+    int getId() {
+      return BZIP2;
+    }
+
+    @Override
+    CompressedBlockIndex locateBlocks(FileSystem fs, Path path)
+        throws IOException {
+
+      List<long[]> blocks = new ArrayList<long[]>();
+      InputStream in = fs.open(path);
+      try {
+        byte[] buf = new byte[1024 * 1024];
+        long reg = 0;
+        long bit = 0;
+        long byteNo = 0;
+        long headerAt = 0;
+        int level = 0;
+        long candidate = -1;
+        long[] open = null;
+
+        int n;
+        while ((n = in.read(buf)) != -1) {
+          for (int j = 0; j < n; j++, byteNo++) {
+            int b = buf[j] & 0xff;
+            if (byteNo == headerAt + 3 && b >= '1' && b <= '9')
+              level = b - '0';
+
+            for (int k = 7; k >= 0; k--) {
+              reg = (reg << 1) | ((b >>> k) & 1);
+              bit++;
+
+              long low = reg & MASK48;
+              if (low == BLOCK_MAGIC) {
+                candidate = bit - 48;
+              } else if (low == EOS_MAGIC) {
+                if (open != null) {
+                  open[1] = bit - 48;
+                  open = null;
+                }
+                candidate = -1;
+                // the next stream starts at the byte after the combined crc
+                headerAt = (bit + 32 + 7) / 8;
+              }
+
+              if (candidate != -1 && bit == candidate + 48 + CHECKED_BITS) {
+                // random bit patterns can look like a block magic. A real
+                // block is not randomised and has origPtr inside the block.
+                long origPtr = reg & 0xffffff;
+                boolean randomised = ((reg >>> 24) & 1) != 0;
+                if (!randomised && level > 0 && origPtr < level * 100000L) {
+                  if (open != null)
+                    open[1] = candidate;
+                  open = new long[] { candidate, -1, level };
+                  blocks.add(open);
+                }
+                candidate = -1;
+              }
+            }
+          }
+        }
+        if (open != null)
+          throw new EOFException("Truncated bzip2 file " + path);
+      } finally {
+        in.close();
+      }
+
+      int n = blocks.size();
+      long[] starts = new long[n];
+      long[] ends = new long[n];
+      byte[] levels = new byte[n];
+      long[] lengths = new long[n];
+      for (int i = 0; i < n; i++) {
+        long[] block = blocks.get(i);
+        starts[i] = block[0];
+        ends[i] = block[1];
+        levels[i] = (byte) block[2];
+        lengths[i] = -1;
+      }
+      return new CompressedBlockIndex(BZIP2, starts, ends, levels, lengths);
+    }
+
+    @Override
+    Decoder newDecoder(FileSystem fs, Path path) throws IOException {
+      final FSDataInputStream in = fs.open(path);
+      return new Decoder() {
+        @Override
+        public InputStream open(CompressedBlockIndex index, int i, long offset)
+            throws IOException {
+          InputStream block = new ByteArrayInputStream(decode(in, index, i));
+          if (block.skip(offset) < offset)
+            throw new EOFException("Offset " + offset + " is past block " + i);
+          return block;
+        }
+
+        @Override
+        public void close() throws IOException {
+          in.close();
+        }
+      };
+    }
+
+    private byte[] decode(FSDataInputStream in, CompressedBlockIndex index,
+        int i) throws IOException {
+      long start = index.getStartBit(i);
+      long end = index.getEndBit(i);
+      long firstByte = start / 8;
+      byte[] raw = new byte[(int) ((end + 7) / 8 - firstByte)];
+      in.readFully(firstByte, raw);
+
+      BitWriter w = new BitWriter(raw.length + 16);
+      w.write('B', 8);
+      w.write('Z', 8);
+      w.write('h', 8);
+      w.write('0' + index.getLevel(i), 8);
+      int shift = (int) (start % 8);
+      long bits = end - start;
+      long blockCrc = 0;
+      for (long k = 0; k < bits; k++) {
+        long at = k + shift;
+        int bit = (raw[(int) (at >>> 3)] >>> (7 - (at & 7))) & 1;
+        w.write(bit, 1);
+        // the block crc follows the block magic
+        if (k >= 48 && k < 80)
+          blockCrc = (blockCrc << 1) | bit;
+      }
+      // with one block, the combined crc is the block crc
+      w.write(EOS_MAGIC, 48);
+      w.write(blockCrc, 32);
+
+      long expected = index.getUncompressedLength(i);
+      ByteArrayOutputStream out = new ByteArrayOutputStream(
+          expected > 0 ? (int) expected : 1024 * 1024);
+      BZip2CompressorInputStream bz = new BZip2CompressorInputStream(
+          new ByteArrayInputStream(w.toByteArray()));
+      try {
+        byte[] buf = new byte[64 * 1024];
+        int n;
+        while ((n = bz.read(buf)) != -1)
+          out.write(buf, 0, n);
+      } finally {
+        bz.close();
+      }
+      return out.toByteArray();
+    }
+
+    /** Appends bits, most significant first */
+    private static class BitWriter {
+      private byte[] buf;
+      private long bits = 0;
+
+      BitWriter(int size) {
+        buf = new byte[size];
+      }
+
+      void write(long value, int n) {
+        for (int k = n - 1; k >= 0; k--) {
+          int idx = (int) (bits >>> 3);
+          if (idx == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+          if (((value >>> k) & 1) != 0)
+            buf[idx] |= 0x80 >>> (bits & 7);
+          bits++;
+        }
+      }
+
+      byte[] toByteArray() {
+        return Arrays.copyOf(buf, (int) ((bits + 7) / 8));
+      }
+    }
+  }
+
+  /**
+   * xz. The block layout is read from the index at the end of the file.
+   * Files written by a single threaded xz have a single block, multi
+   * threaded xz (xz -T) writes many.
+   */
+  static class XZ extends BlockCodec {
+
+    @Override
+    int getId() {
+      return XZ;
+    }
+
+    @Override
+    CompressedBlockIndex locateBlocks(FileSystem fs, Path path)
+        throws IOException {
+      FSDataInputStream in = fs.open(path);
+      try {
+        SeekableXZInputStream xz = new SeekableXZInputStream(
+            new SeekableFSInputStream(in, fs.getFileStatus(path).getLen()));
+        int n = xz.getBlockCount();
+        long[] starts = new long[n];
+        long[] ends = new long[n];
+        long[] lengths = new long[n];
+        for (int i = 0; i < n; i++) {
+          starts[i] = xz.getBlockCompPos(i) * 8;
+          ends[i] = (xz.getBlockCompPos(i) + xz.getBlockCompSize(i)) * 8;
+          lengths[i] = xz.getBlockSize(i);
+        }
+        return new CompressedBlockIndex(XZ, starts, ends, new byte[n], lengths);
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    Decoder newDecoder(FileSystem fs, Path path) throws IOException {
+      final FSDataInputStream in = fs.open(path);
+      final SeekableXZInputStream xz;
+      try {
+        xz = new SeekableXZInputStream(
+            new SeekableFSInputStream(in, fs.getFileStatus(path).getLen()));
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
+      return new Decoder() {
+        @Override
+        public InputStream open(CompressedBlockIndex index, int i, long offset)
+            throws IOException {
+          xz.seek(index.getUncompressedOffset(i) + offset);
+          return xz;
+        }
+
+        @Override
+        public void close() throws IOException {
+          xz.close();
+        }
+      };
+    }
+  }
+
+  /**
+   * Lets the xz library read from a Hadoop stream
+   */
+  private static class SeekableFSInputStream extends SeekableInputStream {
+    private final FSDataInputStream in;
+    private final long length;
+
+    SeekableFSInputStream(FSDataInputStream in, long length) {
+      this.in = in;
+      this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return in.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return in.read(b, off, len);
+    }
+
+    @Override
+    public long length() {
+      return length;
+    }
+
+    @Override
+    public long position() throws IOException {
+      return in.getPos();
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+      in.seek(pos);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
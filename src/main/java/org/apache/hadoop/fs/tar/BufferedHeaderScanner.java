@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Walks the headers of an uncompressed tar through a large buffer, instead
+ * of seeking from one header to the next. <br/>
+ * The tar is read sequentially in buffer sized chunks and the headers are
+ * parsed from memory, skipping the data of small files inside the buffer.
+ * A seek may drop the connection to a datanode, so the stream is only
+ * seeked over files larger than the buffer.
+ */
+class BufferedHeaderScanner {
+
+  private final FSDataInputStream in;
+  private final byte[] buf;
+
+  BufferedHeaderScanner(FSDataInputStream in, int bufferSize) {
+    this.in = in;
+    this.buf = new byte[Math.max(512, bufferSize)];
+  }
+
+  /**
+   * Adds the files of the tar to builder, reading from the stream
+   * positioned at offset start of the tar
+   *
+   * @return the offset after the last header and its data, as
+   *         {@link TarIndex} records it
+   */
+  long scan(TarIndex.Builder builder, long start) throws IOException {
+    byte[] header = new byte[512];
+    // buf holds the bytes of the tar in [bufStart, bufStart + bufLen)
+    long bufStart = start;
+    int bufLen = 0;
+    long pos = start;
+    long end = start;
+
+    while (true) {
+      long avail = bufStart + bufLen - pos;
+      if (avail < 512) {
+        if (avail >= 0) {
+          // keep what there is of the header
+          System.arraycopy(buf, (int) (pos - bufStart), buf, 0, (int) avail);
+          bufStart = pos;
+          bufLen = (int) avail;
+        } else if (-avail > buf.length) {
+          // a file larger than the buffer
+          in.seek(pos);
+          bufStart = pos;
+          bufLen = 0;
+        } else {
+          // read through the data of a small file
+          bufStart += bufLen;
+          bufLen = 0;
+        }
+
+        boolean eof = false;
+        while (bufLen < buf.length) {
+          int n = in.read(buf, bufLen, buf.length - bufLen);
+          if (n == -1) {
+            eof = true;
+            break;
+          }
+          bufLen += n;
+        }
+        avail = bufStart + bufLen - pos;
+        if (avail < 512) {
+          if (!eof)
+            continue;
+          if (avail <= 0)
+            break;
+          throw new IOException("Could not read the full header.");
+        }
+      }
+
+      System.arraycopy(buf, (int) (pos - bufStart), header, 0, 512);
+      long next = TarIndex.addHeader(header, pos, builder);
+      if (!TarIndex.isZeroBlock(header))
+        end = next;
+      pos = next;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.fs.BufferedFSInputStream;
+import org.apache.hadoop.fs.ByteBufferReadable;
+import org.apache.hadoop.fs.HasEnhancedByteBufferAccess;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.io.ByteBufferPool;
+
+/**
+ * {@link BufferedFSInputStream} hides the {@link ByteBuffer} read interfaces
+ * of the stream it wraps. This version drains whatever is already buffered
+ * and then hands {@link ByteBuffer} reads to the {@link SeekableTarInputStream}
+ * underneath.
+ */
+class BufferedTarInputStream extends BufferedFSInputStream
+    implements ByteBufferReadable, HasEnhancedByteBufferAccess {
+
+  private final SeekableTarInputStream tarIn;
+
+  /** Buffers that were filled from our own buffer, not by tarIn */
+  private final Map<ByteBuffer, ByteBufferPool> ownBuffers =
+      new IdentityHashMap<ByteBuffer, ByteBufferPool>();
+
+  BufferedTarInputStream(SeekableTarInputStream in, int size) {
+    super(in, size);
+    this.tarIn = in;
+  }
+
+  private int buffered() {
+    return count - pos;
+  }
+
+  @Override
+  public synchronized int read(ByteBuffer dst) throws IOException {
+    int n = Math.min(buffered(), dst.remaining());
+    if (n > 0) {
+      dst.put(buf, pos, n);
+      pos += n;
+      return n;
+    }
+
+    // nothing buffered. bypass the buffer, and with it any mark.
+    markpos = -1;
+    return tarIn.read(dst);
+  }
+
+  @Override
+  public synchronized ByteBuffer read(ByteBufferPool factory, int maxLength,
+      EnumSet<ReadOption> opts)
+      throws IOException, UnsupportedOperationException {
+    int n = Math.min(buffered(), maxLength);
+    if (n > 0) {
+      ByteBuffer buffer = factory.getBuffer(false, n);
+      buffer.clear();
+      buffer.limit(n);
+      buffer.put(buf, pos, n);
+      buffer.flip();
+      pos += n;
+      ownBuffers.put(buffer, factory);
+      return buffer;
+    }
+
+    markpos = -1;
+    return tarIn.read(factory, maxLength, opts);
+  }
+
+  @Override
+  public synchronized void releaseBuffer(ByteBuffer buffer) {
+    ByteBufferPool factory = ownBuffers.remove(buffer);
+    if (factory != null)
+      factory.putBuffer(buffer);
+    else
+      tarIn.releaseBuffer(buffer);
+  }
+}
@@ -0,0 +1,540 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Decompresses a (possibly multi-member) gzip stream and records a
+ * {@link GzipCheckpointIndex} while doing so. <br/>
+ * {@link java.util.zip.Inflater} does not tell where deflate blocks start,
+ * so this is a small inflater of its own. It is only used for the one
+ * sequential pass that builds the index; {@link SeekableGzipInputStream}
+ * reads with the JDK inflater, resuming from the recorded checkpoints.
+ */
+class CheckpointedGzipInputStream extends InputStream {
+
+  private static final int WINDOW = GzipCheckpointIndex.WINDOW_SIZE;
+  private static final int RING = 2 * WINDOW;
+  private static final int RING_MASK = RING - 1;
+  /** Unread output is kept below this, so a match never overwrites it */
+  private static final int MAX_PENDING = RING - 512;
+
+  private static final int HEADER = 0;
+  private static final int BLOCK = 1;
+  private static final int STORED = 2;
+  private static final int CODES = 3;
+  private static final int TRAILER = 4;
+  private static final int DONE = 5;
+
+  private static final int[] LENGTH_BASE = {
+    3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+    35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258 };
+  private static final int[] LENGTH_EXTRA = {
+    0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+    3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0 };
+  private static final int[] DIST_BASE = {
+    1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+    257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145,
+    8193, 12289, 16385, 24577 };
+  private static final int[] DIST_EXTRA = {
+    0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+    7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13 };
+  private static final int[] CODE_LENGTH_ORDER = {
+    16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15 };
+
+  private static final Huffman FIXED_LIT;
+  private static final Huffman FIXED_DIST;
+
+  static {
+    byte[] lens = new byte[288];
+    for (int i = 0; i < 288; i++)
+      lens[i] = (byte) (i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8);
+    FIXED_LIT = new Huffman();
+    FIXED_DIST = new Huffman();
+    try {
+      FIXED_LIT.build(lens, 288);
+      byte[] dlens = new byte[32];
+      for (int i = 0; i < 32; i++)
+        dlens[i] = 5;
+      FIXED_DIST.build(dlens, 32);
+    } catch (IOException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  private final InputStream in;
+  private final GzipCheckpointIndex.Builder checkpoints;
+
+  /* input */
+  private final byte[] inBuf = new byte[64 * 1024];
+  private int inPos = 0;
+  private int inLen = 0;
+  /** compressed offset of inBuf[0] */
+  private long inBase = 0;
+  private long bitBuf = 0;
+  private int bitCount = 0;
+
+  /* output */
+  private final byte[] ring = new byte[RING];
+  private long written = 0;
+  private long consumed = 0;
+  private long crcDone = 0;
+  private long memberStart = 0;
+  private long lastCheckpoint = 0;
+  private final CRC32 crc = new CRC32();
+
+  private int state = HEADER;
+  private boolean lastBlock;
+  private int storedLeft;
+  private Huffman lit;
+  private Huffman dist;
+  private final Huffman dynLit = new Huffman();
+  private final Huffman dynDist = new Huffman();
+  private final Huffman codeLengths = new Huffman();
+  private final byte[] lengths = new byte[288 + 32];
+
+  CheckpointedGzipInputStream(InputStream in, long spacing) {
+    this.in = in;
+    this.checkpoints = new GzipCheckpointIndex.Builder(spacing);
+  }
+
+  /**
+   * The checkpoints seen so far. Complete once the stream is read to EOF.
+   */
+  GzipCheckpointIndex getCheckpointIndex() {
+    return checkpoints.build();
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+
+    while (written == consumed) {
+      if (state == DONE)
+        return -1;
+      inflate();
+    }
+
+    int n = (int) Math.min(len, written - consumed);
+    int p = (int) (consumed & RING_MASK);
+    int first = Math.min(n, RING - p);
+    System.arraycopy(ring, p, b, off, first);
+    System.arraycopy(ring, 0, b, off + first, n - first);
+    consumed += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /*
+   * Bit input. Bits are taken least significant first, as deflate wants.
+   */
+
+  private boolean refill() throws IOException {
+    if (inPos < inLen)
+      return true;
+    inBase += inLen;
+    inPos = 0;
+    inLen = 0;
+    int n;
+    do {
+      n = in.read(inBuf, 0, inBuf.length);
+    } while (n == 0);
+    if (n < 0)
+      return false;
+    inLen = n;
+    return true;
+  }
+
+  /** Tops up the bit buffer to n bits, or as many as are left */
+  private void fillBits(int n) throws IOException {
+    while (bitCount < n) {
+      if (!refill())
+        return;
+      bitBuf |= (long) (inBuf[inPos++] & 0xff) << bitCount;
+      bitCount += 8;
+    }
+  }
+
+  private int getBits(int n) throws IOException {
+    if (n == 0)
+      return 0;
+    fillBits(n);
+    if (bitCount < n)
+      throw new EOFException("Unexpected end of gzip stream");
+    int v = (int) (bitBuf & ((1L << n) - 1));
+    bitBuf >>>= n;
+    bitCount -= n;
+    return v;
+  }
+
+  private void alignToByte() {
+    int drop = bitCount & 7;
+    bitBuf >>>= drop;
+    bitCount -= drop;
+  }
+
+  /** Position of the next unread bit in the compressed stream */
+  private long bitPosition() {
+    return (inBase + inPos) * 8 - bitCount;
+  }
+
+  /*
+   * Output
+   */
+
+  private void put(int b) {
+    ring[(int) (written & RING_MASK)] = (byte) b;
+    written++;
+  }
+
+  private void updateCrc() {
+    while (crcDone < written) {
+      int p = (int) (crcDone & RING_MASK);
+      int n = (int) Math.min(written - crcDone, RING - p);
+      crc.update(ring, p, n);
+      crcDone += n;
+    }
+  }
+
+  private byte[] window() {
+    int n = (int) Math.min(WINDOW, written - memberStart);
+    byte[] w = new byte[n];
+    long from = written - n;
+    for (int i = 0; i < n; i++)
+      w[i] = ring[(int) ((from + i) & RING_MASK)];
+    return w;
+  }
+
+  /**
+   * Runs the state machine until there is some output, or the end of the
+   * stream.
+   */
+  private void inflate() throws IOException {
+    switch (state) {
+    case HEADER:
+      readHeader();
+      break;
+    case BLOCK:
+      readBlockHeader();
+      break;
+    case STORED:
+      copyStored();
+      break;
+    case CODES:
+      decodeCodes();
+      break;
+    case TRAILER:
+      readTrailer();
+      break;
+    default:
+      break;
+    }
+    updateCrc();
+  }
+
+  private void readHeader() throws IOException {
+    if (getBits(8) != 0x1f || getBits(8) != 0x8b)
+      throw new IOException("Not in gzip format");
+    if (getBits(8) != 8)
+      throw new IOException("Unsupported gzip compression method");
+    int flags = getBits(8);
+    getBits(16); // mtime
+    getBits(16);
+    getBits(8); // xfl
+    getBits(8); // os
+
+    if ((flags & 0x04) != 0) { // FEXTRA
+      int xlen = getBits(16);
+      for (int i = 0; i < xlen; i++)
+        getBits(8);
+    }
+    if ((flags & 0x08) != 0) // FNAME
+      while (getBits(8) != 0)
+        ;
+    if ((flags & 0x10) != 0) // FCOMMENT
+      while (getBits(8) != 0)
+        ;
+    if ((flags & 0x02) != 0) // FHCRC
+      getBits(16);
+
+    memberStart = written;
+    crc.reset();
+    crcDone = written;
+    // deflate data of every member is a restart point that needs no window
+    checkpoints.add(bitPosition() / 8, 0, written, true, null);
+    lastCheckpoint = written;
+    state = BLOCK;
+  }
+
+  private void readBlockHeader() throws IOException {
+    if (written - lastCheckpoint >= checkpoints.getSpacing()) {
+      long pos = bitPosition();
+      checkpoints.add(pos / 8, (int) (pos % 8), written, false, window());
+      lastCheckpoint = written;
+    }
+
+    lastBlock = getBits(1) == 1;
+    int type = getBits(2);
+    switch (type) {
+    case 0:
+      alignToByte();
+      int len = getBits(16);
+      int nlen = getBits(16);
+      if (len != (~nlen & 0xffff))
+        throw new IOException("Corrupt gzip stream: bad stored block");
+      storedLeft = len;
+      state = STORED;
+      break;
+    case 1:
+      lit = FIXED_LIT;
+      dist = FIXED_DIST;
+      state = CODES;
+      break;
+    case 2:
+      readDynamicTables();
+      lit = dynLit;
+      dist = dynDist;
+      state = CODES;
+      break;
+    default:
+      throw new IOException("Corrupt gzip stream: bad block type");
+    }
+  }
+
+  private void endOfBlock() {
+    state = lastBlock ? TRAILER : BLOCK;
+  }
+
+  private void copyStored() throws IOException {
+    while (storedLeft > 0 && written - consumed < MAX_PENDING) {
+      if (bitCount > 0) {
+        put(getBits(8));
+        storedLeft--;
+        continue;
+      }
+      if (!refill())
+        throw new EOFException("Unexpected end of gzip stream");
+      int n = Math.min(storedLeft, inLen - inPos);
+      n = (int) Math.min(n, MAX_PENDING - (written - consumed));
+      int p = (int) (written & RING_MASK);
+      int first = Math.min(n, RING - p);
+      System.arraycopy(inBuf, inPos, ring, p, first);
+      System.arraycopy(inBuf, inPos + first, ring, 0, n - first);
+      inPos += n;
+      written += n;
+      storedLeft -= n;
+    }
+    if (storedLeft == 0)
+      endOfBlock();
+  }
+
+  private void readDynamicTables() throws IOException {
+    int hlit = getBits(5) + 257;
+    int hdist = getBits(5) + 1;
+    int hclen = getBits(4) + 4;
+
+    byte[] clens = new byte[19];
+    for (int i = 0; i < hclen; i++)
+      clens[CODE_LENGTH_ORDER[i]] = (byte) getBits(3);
+    codeLengths.build(clens, 19);
+
+    int n = 0;
+    while (n < hlit + hdist) {
+      int sym = decode(codeLengths);
+      if (sym < 16) {
+        lengths[n++] = (byte) sym;
+        continue;
+      }
+      int repeat;
+      byte value = 0;
+      if (sym == 16) {
+        if (n == 0)
+          throw new IOException("Corrupt gzip stream: bad code lengths");
+        value = lengths[n - 1];
+        repeat = 3 + getBits(2);
+      } else if (sym == 17) {
+        repeat = 3 + getBits(3);
+      } else {
+        repeat = 11 + getBits(7);
+      }
+      if (n + repeat > hlit + hdist)
+        throw new IOException("Corrupt gzip stream: bad code lengths");
+      while (repeat-- > 0)
+        lengths[n++] = value;
+    }
+
+    byte[] litLens = new byte[hlit];
+    System.arraycopy(lengths, 0, litLens, 0, hlit);
+    byte[] distLens = new byte[hdist];
+    System.arraycopy(lengths, hlit, distLens, 0, hdist);
+    dynLit.build(litLens, hlit);
+    dynDist.build(distLens, hdist);
+  }
+
+  private void decodeCodes() throws IOException {
+    while (written - consumed < MAX_PENDING) {
+      int sym = decode(lit);
+      if (sym < 256) {
+        put(sym);
+      } else if (sym == 256) {
+        endOfBlock();
+        return;
+      } else {
+        sym -= 257;
+        if (sym >= 29)
+          throw new IOException("Corrupt gzip stream: bad length code");
+        int len = LENGTH_BASE[sym] + getBits(LENGTH_EXTRA[sym]);
+        int dsym = decode(dist);
+        if (dsym >= 30)
+          throw new IOException("Corrupt gzip stream: bad distance code");
+        int d = DIST_BASE[dsym] + getBits(DIST_EXTRA[dsym]);
+        if (d > written - memberStart)
+          throw new IOException("Corrupt gzip stream: distance too far back");
+        long from = written - d;
+        for (int i = 0; i < len; i++)
+          put(ring[(int) ((from + i) & RING_MASK)]);
+      }
+    }
+  }
+
+  private void readTrailer() throws IOException {
+    alignToByte();
+    updateCrc();
+    long expectedCrc = getBits(16) | ((long) getBits(16) << 16);
+    long expectedSize = getBits(16) | ((long) getBits(16) << 16);
+    if (expectedCrc != crc.getValue())
+      throw new IOException("Corrupt gzip stream: CRC mismatch");
+    if (expectedSize != ((written - memberStart) & 0xffffffffL))
+      throw new IOException("Corrupt gzip stream: size mismatch");
+
+    // another member follows only if it starts with the gzip magic.
+    // anything else, e.g. zero padding, ends the stream
+    fillBits(16);
+    if (bitCount >= 16 && (bitBuf & 0xffff) == 0x8b1f)
+      state = HEADER;
+    else
+      state = DONE;
+  }
+
+  private int decode(Huffman h) throws IOException {
+    fillBits(16);
+    int s;
+    int v;
+    int f = h.fast[(int) (bitBuf & Huffman.FAST_MASK)];
+    if (f != 0) {
+      s = f >> Huffman.FAST_BITS;
+      v = f & Huffman.FAST_MASK;
+    } else {
+      int k = Integer.reverse((int) (bitBuf & 0xffff)) >>> 16;
+      for (s = Huffman.FAST_BITS + 1; s < 16; s++)
+        if (k < h.maxCode[s])
+          break;
+      if (s >= 16)
+        throw new IOException("Corrupt gzip stream: bad huffman code");
+      int b = (k >> (16 - s)) - h.firstCode[s] + h.firstSymbol[s];
+      if (b < 0 || b >= h.values.length || h.sizes[b] != s)
+        throw new IOException("Corrupt gzip stream: bad huffman code");
+      v = h.values[b];
+    }
+    if (s > bitCount)
+      throw new EOFException("Unexpected end of gzip stream");
+    bitBuf >>>= s;
+    bitCount -= s;
+    return v;
+  }
+
+  /**
+   * Canonical huffman decoding table: codes of up to FAST_BITS bits are
+   * looked up directly, longer ones are found by comparing against the
+   * largest code of each length.
+   */
+  private static class Huffman {
+
+    static final int FAST_BITS = 9;
+    static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+    final short[] fast = new short[1 << FAST_BITS];
+    final int[] firstCode = new int[17];
+    final int[] maxCode = new int[18];
+    final int[] firstSymbol = new int[17];
+    final byte[] sizes = new byte[288];
+    final short[] values = new short[288];
+
+    void build(byte[] lens, int num) throws IOException {
+      int[] count = new int[17];
+      int[] nextCode = new int[16];
+      Arrays.fill(fast, (short) 0);
+
+      for (int i = 0; i < num; i++)
+        count[lens[i]]++;
+      count[0] = 0;
+      for (int i = 1; i < 16; i++)
+        if (count[i] > (1 << i))
+          throw new IOException("Corrupt gzip stream: bad code lengths");
+
+      int code = 0;
+      int k = 0;
+      for (int i = 1; i < 16; i++) {
+        nextCode[i] = code;
+        firstCode[i] = code;
+        firstSymbol[i] = k;
+        code += count[i];
+        if (count[i] != 0 && code - 1 >= (1 << i))
+          throw new IOException("Corrupt gzip stream: bad code lengths");
+        maxCode[i] = code << (16 - i);
+        code <<= 1;
+        k += count[i];
+      }
+      maxCode[16] = 0x10000;
+
+      for (int i = 0; i < num; i++) {
+        int s = lens[i];
+        if (s == 0)
+          continue;
+        int c = nextCode[s] - firstCode[s] + firstSymbol[s];
+        sizes[c] = (byte) s;
+        values[c] = (short) i;
+        if (s <= FAST_BITS) {
+          int j = Integer.reverse(nextCode[s]) >>> (32 - s);
+          while (j < (1 << FAST_BITS)) {
+            fast[j] = (short) ((s << FAST_BITS) | i);
+            j += 1 << s;
+          }
+        }
+        nextCode[s]++;
+      }
+    }
+  }
+}
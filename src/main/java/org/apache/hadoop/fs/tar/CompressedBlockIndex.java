@@ -0,0 +1,314 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.AccessControlException;
+
+/**
+ * Layout of a compressed file made of independently decompressible blocks,
+ * such as bzip2 blocks or xz blocks. For every block it records where the
+ * block lies in the compressed file, in bits as bzip2 blocks are not byte
+ * aligned, and how many bytes it decompresses to. <br/>
+ * For bzip2 the uncompressed lengths are only known once the blocks have
+ * been decompressed, so they are filled in as the archive is indexed.
+ */
+class CompressedBlockIndex {
+
+  public static final Log LOG = LogFactory.getLog(CompressedBlockIndex.class);
+
+  static final String EXT = ".blkindex";
+
+  static final byte[] MAGIC = { (byte) 0x89, 'B', 'L', 'X' };
+  static final int VERSION = 1;
+
+  private final int codec;
+  private final int count;
+  private final long[] startBits;
+  private final long[] endBits;
+  private final byte[] levels;
+  private final long[] lengths;
+  /** count + 1 entries, valid up to the first block of unknown length */
+  private final long[] offsets;
+  private int known;
+
+  /**
+   * @param codec id of the {@link BlockCodec} the blocks are compressed with
+   * @param lengths uncompressed block lengths, -1 where not yet known
+   */
+  CompressedBlockIndex(int codec, long[] startBits, long[] endBits,
+      byte[] levels, long[] lengths) {
+    this.codec = codec;
+    this.count = startBits.length;
+    this.startBits = startBits;
+    this.endBits = endBits;
+    this.levels = levels;
+    this.lengths = lengths;
+    this.offsets = new long[count + 1];
+    this.known = 0;
+    advanceKnown();
+  }
+
+  private void advanceKnown() {
+    while (known < count && lengths[known] >= 0) {
+      offsets[known + 1] = offsets[known] + lengths[known];
+      known++;
+    }
+  }
+
+  int getCodec() {
+    return codec;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Approximate memory taken by the block layout, in bytes
+   */
+  long getMemorySize() {
+    return (8 + 8 + 1 + 8 + 8) * (long) count + 8;
+  }
+
+  long getStartBit(int i) {
+    return startBits[i];
+  }
+
+  long getEndBit(int i) {
+    return endBits[i];
+  }
+
+  int getLevel(int i) {
+    return levels[i];
+  }
+
+  /**
+   * Uncompressed length of block i, or -1 if it is not known yet
+   */
+  long getUncompressedLength(int i) {
+    return lengths[i];
+  }
+
+  /**
+   * Uncompressed offset of block i. Only valid once the lengths of all the
+   * blocks before it are known.
+   */
+  long getUncompressedOffset(int i) {
+    return offsets[i];
+  }
+
+  synchronized void setUncompressedLength(int i, long length) {
+    lengths[i] = length;
+    advanceKnown();
+  }
+
+  boolean isComplete() {
+    return known == count;
+  }
+
+  /**
+   * Total uncompressed length. Only valid for a complete index.
+   */
+  long getUncompressedLength() {
+    return offsets[count];
+  }
+
+  /**
+   * The block that holds an uncompressed offset, or -1 if the offset is past
+   * the end. Only valid for a complete index.
+   */
+  int findBlock(long uncompressedOffset) {
+    if (uncompressedOffset >= offsets[count])
+      return -1;
+    int i = Arrays.binarySearch(offsets, 0, count, uncompressedOffset);
+    if (i >= 0) {
+      // skip empty blocks
+      while (lengths[i] == 0)
+        i++;
+      return i;
+    }
+    return -i - 2;
+  }
+
+  /**
+   * Compressed offset of the block holding an uncompressed offset. Only
+   * valid for a complete index.
+   */
+  long getCompressedStart(long uncompressedOffset) {
+    int i = findBlock(uncompressedOffset);
+    return i == -1 ? Long.MAX_VALUE : startBits[i] / 8;
+  }
+
+  /**
+   * Compressed offset up to which the file has to be read to decompress the
+   * bytes before an uncompressed offset. Only valid for a complete index.
+   */
+  long getCompressedEnd(long uncompressedOffset) {
+    if (uncompressedOffset <= 0)
+      return 0;
+    int i = findBlock(uncompressedOffset - 1);
+    if (i == -1)
+      i = count - 1;
+    return (endBits[i] + 7) / 8;
+  }
+
+  /**
+   * Uncompressed offset of the first block that starts at or after a
+   * compressed offset, Long.MAX_VALUE if there is none
+   */
+  long getUncompressedStart(long compressedOffset) {
+    long bit = compressedOffset * 8;
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (startBits[mid] < bit)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo < count ? offsets[lo] : Long.MAX_VALUE;
+  }
+
+  /**
+   * Writes the index. Numbers are big endian.
+   *
+   * <pre>
+   * magic    4 bytes, {@link #MAGIC}
+   * version  int
+   * codec    int
+   * count    int
+   * blocks   for each: long start bit, long end bit, byte level,
+   *          long uncompressed length
+   * </pre>
+   */
+  boolean write(FileSystem fs, Path path, boolean overwrite)
+      throws IOException {
+
+    if (!overwrite && fs.exists(path)) {
+      LOG.error("Block index file already exists. Skipping writing it.");
+      return false;
+    }
+
+    // written under another name and renamed, so readers never see it
+    // half written
+    Path tmp = TarIndex.getTempPath(path);
+    OutputStream os = null;
+    DataOutputStream out = null;
+    boolean written = false;
+    try {
+      fs.mkdirs(path.getParent());
+      os = fs.create(tmp, true);
+      out = new DataOutputStream(new BufferedOutputStream(os));
+
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(codec);
+      out.writeInt(count);
+      for (int i = 0; i < count; i++) {
+        out.writeLong(startBits[i]);
+        out.writeLong(endBits[i]);
+        out.writeByte(levels[i]);
+        out.writeLong(lengths[i]);
+      }
+      out.close();
+      out = null;
+      os = null;
+      written = true;
+    } catch (AccessControlException e) {
+      return false;
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+        else if (os != null)
+          os.close();
+      } finally {
+        if (!written)
+          TarIndex.deleteQuietly(fs, tmp);
+      }
+    }
+    return TarIndex.commit(fs, tmp, path, overwrite);
+  }
+
+  /**
+   * @return null if there is no usable index at path
+   */
+  static CompressedBlockIndex read(FileSystem fs, Path path)
+      throws IOException {
+
+    if (path == null || !fs.exists(path))
+      return null;
+
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(fs.open(path)));
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        LOG.error("Invalid block index file: " + path);
+        return null;
+      }
+      int version = in.readInt();
+      if (version > VERSION) {
+        LOG.error("Block index file " + path + " has version " + version
+            + ", only versions up to " + VERSION + " are supported");
+        return null;
+      }
+
+      int codec = in.readInt();
+      int count = in.readInt();
+      long[] startBits = new long[count];
+      long[] endBits = new long[count];
+      byte[] levels = new byte[count];
+      long[] lengths = new long[count];
+      for (int i = 0; i < count; i++) {
+        startBits[i] = in.readLong();
+        endBits[i] = in.readLong();
+        levels[i] = in.readByte();
+        lengths[i] = in.readLong();
+      }
+      CompressedBlockIndex index = new CompressedBlockIndex(
+          codec, startBits, endBits, levels, lengths);
+      if (!index.isComplete()) {
+        LOG.error("Incomplete block index file: " + path);
+        return null;
+      }
+      return index;
+    } catch (AccessControlException e) {
+      LOG.error("Can not open block index file for reading " + path + " "
+          + e.getMessage());
+      return null;
+    } finally {
+      if (in != null)
+        in.close();
+    }
+  }
+}
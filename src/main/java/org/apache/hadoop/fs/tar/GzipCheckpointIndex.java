@@ -0,0 +1,421 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.AccessControlException;
+
+/**
+ * Random access index into a gzip file. A checkpoint is a place in the
+ * compressed stream where inflation can be resumed: the start of the deflate
+ * data of a gzip member, or the start of a deflate block together with the
+ * 32 KB of uncompressed data before it. Block checkpoints are taken every
+ * <code>spacing</code> uncompressed bytes. <br/>
+ * The windows are kept deflated. Once the index is written to a file, they
+ * are read from the file only when a checkpoint is used.
+ */
+class GzipCheckpointIndex {
+
+  public static final Log LOG = LogFactory.getLog(GzipCheckpointIndex.class);
+
+  static final String EXT = ".gzindex";
+  static final int WINDOW_SIZE = 32 * 1024;
+
+  static final byte[] MAGIC = { (byte) 0x89, 'G', 'Z', 'X' };
+  static final int VERSION = 1;
+
+  /** size of one checkpoint in the table of the index file */
+  private static final int ENTRY_SIZE = 8 + 1 + 1 + 8 + 4 + 4 + 8;
+  private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+  private final long spacing;
+  private final int count;
+  private final long[] compressedOffsets;
+  private final byte[] bits;
+  private final boolean[] memberStarts;
+  private final long[] uncompressedOffsets;
+  private final int[] windowLens;
+  /** deflated windows, null once they live in a file */
+  private byte[][] windows;
+  private final int[] windowZLens;
+  private long[] windowPositions;
+
+  private FileSystem fs;
+  private Path file;
+
+  private GzipCheckpointIndex(long spacing, int count) {
+    this.spacing = spacing;
+    this.count = count;
+    this.compressedOffsets = new long[count];
+    this.bits = new byte[count];
+    this.memberStarts = new boolean[count];
+    this.uncompressedOffsets = new long[count];
+    this.windowLens = new int[count];
+    this.windowZLens = new int[count];
+  }
+
+  /**
+   * Collects checkpoints as they are found
+   */
+  static class Builder {
+
+    private final long spacing;
+    private final List<long[]> points = new ArrayList<long[]>();
+    private final List<byte[]> windows = new ArrayList<byte[]>();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] zbuf = new byte[WINDOW_SIZE + 1024];
+
+    Builder(long spacing) {
+      this.spacing = spacing;
+    }
+
+    long getSpacing() {
+      return spacing;
+    }
+
+    void add(long compressedOffset, int bitOffset, long uncompressedOffset,
+        boolean memberStart, byte[] window) {
+      byte[] z = null;
+      int len = 0;
+      if (window != null && window.length > 0) {
+        len = window.length;
+        deflater.reset();
+        deflater.setInput(window);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished())
+          n += deflater.deflate(zbuf, n, zbuf.length - n);
+        z = Arrays.copyOf(zbuf, n);
+      }
+      points.add(new long[] { compressedOffset, bitOffset,
+        uncompressedOffset, memberStart ? 1 : 0, len });
+      windows.add(z);
+    }
+
+    GzipCheckpointIndex build() {
+      GzipCheckpointIndex index =
+          new GzipCheckpointIndex(spacing, points.size());
+      index.windows = new byte[index.count][];
+      for (int i = 0; i < index.count; i++) {
+        long[] p = points.get(i);
+        index.compressedOffsets[i] = p[0];
+        index.bits[i] = (byte) p[1];
+        index.uncompressedOffsets[i] = p[2];
+        index.memberStarts[i] = p[3] == 1;
+        index.windowLens[i] = (int) p[4];
+        index.windows[i] = windows.get(i);
+        index.windowZLens[i] = windows.get(i) == null
+            ? 0 : windows.get(i).length;
+      }
+      return index;
+    }
+  }
+
+  long getSpacing() {
+    return spacing;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  /**
+   * Approximate memory taken by the checkpoints and the windows kept in
+   * memory, in bytes
+   */
+  long getMemorySize() {
+    long size = (long) count * ENTRY_SIZE;
+    if (windows != null) {
+      for (byte[] w : windows)
+        size += w == null ? 0 : w.length;
+    }
+    return size;
+  }
+
+  long getCompressedOffset(int i) {
+    return compressedOffsets[i];
+  }
+
+  int getBitOffset(int i) {
+    return bits[i];
+  }
+
+  long getUncompressedOffset(int i) {
+    return uncompressedOffsets[i];
+  }
+
+  boolean isMemberStart(int i) {
+    return memberStarts[i];
+  }
+
+  /**
+   * The last checkpoint at or before an uncompressed offset
+   */
+  int floor(long uncompressedOffset) {
+    int lo = 0;
+    int hi = count - 1;
+    int found = 0;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      if (uncompressedOffsets[mid] <= uncompressedOffset) {
+        found = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Compressed offset from which the uncompressed offset can be read
+   */
+  long getCompressedStart(long uncompressedOffset) {
+    return compressedOffsets[floor(uncompressedOffset)];
+  }
+
+  /**
+   * Compressed offset up to which the file has to be read to inflate the
+   * bytes before an uncompressed offset. Long.MAX_VALUE for the end of file.
+   */
+  long getCompressedEnd(long uncompressedOffset) {
+    int i = floor(uncompressedOffset);
+    if (uncompressedOffsets[i] < uncompressedOffset)
+      i++;
+    // a checkpoint may start inside its first byte
+    return i < count ? compressedOffsets[i] + 1 : Long.MAX_VALUE;
+  }
+
+  /**
+   * The first uncompressed offset inflation can resume from at or after a
+   * compressed offset. Long.MAX_VALUE if there is none.
+   */
+  long getUncompressedStart(long compressedOffset) {
+    int lo = 0;
+    int hi = count;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (compressedOffsets[mid] < compressedOffset)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo < count ? uncompressedOffsets[lo] : Long.MAX_VALUE;
+  }
+
+  /**
+   * The next checkpoint after i that starts a gzip member, or -1
+   */
+  int nextMember(int i) {
+    for (int j = i + 1; j < count; j++)
+      if (memberStarts[j])
+        return j;
+    return -1;
+  }
+
+  /**
+   * The uncompressed data before checkpoint i, to be used as the inflater
+   * dictionary. Empty for member starts.
+   */
+  byte[] getWindow(int i) throws IOException {
+    byte[] window = new byte[windowLens[i]];
+    if (window.length == 0)
+      return window;
+
+    byte[] z = getDeflatedWindow(i);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(z);
+      int n = 0;
+      while (n < window.length && !inflater.finished())
+        n += inflater.inflate(window, n, window.length - n);
+      if (n != window.length)
+        throw new IOException("Corrupt gzip index " + file);
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt gzip index " + file, e);
+    } finally {
+      inflater.end();
+    }
+    return window;
+  }
+
+  /**
+   * Writes the index. Numbers are big endian.
+   *
+   * <pre>
+   * magic        4 bytes, {@link #MAGIC}
+   * version      int
+   * spacing      long
+   * count        int
+   * checkpoints  for each: long compressed offset, byte bit offset,
+   *              byte 1 if a member starts here, long uncompressed offset,
+   *              int window length, int deflated window length,
+   *              long position of the deflated window in this file
+   * windows      deflated windows
+   * </pre>
+   */
+  boolean write(FileSystem fs, Path path, boolean overwrite)
+      throws IOException {
+
+    if (!overwrite && fs.exists(path)) {
+      LOG.error("Gzip index file already exists. Skipping writing it.");
+      return false;
+    }
+
+    // written under another name and renamed, so readers never see it
+    // half written
+    Path tmp = TarIndex.getTempPath(path);
+    OutputStream os = null;
+    DataOutputStream out = null;
+    boolean written = false;
+    try {
+      fs.mkdirs(path.getParent());
+      os = fs.create(tmp, true);
+      out = new DataOutputStream(new BufferedOutputStream(os));
+
+      out.write(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(spacing);
+      out.writeInt(count);
+
+      long[] positions = new long[count];
+      long pos = HEADER_SIZE + (long) count * ENTRY_SIZE;
+      for (int i = 0; i < count; i++) {
+        positions[i] = pos;
+        pos += windowZLens[i];
+        out.writeLong(compressedOffsets[i]);
+        out.writeByte(bits[i]);
+        out.writeByte(memberStarts[i] ? 1 : 0);
+        out.writeLong(uncompressedOffsets[i]);
+        out.writeInt(windowLens[i]);
+        out.writeInt(windowZLens[i]);
+        out.writeLong(positions[i]);
+      }
+      for (int i = 0; i < count; i++)
+        if (windowZLens[i] > 0)
+          out.write(getDeflatedWindow(i));
+      out.close();
+      out = null;
+      os = null;
+      written = true;
+      if (!TarIndex.commit(fs, tmp, path, overwrite))
+        return false;
+
+      // the windows can now be read back when needed
+      this.fs = fs;
+      this.file = path;
+      this.windowPositions = positions;
+      this.windows = null;
+      return true;
+    } catch (AccessControlException e) {
+      return false;
+    } finally {
+      try {
+        if (out != null)
+          out.close();
+        else if (os != null)
+          os.close();
+      } finally {
+        if (!written)
+          TarIndex.deleteQuietly(fs, tmp);
+      }
+    }
+  }
+
+  private byte[] getDeflatedWindow(int i) throws IOException {
+    if (windows != null && windows[i] != null)
+      return windows[i];
+    byte[] z = new byte[windowZLens[i]];
+    FSDataInputStream in = fs.open(file);
+    try {
+      in.readFully(windowPositions[i], z);
+    } finally {
+      in.close();
+    }
+    return z;
+  }
+
+  /**
+   * Reads the checkpoint table of an index file. Windows stay in the file.
+   *
+   * @return null if there is no usable index at path
+   */
+  static GzipCheckpointIndex read(FileSystem fs, Path path)
+      throws IOException {
+
+    if (path == null || !fs.exists(path))
+      return null;
+
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(fs.open(path)));
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        LOG.error("Invalid gzip index file: " + path);
+        return null;
+      }
+      int version = in.readInt();
+      if (version > VERSION) {
+        LOG.error("Gzip index file " + path + " has version " + version
+            + ", only versions up to " + VERSION + " are supported");
+        return null;
+      }
+
+      long spacing = in.readLong();
+      GzipCheckpointIndex index = new GzipCheckpointIndex(spacing, in.readInt());
+      index.windowPositions = new long[index.count];
+      for (int i = 0; i < index.count; i++) {
+        index.compressedOffsets[i] = in.readLong();
+        index.bits[i] = in.readByte();
+        index.memberStarts[i] = in.readByte() == 1;
+        index.uncompressedOffsets[i] = in.readLong();
+        index.windowLens[i] = in.readInt();
+        index.windowZLens[i] = in.readInt();
+        index.windowPositions[i] = in.readLong();
+      }
+      index.fs = fs;
+      index.file = path;
+      return index;
+    } catch (AccessControlException e) {
+      LOG.error("Can not open gzip index file for reading " + path + " "
+          + e.getMessage());
+      return null;
+    } finally {
+      if (in != null)
+        in.close();
+    }
+  }
+}
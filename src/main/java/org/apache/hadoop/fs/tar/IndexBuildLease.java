@@ -0,0 +1,166 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A lease on building the index of a tar, so that of the many tasks that
+ * find a tar unindexed, one scans it while the others wait for its index.
+ * <br/>
+ * The lease is a lock file created exclusively next to the index file. The
+ * holder renews it by updating its modification time, on a timer, whatever
+ * the build is doing. A lock file that was not renewed for <code>ttl</code>
+ * ms is taken to be left behind by a builder that died, and may be broken.
+ */
+class IndexBuildLease {
+
+  public static final Log LOG = LogFactory.getLog(IndexBuildLease.class);
+
+  static final String EXT = ".lock";
+
+  private final FileSystem fs;
+  private final Path lockPath;
+  private final ScheduledFuture<?> renewal;
+
+  private IndexBuildLease(FileSystem fs, Path lockPath, long ttl) {
+    this.fs = fs;
+    this.lockPath = lockPath;
+    long period = Math.max(1, ttl / 3);
+    this.renewal = TarFSUtils.getTimer().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        renew();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  static Path getLockPath(Path indexPath) {
+    return new Path(indexPath.toUri() + EXT);
+  }
+
+  /**
+   * @return the lease, or null if someone else holds it
+   * @throws IOException
+   *           if the lock file can not be created, e.g. for lack of
+   *           permissions
+   */
+  static IndexBuildLease tryAcquire(FileSystem fs, Path lockPath, long ttl)
+      throws IOException {
+    FSDataOutputStream out;
+    try {
+      fs.mkdirs(lockPath.getParent());
+      out = fs.create(lockPath, false);
+    } catch (IOException e) {
+      if (fs.exists(lockPath))
+        return null;
+      throw e;
+    }
+    try {
+      // the holder, for whoever finds the lock file left behind
+      out.writeBytes(ManagementFactory.getRuntimeMXBean().getName() + "\n");
+    } finally {
+      out.close();
+    }
+    return new IndexBuildLease(fs, lockPath, ttl);
+  }
+
+  /**
+   * Whether a lock file exists and was not renewed for ttl ms
+   */
+  static boolean isExpired(FileSystem fs, Path lockPath, long ttl)
+      throws IOException {
+    FileStatus status;
+    try {
+      status = fs.getFileStatus(lockPath);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    return isExpired(status, ttl);
+  }
+
+  private static boolean isExpired(FileStatus status, long ttl) {
+    return System.currentTimeMillis() - status.getModificationTime() > ttl;
+  }
+
+  /**
+   * Breaks a lock file that was not renewed for ttl ms. The lock file is
+   * first moved to a name of its own, so that of the processes breaking it
+   * at once only one gets it. The one moved is checked again, as another
+   * process may have broken the expired lock and taken a new one meanwhile;
+   * that one is put back.
+   *
+   * @return whether the lock file was broken here
+   */
+  static boolean breakIfExpired(FileSystem fs, Path lockPath, long ttl)
+      throws IOException {
+    if (!isExpired(fs, lockPath, ttl))
+      return false;
+
+    Path moved = new Path(lockPath.toUri() + "."
+        + ManagementFactory.getRuntimeMXBean().getName() + "."
+        + System.nanoTime() + ".broken");
+    if (!fs.rename(lockPath, moved))
+      return false;
+
+    FileStatus status;
+    try {
+      status = fs.getFileStatus(moved);
+    } catch (FileNotFoundException e) {
+      return false;
+    }
+    if (isExpired(status, ttl)) {
+      fs.delete(moved, false);
+      return true;
+    }
+    if (fs.exists(lockPath) || !fs.rename(moved, lockPath)) {
+      LOG.warn("Could not put back index build lock " + lockPath
+          + " moved while breaking an expired one");
+      fs.delete(moved, false);
+    }
+    return false;
+  }
+
+  private void renew() {
+    try {
+      fs.setTimes(lockPath, System.currentTimeMillis(), -1);
+    } catch (IOException e) {
+      LOG.warn("Could not renew index build lease " + lockPath, e);
+    }
+  }
+
+  void release() {
+    renewal.cancel(false);
+    try {
+      fs.delete(lockPath, false);
+    } catch (IOException e) {
+      LOG.warn("Could not release index build lease " + lockPath, e);
+    }
+  }
+}
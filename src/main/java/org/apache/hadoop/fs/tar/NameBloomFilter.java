@@ -0,0 +1,193 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Bloom filter of the names of a {@link TarIndex} and of the directories
+ * they are in, so that most names that are not in the tar are turned down
+ * without searching the names. <br/>
+ * With 10 bits per name and per directory, about 1% of the names not in the
+ * tar get through.
+ * Trailing '/' are ignored. Names are hashed as their UTF-8 bytes, which a
+ * String is encoded to on the fly, so a lookup does not allocate.
+ */
+class NameBloomFilter {
+
+  static final int BITS_PER_NAME = 10;
+  static final int DEFAULT_HASHES = 7;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final long[] bits;
+  private final int hashes;
+
+  NameBloomFilter(long[] bits, int hashes) {
+    this.bits = bits;
+    this.hashes = hashes;
+  }
+
+  /**
+   * A filter of the names [nameStarts[i], nameStarts[i + 1]) of names, for
+   * i below count. The names are sorted, so the directories they are in are
+   * counted as they come.
+   */
+  static NameBloomFilter build(ByteBuffer names, int[] nameStarts,
+      int count) {
+    long keys = (long) count + countDirs(names, nameStarts, count);
+    long nbits = Math.max(64, keys * BITS_PER_NAME);
+    NameBloomFilter filter = new NameBloomFilter(
+        new long[(int) Math.min((nbits + 63) / 64, Integer.MAX_VALUE)],
+        DEFAULT_HASHES);
+    for (int i = 0; i < count; i++)
+      filter.addName(names, nameStarts[i], nameStarts[i + 1]);
+    return filter;
+  }
+
+  /**
+   * Number of distinct directories the sorted names are in. The names under
+   * a directory are next to each other, so a directory is new where a name
+   * differs from the one before it in or before the '/' ending it.
+   */
+  private static long countDirs(ByteBuffer names, int[] nameStarts,
+      int count) {
+    long dirs = 0;
+    for (int i = 0; i < count; i++) {
+      int start = nameStarts[i];
+      int end = nameStarts[i + 1];
+      while (end > start && names.get(end - 1) == '/')
+        end--;
+      int common = 0;
+      if (i > 0) {
+        int prev = nameStarts[i - 1];
+        int max = Math.min(end - start, start - prev);
+        while (common < max
+            && names.get(start + common) == names.get(prev + common))
+          common++;
+      }
+      for (int p = start + Math.max(common, 1); p < end; p++) {
+        if (names.get(p) == '/')
+          dirs++;
+      }
+    }
+    return dirs;
+  }
+
+  /**
+   * Adds a name, as UTF-8 bytes, and every directory it is in
+   */
+  private void addName(ByteBuffer names, int start, int end) {
+    while (end > start && names.get(end - 1) == '/')
+      end--;
+    long h = FNV_OFFSET;
+    for (int p = start; p < end; p++) {
+      byte b = names.get(p);
+      if (b == '/' && p > start)
+        add(h);
+      h = (h ^ (b & 0xff)) * FNV_PRIME;
+    }
+    add(h);
+  }
+
+  private void add(long h) {
+    probe(h, true);
+  }
+
+  /**
+   * Sets or tests the bits of an FNV hash, derived from the two halves of
+   * it mixed
+   *
+   * @return when testing, whether all the bits are set
+   */
+  private boolean probe(long h, boolean set) {
+    h = mix(h);
+    int h1 = (int) h;
+    int h2 = (int) (h >>> 32);
+    long nbits = (long) bits.length * 64;
+    for (int i = 0; i < hashes; i++) {
+      long bit = ((h1 + i * h2) & 0xffffffffL) % nbits;
+      long mask = 1L << bit;
+      if (set)
+        bits[(int) (bit >>> 6)] |= mask;
+      else if ((bits[(int) (bit >>> 6)] & mask) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return false if the tar has neither a file nor a directory of that
+   *         name, true if it may have
+   */
+  boolean mightContain(String name) {
+    int len = name.length();
+    while (len > 0 && name.charAt(len - 1) == '/')
+      len--;
+    if (len == 0)
+      return true;
+
+    long h = FNV_OFFSET;
+    for (int i = 0; i < len; ) {
+      int c = name.codePointAt(i);
+      i += Character.charCount(c);
+      if (c >= 0xd800 && c <= 0xdfff) {
+        // a lone surrogate, encoded as '?' like String.getBytes does
+        h = (h ^ '?') * FNV_PRIME;
+      } else if (c < 0x80) {
+        h = (h ^ c) * FNV_PRIME;
+      } else if (c < 0x800) {
+        h = (h ^ (0xc0 | (c >> 6))) * FNV_PRIME;
+        h = (h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+      } else if (c < 0x10000) {
+        h = (h ^ (0xe0 | (c >> 12))) * FNV_PRIME;
+        h = (h ^ (0x80 | ((c >> 6) & 0x3f))) * FNV_PRIME;
+        h = (h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+      } else {
+        h = (h ^ (0xf0 | (c >> 18))) * FNV_PRIME;
+        h = (h ^ (0x80 | ((c >> 12) & 0x3f))) * FNV_PRIME;
+        h = (h ^ (0x80 | ((c >> 6) & 0x3f))) * FNV_PRIME;
+        h = (h ^ (0x80 | (c & 0x3f))) * FNV_PRIME;
+      }
+    }
+    return probe(h, false);
+  }
+
+  /** Spreads the bits of an FNV hash over the whole long */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  long[] getBits() {
+    return bits;
+  }
+
+  int getHashCount() {
+    return hashes;
+  }
+
+  long getMemorySize() {
+    return 8L * bits.length;
+  }
+}
@@ -0,0 +1,386 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.CanSetReadahead;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Seekable view of the uncompressed content of a block compressed file. Only
+ * the blocks that are read are decompressed. While a reader moves forward,
+ * the blocks after the current one are decompressed ahead of it on a thread
+ * pool, so a sequential read runs at the speed of several cores. <br/>
+ * How far ahead is bounded by the pool size, and by the readahead if one is
+ * set: a reader of a single tar member sets it to the member size, so no
+ * block past the member is decompressed. <br/>
+ * The index may be incomplete while a bzip2 archive is being indexed. The
+ * stream then only moves forward, and fills in block lengths as it goes.
+ */
+class ParallelBlockInputStream extends FSInputStream
+    implements CanSetReadahead {
+
+  /** blocks larger than this are streamed, not decompressed ahead */
+  static final long MAX_BUFFERED_BLOCK = 64 * 1024 * 1024;
+
+  private final FileSystem fs;
+  private final Path path;
+  private final BlockCodec codec;
+  private final CompressedBlockIndex index;
+  private final ExecutorService pool;
+  private final int parallelism;
+
+  private final ConcurrentLinkedQueue<BlockCodec.Decoder> decoders =
+      new ConcurrentLinkedQueue<BlockCodec.Decoder>();
+  private final Map<Integer, Future<byte[]>> ahead =
+      new HashMap<Integer, Future<byte[]>>();
+  private volatile boolean closed = false;
+
+  private Long readahead = null;
+
+  /** current block, -1 before the first read */
+  private int block = -1;
+  private long blockStart = 0;
+  private long blockLength = 0;
+  /** data of the current block, when it was decompressed in one go */
+  private byte[] data;
+  /** otherwise, the current block is streamed from this decoder */
+  private BlockCodec.Decoder liveDecoder;
+  private InputStream live;
+  private long pos = 0;
+
+  ParallelBlockInputStream(FileSystem fs, Path path, BlockCodec codec,
+      CompressedBlockIndex index, ExecutorService pool, int parallelism) {
+    this.fs = fs;
+    this.path = path;
+    this.codec = codec;
+    this.index = index;
+    this.pool = pool;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /**
+   * A pool of daemon threads to decompress on
+   */
+  static ExecutorService newPool(int threads) {
+    final AtomicInteger n = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "tarfs-decompress-" + n.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  private BlockCodec.Decoder borrow() throws IOException {
+    BlockCodec.Decoder d = decoders.poll();
+    return d != null ? d : codec.newDecoder(fs, path);
+  }
+
+  private void release(BlockCodec.Decoder d) throws IOException {
+    decoders.add(d);
+    // a task finishing after close() must not leave its decoder open
+    if (closed)
+      closeDecoders();
+  }
+
+  private void closeDecoders() throws IOException {
+    BlockCodec.Decoder d;
+    while ((d = decoders.poll()) != null)
+      d.close();
+  }
+
+  private boolean isBuffered(int i) {
+    long len = index.getUncompressedLength(i);
+    return len <= MAX_BUFFERED_BLOCK;
+  }
+
+  private Future<byte[]> submit(final int i) {
+    return pool.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        BlockCodec.Decoder d = borrow();
+        try {
+          return readBlock(d.open(index, i, 0), i);
+        } finally {
+          release(d);
+        }
+      }
+    });
+  }
+
+  private byte[] readBlock(InputStream in, int i) throws IOException {
+    long len = index.getUncompressedLength(i);
+    if (len < 0) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+      byte[] buf = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buf)) != -1)
+        out.write(buf, 0, n);
+      return out.toByteArray();
+    }
+
+    byte[] b = new byte[(int) len];
+    int off = 0;
+    while (off < b.length) {
+      int n = in.read(b, off, b.length - off);
+      if (n == -1)
+        throw new EOFException("Block " + i + " of " + path + " is short");
+      off += n;
+    }
+    return b;
+  }
+
+  /**
+   * Starts decompressing the blocks after the current one, and forgets the
+   * ones that are no longer ahead of it.
+   */
+  private void scheduleAhead() {
+    int last = Math.min(block + parallelism, index.getCount() - 1);
+    if (readahead != null && index.isComplete()) {
+      long end = pos + readahead;
+      while (last > block && index.getUncompressedOffset(last) >= end)
+        last--;
+    }
+
+    Iterator<Map.Entry<Integer, Future<byte[]>>> it =
+        ahead.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Integer, Future<byte[]>> e = it.next();
+      if (e.getKey() <= block || e.getKey() > last) {
+        e.getValue().cancel(false);
+        it.remove();
+      }
+    }
+    for (int i = block + 1; i <= last; i++)
+      if (isBuffered(i) && !ahead.containsKey(i))
+        ahead.put(i, submit(i));
+  }
+
+  private void closeLive() throws IOException {
+    if (liveDecoder != null) {
+      release(liveDecoder);
+      liveDecoder = null;
+      live = null;
+    }
+  }
+
+  /**
+   * Makes block i current, positioned at <code>offset</code> into it
+   */
+  private void load(int i, long start, long offset) throws IOException {
+    closeLive();
+    data = null;
+    block = i;
+    blockStart = start;
+
+    if (isBuffered(i)) {
+      Future<byte[]> f = ahead.remove(i);
+      if (f == null)
+        f = submit(i);
+      try {
+        data = f.get();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while decompressing " + path, e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException)
+          throw (IOException) e.getCause();
+        throw new IOException("Could not decompress " + path, e.getCause());
+      }
+      if (index.getUncompressedLength(i) < 0)
+        index.setUncompressedLength(i, data.length);
+      blockLength = data.length;
+    } else {
+      liveDecoder = borrow();
+      live = liveDecoder.open(index, i, offset);
+      blockLength = index.getUncompressedLength(i);
+    }
+    pos = start + offset;
+    scheduleAhead();
+  }
+
+  /**
+   * Moves to the block after the current one
+   *
+   * @return false at the end of the file
+   */
+  private boolean nextBlock() throws IOException {
+    int next = block + 1;
+    long start = block == -1 ? 0 : blockStart + blockLength;
+    // skip empty blocks
+    while (next < index.getCount() && index.getUncompressedLength(next) == 0)
+      next++;
+    if (next >= index.getCount()) {
+      closeLive();
+      data = null;
+      block = index.getCount();
+      blockStart = start;
+      blockLength = 0;
+      pos = start;
+      return false;
+    }
+    load(next, start, 0);
+    return true;
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed)
+      throw new IOException("Stream is closed");
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    checkOpen();
+    if (len == 0)
+      return 0;
+
+    while (block == -1 || pos >= blockStart + blockLength) {
+      if (block >= index.getCount() || !nextBlock())
+        return -1;
+    }
+
+    int n = (int) Math.min(len, blockStart + blockLength - pos);
+    if (data != null) {
+      System.arraycopy(data, (int) (pos - blockStart), b, off, n);
+    } else {
+      n = live.read(b, off, n);
+      if (n == -1)
+        throw new EOFException("Block " + block + " of " + path + " is short");
+    }
+    pos += n;
+    return n;
+  }
+
+  @Override
+  public synchronized void seek(long target) throws IOException {
+    checkOpen();
+    if (target < 0)
+      throw new IOException("Can not seek to negative position " + target);
+
+    if (block != -1 && target >= blockStart
+        && target < blockStart + blockLength) {
+      if (data != null || target == pos) {
+        pos = target;
+      } else if (target > pos) {
+        long skip = target - pos;
+        while (skip > 0) {
+          long n = live.skip(skip);
+          if (n <= 0)
+            throw new EOFException("Block " + block + " of " + path
+                + " is short");
+          skip -= n;
+        }
+        pos = target;
+      } else {
+        load(block, blockStart, target - blockStart);
+      }
+      return;
+    }
+
+    if (index.isComplete()) {
+      int i = index.findBlock(target);
+      if (i == -1) {
+        if (target > index.getUncompressedLength())
+          throw new EOFException("Can not seek past EOF!");
+        nextBlockAtEnd();
+        return;
+      }
+      load(i, index.getUncompressedOffset(i),
+          target - index.getUncompressedOffset(i));
+      return;
+    }
+
+    // block lengths are not all known yet: only forward, block by block
+    if (target < pos)
+      throw new IOException("Can not seek backwards while indexing " + path);
+    while (block == -1 || target >= blockStart + blockLength) {
+      if (!nextBlock()) {
+        if (target > pos)
+          throw new EOFException("Can not seek past EOF!");
+        return;
+      }
+    }
+    pos = target;
+  }
+
+  private void nextBlockAtEnd() throws IOException {
+    closeLive();
+    data = null;
+    block = index.getCount();
+    blockStart = index.getUncompressedLength();
+    blockLength = 0;
+    pos = blockStart;
+  }
+
+  @Override
+  public synchronized long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  /**
+   * Bounds how far ahead of the reader blocks are decompressed, in bytes
+   */
+  @Override
+  public synchronized void setReadahead(Long readahead) {
+    this.readahead = readahead;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    for (Future<byte[]> f : ahead.values())
+      f.cancel(false);
+    ahead.clear();
+    closeLive();
+    data = null;
+    closeDecoders();
+  }
+}
@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Finds the headers of an uncompressed tar by reading byte ranges of it in
+ * parallel, instead of walking from one header to the next. <br/>
+ * Every range is read in full, and each 512 byte block in it whose header
+ * checksum is right is parsed as a candidate header. The file data of the
+ * tar may hold such blocks too, e.g. when a tar is stored in the tar, so
+ * candidates are only confirmed by walking the chain of headers from the
+ * start of the tar: each header gives the offset of the next one, which is
+ * looked up among the candidates. A block on the chain that is not a
+ * candidate is read and parsed on the spot, so the result is the same as
+ * that of the sequential scan in every case.
+ */
+class ParallelHeaderScanner {
+
+  private static final int CHUNK_SIZE = 1024 * 1024;
+  /** Ranges per thread, so that threads finishing early take more */
+  private static final int RANGES_PER_THREAD = 4;
+
+  private static final int CHKSUM_OFFSET = 148;
+  private static final int CHKSUM_LEN = 8;
+
+  /** Candidate headers of one range, in offset order */
+  private static class Candidates {
+    final TarIndex.Builder builder = new TarIndex.Builder();
+    int n = 0;
+    long[] offsets = new long[64];
+    long[] nexts = new long[64];
+    /** entry in builder, -1 for a header not indexed, e.g. a directory */
+    int[] entries = new int[64];
+
+    void add(long offset, long next, int entry) {
+      if (n == offsets.length) {
+        offsets = Arrays.copyOf(offsets, n * 2);
+        nexts = Arrays.copyOf(nexts, n * 2);
+        entries = Arrays.copyOf(entries, n * 2);
+      }
+      offsets[n] = offset;
+      nexts[n] = next;
+      entries[n] = entry;
+      n++;
+    }
+  }
+
+  private final FileSystem fs;
+  private final Path tarPath;
+  private final long length;
+  private final int threads;
+
+  ParallelHeaderScanner(FileSystem fs, Path tarPath, long length,
+      int threads) {
+    this.fs = fs;
+    this.tarPath = tarPath;
+    this.length = length;
+    this.threads = threads;
+  }
+
+  /**
+   * Adds the files of the tar to builder, in the order of the tar
+   *
+   * @return the offset after the last header and its data, as
+   *         {@link TarIndex} records it
+   */
+  long scan(TarIndex.Builder builder) throws IOException {
+    long blocks = (length + 511) / 512;
+    long rangeBlocks = Math.max(1,
+        (blocks + threads * RANGES_PER_THREAD - 1)
+            / (threads * RANGES_PER_THREAD));
+    final long rangeSize = rangeBlocks * 512;
+    int ranges = (int) ((length + rangeSize - 1) / rangeSize);
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+        new ThreadFactory() {
+          private final AtomicInteger n = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r,
+                "tarfs-index-scan-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    Candidates[] found = new Candidates[ranges];
+    try {
+      List<Future<Candidates>> futures = new ArrayList<Future<Candidates>>();
+      for (int r = 0; r < ranges; r++) {
+        final long start = r * rangeSize;
+        final long end = Math.min(length, start + rangeSize);
+        futures.add(pool.submit(new Callable<Candidates>() {
+          @Override
+          public Candidates call() throws IOException {
+            return scanRange(start, end);
+          }
+        }));
+      }
+      for (int r = 0; r < ranges; r++)
+        found[r] = futures.get(r).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted scanning " + tarPath);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException("Could not scan " + tarPath, e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+
+    return stitch(builder, found, rangeSize);
+  }
+
+  private Candidates scanRange(long start, long end) throws IOException {
+    Candidates c = new Candidates();
+    byte[] buf = new byte[(int) Math.min(CHUNK_SIZE, end - start)];
+    byte[] header = new byte[512];
+
+    FSDataInputStream in = fs.open(tarPath);
+    try {
+      in.seek(start);
+      for (long pos = start; pos < end; pos += buf.length) {
+        int len = (int) Math.min(buf.length, end - pos);
+        in.readFully(buf, 0, len);
+        for (int off = 0; off + 512 <= len; off += 512) {
+          if (!isHeaderCandidate(buf, off))
+            continue;
+          System.arraycopy(buf, off, header, 0, 512);
+          int before = c.builder.n;
+          long next;
+          try {
+            next = TarIndex.addHeader(header, pos + off, c.builder);
+          } catch (RuntimeException e) {
+            // does not parse, so it is not a header
+            continue;
+          }
+          c.add(pos + off, next, c.builder.n > before ? before : -1);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return c;
+  }
+
+  /**
+   * Walks the chain of headers from the start of the tar, the way
+   * {@link TarIndex} scans it sequentially
+   */
+  private long stitch(TarIndex.Builder builder, Candidates[] found,
+      long rangeSize) throws IOException {
+    int[] cursors = new int[found.length];
+    byte[] header = new byte[512];
+    long pos = 0;
+    long end = 0;
+
+    FSDataInputStream in = null;
+    try {
+      while (pos < length) {
+        int r = (int) (pos / rangeSize);
+        Candidates c = found[r];
+        while (cursors[r] < c.n && c.offsets[cursors[r]] < pos)
+          cursors[r]++;
+
+        long next;
+        if (cursors[r] < c.n && c.offsets[cursors[r]] == pos) {
+          int entry = c.entries[cursors[r]];
+          if (entry != -1)
+            builder.addFrom(c.builder, entry);
+          next = c.nexts[cursors[r]];
+          end = next;
+        } else {
+          // e.g. the zero blocks at the end of the tar
+          if (length - pos < 512)
+            throw new IOException("Could not read the full header.");
+          if (in == null)
+            in = fs.open(tarPath);
+          in.readFully(pos, header);
+          next = TarIndex.addHeader(header, pos, builder);
+          if (!TarIndex.isZeroBlock(header))
+            end = next;
+        }
+        pos = next;
+      }
+    } finally {
+      if (in != null)
+        in.close();
+    }
+    return end;
+  }
+
+  /**
+   * Whether a block passes the header checksum test. Both the unsigned sum
+   * of POSIX and the signed one of some old tars are accepted.
+   */
+  static boolean isHeaderCandidate(byte[] b, int off) {
+    long stored = parseOctal(b, off + CHKSUM_OFFSET, CHKSUM_LEN);
+    if (stored < 0)
+      return false;
+    long unsigned = 0;
+    long signed = 0;
+    for (int i = 0; i < 512; i++) {
+      byte v = i >= CHKSUM_OFFSET && i < CHKSUM_OFFSET + CHKSUM_LEN
+          ? (byte) ' ' : b[off + i];
+      unsigned += v & 0xff;
+      signed += v;
+    }
+    return stored == unsigned || stored == signed;
+  }
+
+  /**
+   * @return the octal number of a header field, -1 if there is none
+   */
+  private static long parseOctal(byte[] b, int off, int len) {
+    int i = off;
+    int end = off + len;
+    while (i < end && b[i] == ' ')
+      i++;
+    long v = 0;
+    int digits = 0;
+    for (; i < end; i++) {
+      if (b[i] >= '0' && b[i] <= '7') {
+        v = (v << 3) + (b[i] - '0');
+        digits++;
+      } else if (b[i] == ' ' || b[i] == 0) {
+        break;
+      } else {
+        return -1;
+      }
+    }
+    return digits == 0 ? -1 : v;
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+
+/**
+ * Seekable view of the uncompressed content of a gzip file. A seek resumes
+ * inflation from the nearest {@link GzipCheckpointIndex} checkpoint before
+ * the target, and inflates forward from there. <br/>
+ * A checkpoint may start in the middle of a byte. The JDK inflater can only
+ * start at a byte boundary, so in that case the compressed bytes are shifted
+ * as they are fed to it.
+ */
+class SeekableGzipInputStream extends FSInputStream {
+
+  private final FSDataInputStream in;
+  private final GzipCheckpointIndex index;
+
+  private Inflater inflater = null;
+  /** the checkpoint inflation was last resumed from */
+  private int checkpoint = -1;
+  private long pos = 0;
+  private boolean eof = false;
+
+  private final byte[] inBuf = new byte[64 * 1024];
+  private final byte[] shifted = new byte[64 * 1024];
+  private int shift = 0;
+  private int carry = 0;
+  private boolean carryFlushed = false;
+
+  private byte[] skipBuf = null;
+
+  SeekableGzipInputStream(FSDataInputStream in, GzipCheckpointIndex index)
+      throws IOException {
+    this.in = in;
+    this.index = index;
+    restart(0);
+  }
+
+  private void restart(int i) throws IOException {
+    if (inflater != null)
+      inflater.end();
+    inflater = new Inflater(true);
+    checkpoint = i;
+    eof = false;
+    pos = index.getUncompressedOffset(i);
+
+    in.seek(index.getCompressedOffset(i));
+    shift = index.getBitOffset(i);
+    carryFlushed = false;
+    if (shift != 0) {
+      carry = in.read();
+      if (carry == -1)
+        throw new EOFException("Unexpected end of gzip stream");
+    }
+
+    byte[] window = index.getWindow(i);
+    if (window.length > 0)
+      inflater.setDictionary(window);
+  }
+
+  /**
+   * Feeds more compressed data to the inflater
+   */
+  private void feed() throws IOException {
+    int n = in.read(inBuf, 0, inBuf.length);
+    if (n == -1) {
+      if (shift != 0 && !carryFlushed) {
+        shifted[0] = (byte) (carry >>> shift);
+        inflater.setInput(shifted, 0, 1);
+        carryFlushed = true;
+        return;
+      }
+      throw new EOFException("Unexpected end of gzip stream");
+    }
+
+    if (shift == 0) {
+      inflater.setInput(inBuf, 0, n);
+      return;
+    }
+    for (int i = 0; i < n; i++) {
+      int b = inBuf[i] & 0xff;
+      shifted[i] = (byte) ((carry >>> shift) | (b << (8 - shift)));
+      carry = b;
+    }
+    inflater.setInput(shifted, 0, n);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    int n = read(b, 0, 1);
+    return n == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public synchronized int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+
+    while (!eof) {
+      int n;
+      try {
+        n = inflater.inflate(b, off, len);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupt gzip stream at " + pos, e);
+      }
+      if (n > 0) {
+        pos += n;
+        return n;
+      }
+
+      if (inflater.finished()) {
+        // end of a gzip member. the index knows where the next one starts
+        int next = index.nextMember(checkpoint);
+        if (next == -1)
+          eof = true;
+        else
+          restart(next);
+      } else if (inflater.needsInput()) {
+        feed();
+      } else if (inflater.needsDictionary()) {
+        throw new IOException("Corrupt gzip index: no window at " + pos);
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public synchronized void seek(long target) throws IOException {
+    if (target < 0)
+      throw new IOException("Can not seek to negative position " + target);
+
+    if (target < pos || target - pos > index.getSpacing()) {
+      int i = index.floor(target);
+      // inflating forward from here is cheaper than from a checkpoint
+      if (target < pos || index.getUncompressedOffset(i) > pos)
+        restart(i);
+    }
+
+    if (skipBuf == null)
+      skipBuf = new byte[64 * 1024];
+    while (pos < target) {
+      int n = read(skipBuf, 0, (int) Math.min(skipBuf.length, target - pos));
+      if (n == -1)
+        throw new EOFException("Can not seek past EOF!");
+    }
+  }
+
+  @Override
+  public synchronized long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+    long before = pos;
+    if (skipBuf == null)
+      skipBuf = new byte[64 * 1024];
+    while (pos < before + n) {
+      int r = read(skipBuf, 0, (int) Math.min(skipBuf.length, before + n - pos));
+      if (r == -1)
+        break;
+    }
+    return pos - before;
+  }
+
+  @Override
+  public synchronized long getPos() throws IOException {
+    return pos;
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (inflater != null)
+      inflater.end();
+    in.close();
+  }
+}
@@ -17,14 +17,21 @@
  */
 package org.apache.hadoop.fs.tar;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.ByteBufferReadable;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.HasEnhancedByteBufferAccess;
+import org.apache.hadoop.fs.ReadOption;
 import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.ByteBufferPool;
 
 /**
  * {@link TarArchiveInputStream} can not be used inside Hadoop as it does not
@@ -35,7 +42,8 @@ import org.apache.hadoop.fs.Seekable;
  * @author joydip
  *
  */
-public class SeekableTarInputStream extends FSInputStream {
+public class SeekableTarInputStream extends FSInputStream
+    implements ByteBufferReadable, HasEnhancedByteBufferAccess {
 
   FSDataInputStream in;
   final long length;
@@ -90,6 +98,169 @@ public class SeekableTarInputStream extends FSInputStream {
     return in.read();
   }
 
+  /**
+   * Reads up to <code>len</code> bytes from the underlying stream in one
+   * call. The request is clamped so that it never crosses the end of the
+   * file inside the TAR.
+   */
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (b == null)
+      throw new NullPointerException();
+    if (off < 0 || len < 0 || len > b.length - off)
+      throw new IndexOutOfBoundsException();
+    if (len == 0)
+      return 0;
+
+    long remaining = this.length - this.pos;
+    if (remaining <= 0)
+      return -1;
+
+    int toRead = (int) Math.min(len, remaining);
+    int bytesRead = in.read(b, off, toRead);
+    if (bytesRead > 0)
+      this.pos += bytesRead;
+    return bytesRead;
+  }
+
+  /**
+   * Skips within the file boundary. This is a seek on the underlying stream,
+   * no data is read.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0)
+      return 0;
+
+    long toSkip = Math.min(n, this.length - this.pos);
+    if (toSkip <= 0)
+      return 0;
+
+    seek(this.pos + toSkip);
+    return toSkip;
+  }
+
+  @Override
+  public int available() throws IOException {
+    long remaining = this.length - this.pos;
+    if (remaining <= 0)
+      return 0;
+    return (int) Math.min(remaining, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Positioned read. Maps directly to a positioned read on the underlying
+   * stream at <code>start + position</code>. Does not change the current
+   * position, so many threads can share one stream without seeking it.
+   */
+  @Override
+  public int read(long position, byte[] b, int off, int len)
+      throws IOException {
+    if (b == null)
+      throw new NullPointerException();
+    if (off < 0 || len < 0 || len > b.length - off)
+      throw new IndexOutOfBoundsException();
+    if (position < 0)
+      throw new EOFException("Can not read from negative position "
+          + position);
+    if (len == 0)
+      return 0;
+
+    long remaining = this.length - position;
+    if (remaining <= 0)
+      return -1;
+
+    int toRead = (int) Math.min(len, remaining);
+    return in.read(start + position, b, off, toRead);
+  }
+
+  @Override
+  public void readFully(long position, byte[] b, int off, int len)
+      throws IOException {
+    if (b == null)
+      throw new NullPointerException();
+    if (off < 0 || len < 0 || len > b.length - off)
+      throw new IndexOutOfBoundsException();
+    if (position < 0 || position + len > this.length)
+      throw new EOFException("Can not read " + len + " bytes at position "
+          + position + ", file length is " + this.length);
+
+    in.readFully(start + position, b, off, len);
+  }
+
+  @Override
+  public void readFully(long position, byte[] b) throws IOException {
+    readFully(position, b, 0, b.length);
+  }
+
+  /**
+   * Reads into a {@link ByteBuffer}, clipped at the end of the file. If the
+   * underlying stream supports {@link ByteBufferReadable} the data goes
+   * straight into the buffer, otherwise it is copied through a heap array.
+   */
+  @Override
+  public int read(ByteBuffer buf) throws IOException {
+    long remaining = this.length - this.pos;
+    if (remaining <= 0)
+      return -1;
+    if (!buf.hasRemaining())
+      return 0;
+
+    int toRead = (int) Math.min(buf.remaining(), remaining);
+    int bytesRead;
+
+    if (in.getWrappedStream() instanceof ByteBufferReadable) {
+      int oldLimit = buf.limit();
+      buf.limit(buf.position() + toRead);
+      try {
+        bytesRead = in.read(buf);
+      } finally {
+        buf.limit(oldLimit);
+      }
+    } else if (buf.hasArray()) {
+      bytesRead = in.read(
+        buf.array(), buf.arrayOffset() + buf.position(), toRead);
+      if (bytesRead > 0)
+        buf.position(buf.position() + bytesRead);
+    } else {
+      byte[] tmp = new byte[toRead];
+      bytesRead = in.read(tmp, 0, toRead);
+      if (bytesRead > 0)
+        buf.put(tmp, 0, bytesRead);
+    }
+
+    if (bytesRead > 0)
+      this.pos += bytesRead;
+    return bytesRead;
+  }
+
+  /**
+   * Enhanced (possibly zero-copy) read, clipped at the end of the file.
+   * Delegates to the underlying stream, which either serves a mmap-ed
+   * buffer or falls back to a copy into a buffer taken from the pool.
+   *
+   * @return null on EOF
+   */
+  @Override
+  public ByteBuffer read(ByteBufferPool factory, int maxLength,
+      EnumSet<ReadOption> opts)
+      throws IOException, UnsupportedOperationException {
+    long remaining = this.length - this.pos;
+    if (remaining <= 0)
+      return null;
+
+    int toRead = (int) Math.min(maxLength, remaining);
+    ByteBuffer buffer = in.read(factory, toRead, opts);
+    if (buffer != null)
+      this.pos += buffer.remaining();
+    return buffer;
+  }
+
+  @Override
+  public void releaseBuffer(ByteBuffer buffer) {
+    in.releaseBuffer(buffer);
+  }
+
   @Override
   public void close() throws IOException {
     super.close();
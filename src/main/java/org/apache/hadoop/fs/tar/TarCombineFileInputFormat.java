@@ -0,0 +1,151 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * Reads the lines of the files inside tars, packing many small files into
+ * one split. <br/>
+ * Input paths are tar:// paths of a whole tar, of a directory inside one,
+ * which stands for all the files under it, or of a file inside one. The
+ * files of a tar are taken in the order they are stored, and consecutive
+ * files are grouped until a split reaches the maximum split size (the
+ * block size of the tar by default). A split is therefore one contiguous
+ * range of the tar, and is placed on the hosts of the block of the tar
+ * that holds most of it. A file larger than the split size gets a
+ * split of its own; files are never cut. <br/>
+ * Keys are byte offsets inside the file the line comes from, values are
+ * the lines.
+ */
+public class TarCombineFileInputFormat
+    extends FileInputFormat<LongWritable, Text> {
+
+  public static final Log LOG =
+    LogFactory.getLog(TarCombineFileInputFormat.class);
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    Configuration conf = job.getConfiguration();
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+
+    // one file system for all the tars on an authority
+    Map<String, TarFileSystem> fileSystems =
+      new HashMap<String, TarFileSystem>();
+    try {
+      for (Path input : getInputPaths(job)) {
+        String authority = String.valueOf(input.toUri().getAuthority());
+        TarFileSystem tarfs = fileSystems.get(authority);
+        if (tarfs == null) {
+          tarfs = new TarFileSystem();
+          tarfs.initialize(input.toUri(), conf);
+          fileSystems.put(authority, tarfs);
+        }
+        addSplits(tarfs, input, getMaxSplitSize(job), splits);
+      }
+    } finally {
+      for (TarFileSystem tarfs : fileSystems.values())
+        tarfs.close();
+    }
+
+    LOG.info("Total # of splits: " + splits.size());
+    return splits;
+  }
+
+  private void addSplits(TarFileSystem tarfs, Path input, long maxSize,
+      List<InputSplit> splits) throws IOException {
+    TarIndex index = tarfs.getIndex(input);
+    TarPath p = tarfs.resolve(input);
+    FileStatus underlying =
+      tarfs.getUnderlyingFS().getFileStatus(p.getBaseTar());
+    BlockLocation[] tarLocations = tarfs.getUnderlyingFS()
+      .getFileBlockLocations(underlying, 0, underlying.getLen());
+    if (maxSize == Long.MAX_VALUE)
+      maxSize = underlying.getBlockSize();
+
+    List<Integer> current = new ArrayList<Integer>();
+    long size = 0;
+    // the files to read, in tar order
+    for (int id : tarfs.getFileIds(index, p)) {
+      if (!current.isEmpty() && size + index.getSize(id) > maxSize) {
+        splits.add(toSplit(index, p, current, tarLocations));
+        current.clear();
+        size = 0;
+      }
+      current.add(id);
+      size += index.getSize(id);
+    }
+    if (!current.isEmpty())
+      splits.add(toSplit(index, p, current, tarLocations));
+  }
+
+  private CombineFileSplit toSplit(TarIndex index, TarPath tar,
+      List<Integer> ids, BlockLocation[] tarLocations) throws IOException {
+    int n = ids.size();
+    Path[] paths = new Path[n];
+    long[] starts = new long[n];
+    long[] lengths = new long[n];
+    for (int i = 0; i < n; i++) {
+      int id = ids.get(i);
+      paths[i] = tar.getMemberPath(index.getName(id));
+      lengths[i] = index.getSize(id);
+    }
+
+    // the block of the tar holding most of the split
+    int last = ids.get(n - 1);
+    long from = index.getCompressedStart(index.getOffset(ids.get(0)));
+    long to = index.getCompressedEnd(
+      index.getOffset(last) + index.getSize(last));
+    String[] hosts = new String[0];
+    long best = 0;
+    for (BlockLocation loc : tarLocations) {
+      long overlap = Math.min(to, loc.getOffset() + loc.getLength())
+        - Math.max(from, loc.getOffset());
+      if (overlap > best) {
+        best = overlap;
+        hosts = loc.getHosts();
+      }
+    }
+    return new CombineFileSplit(paths, starts, lengths, hosts);
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(
+      InputSplit split, TaskAttemptContext context) throws IOException {
+    return new TarCombineRecordReader();
+  }
+}
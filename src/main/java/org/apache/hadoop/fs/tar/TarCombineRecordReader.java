@@ -0,0 +1,143 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.util.LineReader;
+
+/**
+ * Reads the lines of the files of a {@link CombineFileSplit} made by
+ * {@link TarCombineFileInputFormat}. The files are consecutive in the tar,
+ * so the tar is opened once and read through from the first file to the
+ * last.
+ */
+class TarCombineRecordReader extends RecordReader<LongWritable, Text> {
+
+  private CombineFileSplit split;
+  private Configuration conf;
+  private TarFileSystem tarfs;
+  private FSDataInputStream in;
+
+  /** file of the split being read, -1 before the first */
+  private int file = -1;
+  private LineReader reader;
+  private long filePos;
+  /** bytes of the files before the current one */
+  private long done;
+
+  private final LongWritable key = new LongWritable();
+  private final Text value = new Text();
+
+  @Override
+  public void initialize(InputSplit genericSplit, TaskAttemptContext context)
+      throws IOException {
+    this.split = (CombineFileSplit) genericSplit;
+    this.conf = context.getConfiguration();
+    if (split.getNumPaths() == 0)
+      return;
+
+    tarfs = new TarFileSystem();
+    tarfs.initialize(split.getPath(0).toUri(), conf);
+    in = tarfs.openTar(tarfs.resolve(split.getPath(0)).getBaseTar());
+  }
+
+  /**
+   * Moves on to the next file of the split
+   *
+   * @return false after the last file
+   */
+  private boolean nextFile() throws IOException {
+    if (file >= split.getNumPaths())
+      return false;
+    if (file >= 0)
+      done += split.getLength(file);
+    file++;
+    if (file >= split.getNumPaths())
+      return false;
+
+    TarIndex index = tarfs.getIndex(split.getPath(file));
+    int id = index.getEntryId(tarfs.resolve(split.getPath(file)).getMember());
+    // a forward seek on the shared stream; the stream is never closed here
+    reader = new LineReader(
+      new SeekableTarInputStream(in, index.getSize(id), index.getOffset(id)),
+      conf);
+    filePos = 0;
+    return true;
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException {
+    if (in == null)
+      return false;
+
+    while (true) {
+      if (reader != null) {
+        int n = reader.readLine(value);
+        if (n > 0) {
+          key.set(filePos);
+          filePos += n;
+          return true;
+        }
+      }
+      if (!nextFile()) {
+        reader = null;
+        return false;
+      }
+    }
+  }
+
+  @Override
+  public LongWritable getCurrentKey() {
+    return key;
+  }
+
+  @Override
+  public Text getCurrentValue() {
+    return value;
+  }
+
+  @Override
+  public float getProgress() {
+    if (split == null || split.getLength() == 0)
+      return 1.0f;
+    long pos = done;
+    if (file >= 0 && file < split.getNumPaths())
+      pos += filePos;
+    return Math.min(1.0f, pos / (float) split.getLength());
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (in != null)
+        in.close();
+    } finally {
+      if (tarfs != null)
+        tarfs.close();
+    }
+  }
+}
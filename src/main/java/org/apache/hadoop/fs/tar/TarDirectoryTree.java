@@ -0,0 +1,267 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The directories of a tar, derived from the names of its files: every
+ * prefix of a name up to a '/' is a directory, whether or not the tar has
+ * an entry for it. <br/>
+ * The children of each directory are kept together, so listing one takes
+ * time in the number of its children. They are in the order of the tar, a
+ * subdirectory taking the place of the first file under it. A child is
+ * either the id of a file in the {@link TarIndex}, or a directory encoded
+ * by {@link #encodeDir(int)}. <br/>
+ * The number of files and directories under each directory, and the total
+ * length of the files, are added up as the tree is built.
+ */
+class TarDirectoryTree {
+
+  /** Id of the top directory of the tar */
+  static final int ROOT = 0;
+
+  /** Directory paths, without a trailing '/', "" for the root */
+  private final String[] paths;
+  private final int[] parents;
+  /** children of directory d are [childStarts[d], childStarts[d + 1]) */
+  private final int[] childStarts;
+  private final int[] children;
+  private final Map<String, Integer> ids;
+  /** Totals of the subtree of each directory */
+  private final int[] fileCounts;
+  private final int[] dirCounts;
+  private final long[] lengths;
+  private final long memorySize;
+
+  private TarDirectoryTree(String[] paths, int[] parents, int[] childStarts,
+      int[] children, Map<String, Integer> ids, int[] fileCounts,
+      int[] dirCounts, long[] lengths) {
+    this.paths = paths;
+    this.parents = parents;
+    this.childStarts = childStarts;
+    this.children = children;
+    this.ids = ids;
+    this.fileCounts = fileCounts;
+    this.dirCounts = dirCounts;
+    this.lengths = lengths;
+
+    // the paths, shared by the map, whose entries and boxed ids come on top
+    long size = 4L * children.length + (4 * 5 + 8 + 48 + 16) * paths.length;
+    for (String path : paths)
+      size += 40 + 2 * path.length();
+    this.memorySize = size;
+  }
+
+  static TarDirectoryTree build(TarIndex index) {
+    Map<String, Integer> ids = new HashMap<String, Integer>();
+    List<String> paths = new ArrayList<String>();
+    List<Integer> parents = new ArrayList<Integer>();
+    ids.put("", ROOT);
+    paths.add("");
+    parents.add(-1);
+
+    // (parent, child) pairs in the order of the tar
+    int n = index.getEntryCount();
+    int[] pairDirs = new int[n * 2 + 1];
+    int[] pairChildren = new int[n * 2 + 1];
+    int pairs = 0;
+
+    for (int rank = 0; rank < n; rank++) {
+      int id = index.getIdByOffset(rank);
+      String name = index.getName(id);
+      int slash = name.lastIndexOf('/');
+      int parent = ROOT;
+
+      if (slash > 0) {
+        // add the missing ancestors, from the top
+        int from = 0;
+        while (true) {
+          int next = name.indexOf('/', from);
+          if (next == -1 || next > slash)
+            break;
+          if (next > from) {
+            String dir = name.substring(0, next);
+            Integer d = ids.get(dir);
+            if (d == null) {
+              d = paths.size();
+              ids.put(dir, d);
+              paths.add(dir);
+              parents.add(parent);
+              if (pairs == pairDirs.length) {
+                pairDirs = grow(pairDirs);
+                pairChildren = grow(pairChildren);
+              }
+              pairDirs[pairs] = parent;
+              pairChildren[pairs++] = encodeDir(d);
+            }
+            parent = d;
+          }
+          from = next + 1;
+        }
+      }
+
+      if (pairs == pairDirs.length) {
+        pairDirs = grow(pairDirs);
+        pairChildren = grow(pairChildren);
+      }
+      pairDirs[pairs] = parent;
+      pairChildren[pairs++] = id;
+    }
+
+    // group the pairs by directory, keeping their order
+    int dirs = paths.size();
+    int[] childStarts = new int[dirs + 1];
+    for (int i = 0; i < pairs; i++)
+      childStarts[pairDirs[i] + 1]++;
+    for (int d = 0; d < dirs; d++)
+      childStarts[d + 1] += childStarts[d];
+    int[] fill = new int[dirs];
+    int[] children = new int[pairs];
+    for (int i = 0; i < pairs; i++) {
+      int d = pairDirs[i];
+      children[childStarts[d] + fill[d]++] = pairChildren[i];
+    }
+
+    int[] parentArr = new int[dirs];
+    for (int d = 0; d < dirs; d++)
+      parentArr[d] = parents.get(d);
+
+    // the files of each directory, then added up into the parents; a
+    // directory comes after its parent, so walking back visits it first
+    int[] fileCounts = new int[dirs];
+    int[] dirCounts = new int[dirs];
+    long[] lengths = new long[dirs];
+    for (int i = 0; i < pairs; i++) {
+      if (!isDir(pairChildren[i])) {
+        fileCounts[pairDirs[i]]++;
+        lengths[pairDirs[i]] += index.getSize(pairChildren[i]);
+      }
+    }
+    Arrays.fill(dirCounts, 1);
+    for (int d = dirs - 1; d > ROOT; d--) {
+      int p = parentArr[d];
+      fileCounts[p] += fileCounts[d];
+      dirCounts[p] += dirCounts[d];
+      lengths[p] += lengths[d];
+    }
+
+    return new TarDirectoryTree(paths.toArray(new String[dirs]), parentArr,
+        childStarts, children, ids, fileCounts, dirCounts, lengths);
+  }
+
+  private static int[] grow(int[] a) {
+    int[] b = new int[a.length * 2];
+    System.arraycopy(a, 0, b, 0, a.length);
+    return b;
+  }
+
+  static int encodeDir(int dir) {
+    return -dir - 1;
+  }
+
+  static boolean isDir(int child) {
+    return child < 0;
+  }
+
+  static int decodeDir(int child) {
+    return -child - 1;
+  }
+
+  /**
+   * @param path a directory inside the tar, "" for the top
+   * @return the id of the directory, -1 if there is none
+   */
+  int getDirId(String path) {
+    while (path.endsWith("/"))
+      path = path.substring(0, path.length() - 1);
+    Integer d = ids.get(path);
+    return d == null ? -1 : d;
+  }
+
+  int getDirCount() {
+    return paths.length;
+  }
+
+  String getPath(int dir) {
+    return paths[dir];
+  }
+
+  /** The parent of a directory, -1 for the root */
+  int getParent(int dir) {
+    return parents[dir];
+  }
+
+  int getChildCount(int dir) {
+    return childStarts[dir + 1] - childStarts[dir];
+  }
+
+  /**
+   * The i-th child of a directory: a file id, or an encoded directory id
+   */
+  int getChild(int dir, int i) {
+    return children[childStarts[dir] + i];
+  }
+
+  /** Number of files under a directory, at any depth */
+  int getFileCount(int dir) {
+    return fileCounts[dir];
+  }
+
+  /** Number of directories under a directory at any depth, and itself */
+  int getSubdirCount(int dir) {
+    return dirCounts[dir];
+  }
+
+  /** The files under a directory at any depth, directory by directory */
+  int[] getFiles(int dir) {
+    int[] files = new int[fileCounts[dir]];
+    int n = 0;
+    int[] stack = new int[16];
+    int depth = 0;
+    stack[0] = dir;
+    while (depth >= 0) {
+      int d = stack[depth--];
+      for (int i = childStarts[d]; i < childStarts[d + 1]; i++) {
+        int child = children[i];
+        if (!isDir(child)) {
+          files[n++] = child;
+        } else {
+          if (++depth == stack.length)
+            stack = Arrays.copyOf(stack, depth * 2);
+          stack[depth] = decodeDir(child);
+        }
+      }
+    }
+    return files;
+  }
+
+  /** Approximate memory taken by the tree, in bytes */
+  long getMemorySize() {
+    return memorySize;
+  }
+
+  /** Total length of the files under a directory, at any depth */
+  long getLength(int dir) {
+    return lengths[dir];
+  }
+}
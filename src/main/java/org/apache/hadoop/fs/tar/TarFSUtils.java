@@ -23,6 +23,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.hadoop.conf.Configuration;
@@ -38,6 +41,26 @@ import org.apache.hadoop.fs.Path;
  */
 public class TarFSUtils {
 
+  private static ScheduledExecutorService timer = null;
+
+  /**
+   * A daemon thread of the process running the periodic chores of tar file
+   * systems, e.g. renewing index build leases
+   */
+  static synchronized ScheduledExecutorService getTimer() {
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "tarfs-timer");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    }
+    return timer;
+  }
+
   public static FileSystem getHadoopFS(URI sample)
       throws URISyntaxException, IOException {
 
@@ -132,4 +155,25 @@ public class TarFSUtils {
 
   }
 
+  /**
+   * Returns true if the file is a gzip compressed file. The name must end
+   * with .gz or .tgz, and the file must start with the gzip magic number.
+   * Unlike {@link #isGZ(String, InputStream)} this works on any Hadoop
+   * FileSystem.
+   */
+  public static boolean isGZ(FileSystem fs, Path path) throws IOException {
+    String name = path.getName();
+    if (!name.endsWith(".gz") && !name.endsWith(".tgz"))
+      return false;
+
+    FSDataInputStream in = fs.open(path);
+    try {
+      int b0 = in.read();
+      int b1 = in.read();
+      return b0 == 0x1f && b1 == 0x8b;
+    } finally {
+      in.close();
+    }
+  }
+
 }
@@ -17,38 +17,55 @@
  */
 package org.apache.hadoop.fs.tar;
 
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.BufferedFSInputStream;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.util.Progressable;
 
 /**
  * Creates a FileSystem out of a TAR file. A tar file is treated as a directory
- * containing files. Sub-directories are not yet supported. Tar files can be
- * specified using following sample URI schema <br/>
+ * containing files. Directories inside the tar are derived from the names of
+ * its files (see {@link TarDirectoryTree}). Tar files can be specified using
+ * following sample URI schema <br/>
  *
  * tar://hdfs-namenode:port/tarfile.tar (the whole tar.. treated as a
  * directory)<br/>
  * tar://hdfs-namenode:port/tarfile.tar+somefile.txt <br/>
+ * One instance serves all the tars on its authority, as the FileSystem cache
+ * hands it out for them. The index of each tar is loaded the first time a
+ * path into it is used, and loaded again when the tar changes (see
+ * {@link TarIndexCache}). <br/>
+ * Gzip compressed tars (.tar.gz, .tgz) are read through a checkpoint index,
+ * see {@link SeekableGzipInputStream}.
  * <ul>
- * <li>TODO subdirectories within a tar is not yet supported</li>
  * <li>TODO tarfiles must not contain '+' anywhere in the path</li>
- * <li>TODO TAR.GZ files are not yet supported. GZ is not seekable.</li>
  * </ul>
  *
  * @author joydip
@@ -57,16 +74,59 @@ import org.apache.hadoop.util.Progressable;
 public class TarFileSystem extends FileSystem {
 
   private URI uri;
-  private TarIndex index;
   private FileSystem underlyingFS = null;
   private Path workingDir;
+  /** Decompresses blocks of a bzip2 or xz compressed tar, created on use */
+  private ExecutorService decompressPool = null;
+  /** Streams over the tar kept open between opens of files inside it */
+  private TarStreamPool streamPool;
 
-  private static final String TAR_URLPREFIX = "tar:/";
-  private static final char TAR_INFILESEP = '+';
-  private static final String TAR_INFILESEP_STR = "\\+";
+  private static final String TAR_SCHEME = "tar";
 
   public static final Log LOG = LogFactory.getLog(TarFileSystem.class);
 
+  /** Read buffer of {@link #scan(Path, Visitor)} */
+  public static final String CONF_SCAN_BUFFER_SIZE = "tarfs.scan.buffer.size";
+  public static final int DEFAULT_SCAN_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /** Number of idle streams over the tar kept open, 0 to not keep any */
+  public static final String CONF_STREAM_POOL_SIZE = "tarfs.stream.pool.size";
+  public static final int DEFAULT_STREAM_POOL_SIZE = 8;
+  /** Time in ms after which an idle stream over the tar is closed */
+  public static final String CONF_STREAM_POOL_IDLE_TIMEOUT =
+    "tarfs.stream.pool.idle.timeout";
+  public static final long DEFAULT_STREAM_POOL_IDLE_TIMEOUT = 60 * 1000;
+
+  /**
+   * Open files without reading their header again, when the index still
+   * matches the tar (see {@link TarIndex#isTrusted()})
+   */
+  public static final String CONF_INDEX_TRUSTED = "tarfs.index.trusted";
+  /**
+   * With a trusted index, check the header of every n-th file opened
+   * anyway. 0 never checks.
+   */
+  public static final String CONF_INDEX_VERIFY_INTERVAL =
+    "tarfs.index.verify.interval";
+  public static final int DEFAULT_INDEX_VERIFY_INTERVAL = 1000;
+
+  /**
+   * Time in ms for which exists, isFile and isDirectory trust an index
+   * whose tar was last found unchanged, without asking for the status of
+   * the tar again. 0 checks the tar every time.
+   */
+  public static final String CONF_INDEX_RECHECK_INTERVAL =
+    "tarfs.index.recheck.interval";
+  public static final long DEFAULT_INDEX_RECHECK_INTERVAL = 1000;
+
+  /** Number of parsed paths kept, see {@link #resolve(Path)} */
+  public static final String CONF_PATH_CACHE_SIZE = "tarfs.path.cache.size";
+  public static final int DEFAULT_PATH_CACHE_SIZE = 1024;
+  private Map<Path, TarPath> parsedPaths;
+
+  /** Files opened, to pick the ones whose header is checked */
+  private final AtomicLong opens = new AtomicLong();
+
   @Override
   public void initialize(URI name, Configuration conf) throws IOException {
     LOG.info("*** Using Tar file system ***");
@@ -75,9 +135,13 @@ public class TarFileSystem extends FileSystem {
     this.underlyingFS = TarFSUtils.getHadoopFS(
       getBaseTarPath(new Path(name)).toUri(),
       conf);
-    this.index = new TarIndex(
-      underlyingFS,
-      getBaseTarPath(new Path(name)), true, conf);
+    this.streamPool = new TarStreamPool(
+      conf.getInt(CONF_STREAM_POOL_SIZE, DEFAULT_STREAM_POOL_SIZE),
+      conf.getLong(CONF_STREAM_POOL_IDLE_TIMEOUT,
+        DEFAULT_STREAM_POOL_IDLE_TIMEOUT));
+
+    this.parsedPaths = Collections.synchronizedMap(new PathCache(
+      conf.getInt(CONF_PATH_CACHE_SIZE, DEFAULT_PATH_CACHE_SIZE)));
 
     initURI(name, conf);
     setConf(conf);
@@ -97,13 +161,59 @@ public class TarFileSystem extends FileSystem {
     return uri;
   }
 
-  private String getFileInArchive(Path tarPath) {
-    String fullUri = tarPath.toUri().toString();
-    int i = fullUri.indexOf(TAR_INFILESEP);
-    if (i == -1)
-      return null;
-    return fullUri.substring(i + 1)
-      .replaceAll(TAR_INFILESEP_STR, Path.SEPARATOR);
+  TarStreamPool getStreamPool() {
+    return streamPool;
+  }
+
+  /**
+   * The index of the tar a path is in. Paths into any tar on the authority
+   * of this file system can be used, each tar gets its own index.
+   */
+  TarIndex getIndex(Path f) throws IOException {
+    return getTarIndex(resolve(f).getBaseTar());
+  }
+
+  /**
+   * The index of a tar, given its path on the underlying file system. The
+   * index is looked up in {@link TarIndexCache} every time, so a tar that
+   * was replaced or appended to gets a new one.
+   */
+  private TarIndex getTarIndex(Path baseTar) throws IOException {
+    return getTarIndex(baseTar, underlyingFS.getFileStatus(baseTar));
+  }
+
+  /**
+   * Like {@link #getTarIndex(Path)}, given the status of the tar as it is
+   * now
+   */
+  private TarIndex getTarIndex(Path baseTar, FileStatus underlying)
+      throws IOException {
+    return TarIndexCache.getInstance().getIndex(
+      underlyingFS, baseTar, underlying, true, getConf());
+  }
+
+  /**
+   * Like {@link #getTarIndex(Path)}, but without asking for the status of
+   * the tar if it was found unchanged lately, see
+   * {@link #CONF_INDEX_RECHECK_INTERVAL}
+   */
+  private TarIndex getRecentTarIndex(Path baseTar) throws IOException {
+    TarIndex index = TarIndexCache.getInstance().getRecentIndex(
+      underlyingFS, baseTar, getRecheckInterval());
+    return index != null ? index : getTarIndex(baseTar);
+  }
+
+  private long getRecheckInterval() {
+    return getConf().getLong(CONF_INDEX_RECHECK_INTERVAL,
+      DEFAULT_INDEX_RECHECK_INTERVAL);
+  }
+
+  FileSystem getUnderlyingFS() {
+    return underlyingFS;
+  }
+
+  static String getFileInArchive(Path tarPath) {
+    return TarPath.getMember(tarPath.toUri());
   }
 
   /**
@@ -113,138 +223,485 @@ public class TarFileSystem extends FileSystem {
    * @return
    * @throws URISyntaxException
    */
-  private Path getBaseTarPath(Path tarPath) {
-    URI uri = tarPath.toUri();
+  static Path getBaseTarPath(Path tarPath) {
+    return TarPath.getBaseTarPath(tarPath.toUri());
+  }
 
-    // form the prefix part
-    String basePrefix = uri.getAuthority();
-    if (basePrefix != null)
-      basePrefix = basePrefix.replaceFirst("-", "://");
+  private Path makeAbsolute(Path path) {
+    URI pathUri = path.toUri();
+    if (TAR_SCHEME.equals(pathUri.getScheme()))
+      return path;
     else
-      basePrefix = "";
+      return new Path(getUri() + pathUri.toString());
+  }
 
-    // form the path component
-    String basePath = uri.getPath();
-    // strip the part containing inFile name
-    int lastPlusIndex = basePath.indexOf(TAR_INFILESEP);
-    if (lastPlusIndex != -1)
-      basePath = basePath.substring(0, lastPlusIndex);
+  /**
+   * Paths parsed lately, the least recently used one dropped first
+   */
+  private static class PathCache extends LinkedHashMap<Path, TarPath> {
+    private static final long serialVersionUID = 1L;
 
-    basePath = basePrefix + basePath;
+    private final int maxSize;
+
+    PathCache(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
 
-    return new Path(basePath);
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Path, TarPath> e) {
+      return size() > maxSize;
+    }
   }
 
-  private Path makeAbsolute(Path path) {
-    String pathStr = path.toUri().toASCIIString();
-    if (pathStr.startsWith(TAR_URLPREFIX))
-      return path;
-    else
-      return new Path(getUri() + path.toUri().toString());
+  /**
+   * A path of this file system, made absolute and parsed. The last paths
+   * parsed are cached, as the same path is often used again, e.g. to open a
+   * file just listed.
+   */
+  TarPath resolve(Path f) {
+    TarPath p = parsedPaths.get(f);
+    if (p == null) {
+      p = TarPath.parse(makeAbsolute(f));
+      parsedPaths.put(f, p);
+    }
+    return p;
   }
 
   @Override
   public FSDataInputStream open(Path f, int bufferSize) throws IOException {
 
-    Path baseTarPath = getBaseTarPath(f);
-    String inFile = getFileInArchive(f);
+    TarPath p = resolve(f);
+    Path baseTarPath = p.getBaseTar();
+    String inFile = p.getMember();
 
     if (inFile == null)
       throw new IOException("TAR FileSystem: Can not open the whole TAR");
 
+    FileStatus underlying = underlyingFS.getFileStatus(baseTarPath);
+    TarIndex index = getTarIndex(baseTarPath, underlying);
     // adjust for the header
     long offset = index.getOffset(inFile);
     long size = index.getSize(inFile);
 
-    FSDataInputStream in = underlyingFS.open(baseTarPath);
+    boolean check = needsHeaderCheck(index);
+    FSDataInputStream in = borrowTar(baseTarPath, underlying, index);
+    boolean opened = false;
+    try {
+      if (index.getBlockIndex() != null)
+        in.setReadahead(check ? size + 512 : size);
 
-    in.seek(offset - 512);
-    TarArchiveEntry entry = readHeaderEntry(in);
-    if (!entry.getName().equals(inFile)) {
-      LOG.fatal(
-        "Index file is corrupt." +
-          "Requested filename is present in index " +
-          "but absent in TAR.");
-      throw new IOException("Requested filename does not match ");
+      if (check) {
+        in.seek(offset - 512);
+        byte[] header = new byte[512];
+        readHeaderBuffer(in, header);
+        if (!index.checkHeader(index.getEntryId(inFile), header)) {
+          LOG.fatal(
+            "Index file is corrupt." +
+              "Requested filename is present in index " +
+              "but absent in TAR.");
+          throw new IOException("Requested filename does not match ");
+        }
+      }
+
+      FSDataInputStream file = new FSDataInputStream(
+        new BufferedTarInputStream(
+          new SeekableTarInputStream(in, size, offset),
+          bufferSize));
+      opened = true;
+      return file;
+    } finally {
+      // a stream that failed is not given back to the pool
+      if (!opened)
+        TarStreamPool.discard(in);
     }
+  }
+
+  /**
+   * Whether to read the header of the next file opened and check it against
+   * the index. Always, unless the index is trusted.
+   */
+  private boolean needsHeaderCheck(TarIndex index) {
+    if (!getConf().getBoolean(CONF_INDEX_TRUSTED, false)
+        || !index.isTrusted())
+      return true;
+    int interval = getConf().getInt(CONF_INDEX_VERIFY_INTERVAL,
+      DEFAULT_INDEX_VERIFY_INTERVAL);
+    return interval > 0 && opens.incrementAndGet() % interval == 0;
+  }
 
-    return new FSDataInputStream(
-      new BufferedFSInputStream(
-        new SeekableTarInputStream(in, size, offset),
-        bufferSize));
+  /**
+   * Opens the tar. For a compressed tar, the stream is over the uncompressed
+   * content, so that offsets in the index can be used as they are. Blocks of
+   * a bzip2 or xz compressed tar are decompressed on a pool shared by the
+   * streams of this file system.
+   */
+  FSDataInputStream openTar(Path baseTarPath) throws IOException {
+    return openTar(baseTarPath, getTarIndex(baseTarPath));
   }
 
-  private TarArchiveEntry readHeaderEntry(InputStream is)
-    throws IOException {
-    byte[] buffer = new byte[512];
-    readHeaderBuffer(is, buffer);
-    return new TarArchiveEntry(buffer);
+  private FSDataInputStream openTar(Path baseTarPath, TarIndex index)
+      throws IOException {
+    CompressedBlockIndex blockIndex = index.getBlockIndex();
+    if (blockIndex != null) {
+      int threads = TarIndex.getDecompressThreads(getConf());
+      synchronized (this) {
+        if (decompressPool == null)
+          decompressPool = ParallelBlockInputStream.newPool(threads);
+      }
+      return new FSDataInputStream(new ParallelBlockInputStream(
+          underlyingFS, baseTarPath, BlockCodec.forId(blockIndex.getCodec()),
+          blockIndex, decompressPool, threads));
+    }
+
+    FSDataInputStream in = underlyingFS.open(baseTarPath);
+    GzipCheckpointIndex gzipIndex = index.getGzipIndex();
+    if (gzipIndex == null)
+      return in;
+
+    try {
+      return new FSDataInputStream(new SeekableGzipInputStream(in, gzipIndex));
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
   }
 
-  private TarArchiveEntry readHeaderEntry(InputStream is, byte[] buffer)
-    throws IOException {
-    readHeaderBuffer(is, buffer);
-    return new TarArchiveEntry(buffer);
+  /**
+   * Like {@link #openTar(Path)}, but takes an idle stream from the pool when
+   * there is one over the same version of the tar. Closing the returned
+   * stream gives it back to the pool.
+   *
+   * @param underlying the status of the tar the index is for
+   */
+  FSDataInputStream borrowTar(Path baseTarPath, FileStatus underlying,
+      TarIndex index) throws IOException {
+    FSDataInputStream in = streamPool.take(baseTarPath, underlying);
+    if (in == null)
+      in = openTar(baseTarPath, index);
+    return streamPool.lend(baseTarPath, underlying, in);
   }
 
   private void readHeaderBuffer(InputStream is, byte[] buffer)
     throws IOException {
-    int bytesRead = is.read(buffer);
-    if (bytesRead == -1)
+    int bytesRead = 0;
+    while (bytesRead < 512) {
+      int n = is.read(buffer, bytesRead, 512 - bytesRead);
+      if (n == -1)
+        break;
+      bytesRead += n;
+    }
+    if (bytesRead == 0)
       throw new IOException("EOF Occurred while reading buffer.");
     if (bytesRead < 512)
       throw new IOException("Could not read the full header.");
   }
 
+  /**
+   * Lists a directory of the tar, or the tar itself, in the order of the tar.
+   * Takes time in the number of entries listed only.
+   */
   @Override
   public FileStatus[] listStatus(Path f) throws IOException {
-    ArrayList<FileStatus> ret = new ArrayList<FileStatus>();
-    Path abs = makeAbsolute(f);
-    Path baseTar = getBaseTarPath(abs);
-    String inFile = getFileInArchive(abs);
+    Listing listing = new Listing(f);
+    FileStatus[] ret = new FileStatus[listing.size()];
+    for (int i = 0; i < ret.length; i++)
+      ret[i] = listing.get(i);
+    return ret;
+  }
+
+  /**
+   * Like {@link #listStatus(Path)}, but makes the status of each entry only
+   * as it is iterated over, so that listing a directory of millions of files
+   * does not hold them all. Overrides the method of the Hadoop versions that
+   * have it.
+   */
+  public RemoteIterator<FileStatus> listStatusIterator(final Path f)
+      throws IOException {
+    final Listing listing = new Listing(f);
+    return new RemoteIterator<FileStatus>() {
+      private int i = 0;
+
+      @Override
+      public boolean hasNext() {
+        return i < listing.size();
+      }
+
+      @Override
+      public FileStatus next() throws IOException {
+        if (!hasNext())
+          throw new NoSuchElementException("No more entries in " + f);
+        return listing.get(i++);
+      }
+    };
+  }
+
+  /**
+   * A directory of the tar, or a file in it, to be listed. Statuses are made
+   * from the index on demand.
+   */
+  private class Listing {
+    final TarPath path;
+    final Path abs;
+    final FileStatus underlying;
+    final TarIndex index;
+    /** the file listed as itself, -1 for a directory */
+    final int file;
+    final TarDirectoryTree tree;
+    final int dir;
+
+    Listing(Path f) throws IOException {
+      path = resolve(f);
+      abs = path.getPath();
+      String inFile = path.getMember();
+      underlying = underlyingFS.getFileStatus(path.getBaseTar());
+      index = getTarIndex(path.getBaseTar(), underlying);
+
+      file = inFile != null ? index.lookup(inFile) : -1;
+      if (file != -1) {
+        tree = null;
+        dir = -1;
+      } else {
+        tree = index.getDirectoryTree();
+        dir = getDirId(tree, inFile, abs);
+      }
+    }
+
+    int size() {
+      return file != -1 ? 1 : tree.getChildCount(dir);
+    }
+
+    /** The status of the i-th entry */
+    FileStatus get(int i) {
+      if (file != -1)
+        return toFileStatus(index, file, underlying, abs);
+      int child = tree.getChild(dir, i);
+      if (TarDirectoryTree.isDir(child)) {
+        String name = tree.getPath(TarDirectoryTree.decodeDir(child));
+        return toDirStatus(underlying, path.getMemberPath(name));
+      }
+      return toFileStatus(index, child, underlying,
+        path.getMemberPath(index.getName(child)));
+    }
+
+    /** The file id of the i-th entry, -1 for a directory */
+    int getFileId(int i) {
+      if (file != -1)
+        return file;
+      int child = tree.getChild(dir, i);
+      return TarDirectoryTree.isDir(child) ? -1 : child;
+    }
+  }
+
+  /**
+   * The directory a path inside the tar names
+   *
+   * @throws FileNotFoundException if there is no such directory
+   */
+  private int getDirId(TarDirectoryTree tree, String inFile, Path abs)
+      throws FileNotFoundException {
+    int dir = inFile == null ? TarDirectoryTree.ROOT : tree.getDirId(inFile);
+    if (dir == -1)
+      throw new FileNotFoundException("No such file or directory: " + abs);
+    return dir;
+  }
+
+  /**
+   * Receives the files of a tar, in the order they are stored, from
+   * {@link TarFileSystem#scan(Path, Visitor)}.
+   */
+  public interface Visitor {
+    /**
+     * @param in content of the file. Only valid until this returns; whatever
+     *          is not read is skipped.
+     * @return false to stop the scan
+     */
+    boolean visit(FileStatus status, InputStream in) throws IOException;
+  }
+
+  /**
+   * Reads all the files of a tar, the files under a directory inside it, or
+   * the single file a path points to, in one pass over the tar and in the
+   * order they are stored. Unlike calling {@link #open(Path)} for every
+   * file, the tar is opened once and read sequentially through a large
+   * buffer, and no header is read again.
+   *
+   * @throws FileNotFoundException if the tar has no such file or directory
+   */
+  public void scan(Path f, Visitor visitor) throws IOException {
+    TarPath p = resolve(f);
+    Path baseTar = p.getBaseTar();
+    String inFile = p.getMember();
     FileStatus underlying = underlyingFS.getFileStatus(baseTar);
 
-    // if subfile exists in the path, just return the status of that
-    if (inFile != null) {
-      ret.add(getFileStatus(abs));
+    TarIndex index = getTarIndex(baseTar, underlying);
+    int[] ids = getFileIds(index, p);
+    boolean single = inFile != null && index.lookup(inFile) != -1;
+    if (ids.length == 0)
+      return;
+
+    FSDataInputStream tar = borrowTar(baseTar, underlying, index);
+    try {
+      // a pooled stream may be anywhere in the tar
+      long pos = index.getOffset(ids[0]);
+      tar.seek(pos);
+      InputStream in = new BufferedInputStream(tar,
+        getConf().getInt(CONF_SCAN_BUFFER_SIZE, DEFAULT_SCAN_BUFFER_SIZE));
+
+      for (int i = 0; i < ids.length; i++) {
+        int id = ids[i];
+        long offset = index.getOffset(id);
+        skipFully(in, offset - pos);
+
+        MemberInputStream member =
+          new MemberInputStream(in, index.getSize(id));
+        boolean more = visitor.visit(toFileStatus(index, id, underlying,
+          single ? p.getPath()
+            : p.getMemberPath(index.getName(id))), member);
+        member.close();
+        skipFully(in, member.remaining);
+        pos = offset + index.getSize(id);
+        if (!more)
+          break;
+      }
+    } finally {
+      tar.close();
     }
+  }
 
-    else {
-      FSDataInputStream in = underlyingFS.open(baseTar);
-      try {
-        byte[] buffer = new byte[512];
-
-        for (long offset : index.getOffsetList()) {
-          in.seek(offset - 512); // adjust for the header
-          TarArchiveEntry entry = readHeaderEntry(in, buffer);
-          // Construct a FileStatus object
-          FileStatus fstatus = new FileStatus(
-            entry.getSize(),
-            entry.isDirectory(),
-            (int) underlying.getReplication(),
-            underlying.getBlockSize(),
-            entry.getModTime().getTime(),
-            underlying.getAccessTime(),
-            new FsPermission((short) entry.getMode()),
-            entry.getUserName(),
-            entry.getGroupName(),
-            new Path(
-              abs.toUri().toASCIIString()
-                + Path.SEPARATOR
-                + TAR_INFILESEP
-                + entry.getName()
-                  .replaceAll(Path.SEPARATOR, TAR_INFILESEP_STR)));
-          ret.add(fstatus);
-        }
-      } finally {
-        IOUtils.closeQuietly(in);
+  /**
+   * The files a path names, in the order of the tar: the file itself, the
+   * files under a directory at any depth, or all the files of the tar
+   *
+   * @throws FileNotFoundException if the tar has no such file or directory
+   */
+  int[] getFileIds(TarIndex index, TarPath p) throws FileNotFoundException {
+    String inFile = p.getMember();
+    if (inFile == null) {
+      int[] ids = new int[index.getEntryCount()];
+      for (int i = 0; i < ids.length; i++)
+        ids[i] = index.getIdByOffset(i);
+      return ids;
+    }
+
+    int id = index.lookup(inFile);
+    if (id != -1)
+      return new int[] { id };
+    TarDirectoryTree tree = index.getDirectoryTree();
+    int[] ids = tree.getFiles(getDirId(tree, inFile, p.getPath()));
+    index.sortByOffset(ids);
+    return ids;
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() == -1)
+          throw new EOFException("Unexpected end of tar");
+        skipped = 1;
       }
+      n -= skipped;
     }
+  }
 
-    // copy back
-    FileStatus[] retArray = new FileStatus[ret.size()];
-    ret.toArray(retArray);
-    return retArray;
+  /**
+   * A file inside the tar, read from the stream a scan goes through
+   */
+  private static class MemberInputStream extends InputStream {
+    private final InputStream in;
+    private long remaining;
+    private boolean closed = false;
+
+    MemberInputStream(InputStream in, long size) {
+      this.in = in;
+      this.remaining = size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (closed || remaining <= 0)
+        return -1;
+      int b = in.read();
+      if (b == -1)
+        throw new EOFException("Unexpected end of tar");
+      remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (closed || remaining <= 0)
+        return -1;
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n == -1)
+        throw new EOFException("Unexpected end of tar");
+      remaining -= n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      if (closed || n <= 0)
+        return 0;
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      if (closed)
+        return 0;
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    /**
+     * Leaves the tar open, the scan goes on with the next file
+     */
+    @Override
+    public void close() {
+      closed = true;
+    }
+  }
+
+  /**
+   * Constructs a FileStatus for a file inside the tar purely from the index.
+   * Replication, block size and access time come from the tar itself.
+   */
+  private FileStatus toFileStatus(TarIndex index, int id,
+      FileStatus underlying, Path path) {
+    return new FileStatus(
+      index.getSize(id),
+      false,
+      (int) underlying.getReplication(),
+      underlying.getBlockSize(),
+      index.getModTime(id),
+      underlying.getAccessTime(),
+      new FsPermission((short) index.getMode(id)),
+      index.getUserName(id),
+      index.getGroupName(id),
+      path);
+  }
+
+  /**
+   * Constructs a FileStatus for a directory inside the tar. Directories are
+   * not indexed, so they take the times, permission and owner of the tar.
+   */
+  private FileStatus toDirStatus(FileStatus underlying, Path path) {
+    return new FileStatus(
+      0,
+      true,
+      underlying.getReplication(),
+      underlying.getBlockSize(),
+      underlying.getModificationTime(),
+      underlying.getAccessTime(),
+      underlying.getPermission(),
+      underlying.getOwner(),
+      underlying.getGroup(),
+      path);
   }
 
   @Override
@@ -261,9 +718,10 @@ public class TarFileSystem extends FileSystem {
   @Override
   public FileStatus getFileStatus(Path f) throws IOException {
     FileStatus fstatus = null;
-    Path abs = makeAbsolute(f);
-    Path baseTar = getBaseTarPath(abs);
-    String inFile = getFileInArchive(abs);
+    TarPath p = resolve(f);
+    Path abs = p.getPath();
+    Path baseTar = p.getBaseTar();
+    String inFile = p.getMember();
 
     FileStatus underlying = underlyingFS.getFileStatus(baseTar);
 
@@ -281,40 +739,339 @@ public class TarFileSystem extends FileSystem {
         underlying.getGroup(),
         abs);
     } else {
-      long offset = index.getOffset(inFile);
+      TarIndex index = getTarIndex(baseTar, underlying);
+      int id = index.lookup(inFile);
+      if (id >= 0) {
+        fstatus = toFileStatus(index, id, underlying, abs);
+      } else if (index.mayContain(inFile)
+          && index.getDirectoryTree().getDirId(inFile) != -1) {
+        fstatus = toDirStatus(underlying, abs);
+      } else {
+        throw new FileNotFoundException("Requested file \"" + inFile
+          + "\" does not exist inside tar.");
+      }
+    }
 
-      FSDataInputStream in = underlyingFS.open(baseTar);
-      try {
-        in.seek(offset - 512);
-        TarArchiveEntry entry = readHeaderEntry(in);
+    return fstatus;
+  }
 
-        if (!entry.getName().equals(inFile)) {
-          LOG.fatal(
-            "Index file is corrupt." +
-              "Requested filename is present in index " +
-              "but absent in TAR.");
-          throw new IOException("NBU-TAR: FATAL: entry file name " +
-            "does not match requested file name");
+  /** What a path is, see {@link #getKind(Path)} */
+  private static final int ABSENT = 0;
+  private static final int FILE = 1;
+  private static final int DIRECTORY = 2;
+
+  /**
+   * Whether a path is a file, a directory or nothing, from the index alone.
+   * Unlike {@link #getFileStatus(Path)}, the status of the tar is only asked
+   * for if it was not found unchanged in the last
+   * {@link #CONF_INDEX_RECHECK_INTERVAL} ms. Names that are not in the tar
+   * are mostly turned down by the filter of the index, without searching
+   * the names or building the directory tree.
+   */
+  private int getKind(Path f) throws IOException {
+    TarPath p = resolve(f);
+    String inFile = p.getMember();
+    try {
+      if (inFile == null) {
+        // without loading the index, if there is none yet
+        return TarIndexCache.getInstance().getRecentIndex(underlyingFS,
+          p.getBaseTar(), getRecheckInterval()) != null
+          || underlyingFS.exists(p.getBaseTar()) ? DIRECTORY : ABSENT;
+      }
+
+      TarIndex index = getRecentTarIndex(p.getBaseTar());
+      if (!index.mayContain(inFile))
+        return ABSENT;
+      int id = index.lookup(inFile);
+      if (id != -1)
+        return FILE;
+      return index.getDirectoryTree().getDirId(inFile) != -1 ? DIRECTORY
+        : ABSENT;
+    } catch (FileNotFoundException e) {
+      // no such tar
+      return ABSENT;
+    }
+  }
+
+  /**
+   * Counts the files and directories under a path, and adds up their
+   * length, from the totals of the directory tree. Nothing is listed.
+   */
+  @Override
+  public ContentSummary getContentSummary(Path f) throws IOException {
+    TarPath p = resolve(f);
+    String inFile = p.getMember();
+    TarIndex index = getTarIndex(p.getBaseTar());
+
+    int id = inFile != null ? index.lookup(inFile) : -1;
+    if (id != -1)
+      return new ContentSummary(index.getSize(id), 1, 0);
+
+    TarDirectoryTree tree = index.getDirectoryTree();
+    int dir = getDirId(tree, inFile, p.getPath());
+    return new ContentSummary(tree.getLength(dir), tree.getFileCount(dir),
+      tree.getSubdirCount(dir));
+  }
+
+  @Override
+  public boolean exists(Path f) throws IOException {
+    return getKind(f) != ABSENT;
+  }
+
+  @Override
+  public boolean isFile(Path f) throws IOException {
+    return getKind(f) == FILE;
+  }
+
+  @Override
+  public boolean isDirectory(Path f) throws IOException {
+    return getKind(f) == DIRECTORY;
+  }
+
+  /**
+   * Locations of a range of a file inside the tar are the locations of the
+   * blocks of the tar that hold it, with offsets relative to the file.
+   */
+  @Override
+  public BlockLocation[] getFileBlockLocations(FileStatus file, long start,
+      long len) throws IOException {
+    if (file == null)
+      return null;
+    if (start < 0 || len < 0)
+      throw new IllegalArgumentException("Invalid start or len parameter");
+
+    TarPath p = resolve(file.getPath());
+    String inFile = p.getMember();
+    if (inFile == null || file.getLen() <= start)
+      return new BlockLocation[0];
+
+    FileStatus underlying = underlyingFS.getFileStatus(p.getBaseTar());
+    TarIndex index = getTarIndex(p.getBaseTar(), underlying);
+    int id = index.getEntryId(inFile);
+    long from = index.getOffset(id) + start;
+    long to = index.getOffset(id) + rangeEnd(index.getSize(id), start, len);
+    long cFrom = index.getCompressedStart(from);
+    long cTo = Math.min(index.getCompressedEnd(to), underlying.getLen());
+
+    BlockLocation[] tarLocations = underlyingFS.getFileBlockLocations(
+      underlying, cFrom, Math.max(cTo - cFrom, 1));
+    return getMemberBlockLocations(index, id, start, len, tarLocations);
+  }
+
+  /**
+   * Picks the locations of a range of a file inside the tar out of the
+   * locations of the tar. For a compressed tar, the boundaries between
+   * blocks of the tar are moved to where decompression can start.
+   *
+   * @param tarLocations locations of the tar in offset order, as file
+   *          systems return them, covering at least the range. Only the
+   *          ones that overlap the range are looked at.
+   */
+  BlockLocation[] getMemberBlockLocations(TarIndex index, int id,
+      long start, long len, BlockLocation[] tarLocations) throws IOException {
+    long offset = index.getOffset(id);
+    long size = index.getSize(id);
+    long from = offset + start;
+    long to = offset + rangeEnd(size, start, len);
+    long cFrom = index.getCompressedStart(from);
+    long cTo = index.getCompressedEnd(to);
+    long cLimit = Math.max(cTo, cFrom + 1);
+
+    ArrayList<BlockLocation> ret = new ArrayList<BlockLocation>();
+    for (int i = firstBlockEndingAfter(tarLocations, cFrom);
+        i < tarLocations.length; i++) {
+      BlockLocation loc = tarLocations[i];
+      if (loc.getOffset() >= cLimit)
+        break;
+      long cEnd = loc.getOffset() + loc.getLength();
+      if (cEnd <= cFrom)
+        continue;
+
+      long lo = Math.max(from, index.getUncompressedStart(loc.getOffset()));
+      long hi = Math.min(to, index.getUncompressedStart(cEnd));
+      if (ret.isEmpty())
+        lo = from;
+      if (hi <= lo && !(ret.isEmpty() && from == to))
+        continue;
+
+      ret.add(new BlockLocation(
+        loc.getNames(),
+        loc.getHosts(),
+        loc.getCachedHosts(),
+        loc.getTopologyPaths(),
+        lo - offset,
+        Math.max(hi - lo, 0),
+        loc.isCorrupt()));
+    }
+
+    // the last block reaches the end of the range
+    if (!ret.isEmpty()) {
+      BlockLocation last = ret.get(ret.size() - 1);
+      last.setLength(to - offset - last.getOffset());
+    }
+
+    BlockLocation[] retArray = new BlockLocation[ret.size()];
+    ret.toArray(retArray);
+    return retArray;
+  }
+
+  /**
+   * End of the range [start, start + len) of a file of the given size,
+   * without overflowing for a len like Long.MAX_VALUE
+   */
+  private static long rangeEnd(long size, long start, long len) {
+    return len >= size - start ? size : start + len;
+  }
+
+  /**
+   * Index of the first of the locations, in offset order, that ends after
+   * pos; locations.length if there is none
+   */
+  private static int firstBlockEndingAfter(BlockLocation[] locations,
+      long pos) {
+    int lo = 0;
+    int hi = locations.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (locations[mid].getOffset() + locations[mid].getLength() <= pos)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * Lists files with their locations as they are iterated over, asking the
+   * underlying file system for the locations of the tar only once.
+   */
+  @Override
+  protected RemoteIterator<LocatedFileStatus> listLocatedStatus(final Path f,
+      final PathFilter filter) throws IOException {
+    final Listing listing = new Listing(f);
+    final BlockLocation[] tarLocations = underlyingFS.getFileBlockLocations(
+      listing.underlying, 0, listing.underlying.getLen());
+
+    return new RemoteIterator<LocatedFileStatus>() {
+      private int i = 0;
+      private LocatedFileStatus next = null;
+
+      @Override
+      public boolean hasNext() throws IOException {
+        while (next == null && i < listing.size()) {
+          FileStatus status = listing.get(i);
+          int id = listing.getFileId(i++);
+          if (!filter.accept(status.getPath()))
+            continue;
+          BlockLocation[] locations = id == -1 ? null
+            : getMemberBlockLocations(listing.index, id, 0, status.getLen(),
+              tarLocations);
+          next = new LocatedFileStatus(status, locations);
         }
+        return next != null;
+      }
 
-        // Construct a FileStatus object
-        fstatus = new FileStatus(
-          entry.getSize(),
-          entry.isDirectory(),
-          (int) underlying.getReplication(),
-          underlying.getBlockSize(),
-          entry.getModTime().getTime(),
-          underlying.getAccessTime(),
-          new FsPermission((short) entry.getMode()),
-          entry.getUserName(),
-          entry.getGroupName(),
-          abs);
-      } finally {
-        IOUtils.closeQuietly(in);
+      @Override
+      public LocatedFileStatus next() throws IOException {
+        if (!hasNext())
+          throw new NoSuchElementException("No more entries in " + f);
+        LocatedFileStatus ret = next;
+        next = null;
+        return ret;
       }
+    };
+  }
+
+  /**
+   * Lists the files under a directory of the tar as they are iterated over.
+   * All the files of the tar are walked in the order of the tar, straight
+   * from the index; the files under a subdirectory are walked depth first
+   * down the directory tree. The locations of the tar are asked for only
+   * once.
+   */
+  @Override
+  public RemoteIterator<LocatedFileStatus> listFiles(final Path f,
+      final boolean recursive) throws IOException {
+    final TarPath p = resolve(f);
+    String inFile = p.getMember();
+    final FileStatus underlying = underlyingFS.getFileStatus(p.getBaseTar());
+    final BlockLocation[] tarLocations = underlyingFS.getFileBlockLocations(
+      underlying, 0, underlying.getLen());
+    final TarIndex index = getTarIndex(p.getBaseTar(), underlying);
+
+    if (inFile == null && recursive) {
+      // needs no directory tree
+      return new RemoteIterator<LocatedFileStatus>() {
+        private int rank = 0;
+
+        @Override
+        public boolean hasNext() {
+          return rank < index.getEntryCount();
+        }
+
+        @Override
+        public LocatedFileStatus next() throws IOException {
+          if (!hasNext())
+            throw new NoSuchElementException("No more files in " + f);
+          return toLocatedStatus(index, index.getIdByOffset(rank++),
+            underlying, p, tarLocations);
+        }
+      };
     }
 
-    return fstatus;
+    final int single = inFile != null ? index.lookup(inFile) : -1;
+    final TarDirectoryTree tree = single != -1 ? null
+      : index.getDirectoryTree();
+    final int top = single != -1 ? -1 : getDirId(tree, inFile, p.getPath());
+
+    return new RemoteIterator<LocatedFileStatus>() {
+      /** directories being walked, and the next child of each */
+      private int[] dirs = { top };
+      private int[] nexts = { 0 };
+      private int depth = single != -1 ? -1 : 0;
+      private int file = single;
+
+      @Override
+      public boolean hasNext() {
+        while (file == -1 && depth >= 0) {
+          int dir = dirs[depth];
+          if (nexts[depth] == tree.getChildCount(dir)) {
+            depth--;
+            continue;
+          }
+          int child = tree.getChild(dir, nexts[depth]++);
+          if (!TarDirectoryTree.isDir(child)) {
+            file = child;
+          } else if (recursive) {
+            if (++depth == dirs.length) {
+              dirs = Arrays.copyOf(dirs, depth * 2);
+              nexts = Arrays.copyOf(nexts, depth * 2);
+            }
+            dirs[depth] = TarDirectoryTree.decodeDir(child);
+            nexts[depth] = 0;
+          }
+        }
+        return file != -1;
+      }
+
+      @Override
+      public LocatedFileStatus next() throws IOException {
+        if (!hasNext())
+          throw new NoSuchElementException("No more files in " + f);
+        int id = file;
+        file = -1;
+        return toLocatedStatus(index, id, underlying, p, tarLocations);
+      }
+    };
+  }
+
+  private LocatedFileStatus toLocatedStatus(TarIndex index, int id,
+      FileStatus underlying, TarPath p, BlockLocation[] tarLocations)
+      throws IOException {
+    FileStatus status = toFileStatus(index, id, underlying,
+      p.getMemberPath(index.getName(id)));
+    return new LocatedFileStatus(status, getMemberBlockLocations(
+      index, id, 0, status.getLen(), tarLocations));
   }
 
   /*
@@ -358,4 +1115,15 @@ public class TarFileSystem extends FileSystem {
     throw new IOException(notSupportedMsg("Mkdir"));
   }
 
+  @Override
+  public void close() throws IOException {
+    if (streamPool != null)
+      streamPool.close();
+    synchronized (this) {
+      if (decompressPool != null)
+        decompressPool.shutdown();
+    }
+    super.close();
+  }
+
 }
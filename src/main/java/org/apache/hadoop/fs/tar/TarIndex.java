@@ -17,45 +17,193 @@
  */
 package org.apache.hadoop.fs.tar;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Scanner;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.security.AccessControlException;
 
 /**
  * Creates a Index out of a Tar file. Also stores the index in a index file.
+ * <br/>
+ * In memory, the index is a set of primitive columns indexed by an entry id.
+ * Entries are sorted by the UTF-8 bytes of their name, and all names are
+ * packed into one buffer, so a lookup is a binary search that does not
+ * allocate. The order of entries by offset is computed once, when the index
+ * is built, and is kept in the index file. <br/>
+ * The index file is written in a binary format (see {@link #writeIndex}).
+ * Index files in the older text format are still read, and are upgraded to
+ * the binary format when they are found. <br/>
+ * A gzip compressed tar is indexed by its uncompressed offsets, and gets a
+ * {@link GzipCheckpointIndex} next to the index file. A bzip2 or xz
+ * compressed tar gets a {@link CompressedBlockIndex} instead. <br/>
+ * The index records the length and modification time of the tar it was
+ * built from, and a checksum of the header of every file. An index that
+ * still matches its tar is trusted (see {@link #isTrusted()}). An index that
+ * no longer does is rebuilt when it is loaded. If the tar only grew, as
+ * with <code>tar -r</code>, just the part after the indexed end of the
+ * archive is scanned.
  *
  * @author joydip
  *
  */
 public class TarIndex {
 
-  private HashMap<String, IndexEntry> index = new HashMap<String, IndexEntry>();
-
   public static final Log LOG = LogFactory.getLog(TarIndex.class);
   public static final String INDEX_EXT = ".index";
 
-  private static class IndexEntry {
+  /** Keep the name table in a direct buffer, outside the java heap */
+  public static final String CONF_INDEX_OFFHEAP = "tarfs.index.offheap";
 
-    long size;
-    long offset;
+  /**
+   * Uncompressed bytes between two gzip checkpoints. Smaller values make
+   * opening a file inside a .tar.gz faster, and the gzip index larger.
+   */
+  public static final String CONF_GZIP_CHECKPOINT_SPACING =
+      "tarfs.gzip.checkpoint.spacing";
+  public static final long DEFAULT_GZIP_CHECKPOINT_SPACING = 4 * 1024 * 1024;
 
-    public IndexEntry(long size, long offset) {
-      this.size = size;
-      this.offset = offset;
-    }
-  }
+  /**
+   * Threads that decompress the blocks of a bzip2 or xz compressed tar.
+   * Defaults to the number of processors.
+   */
+  public static final String CONF_DECOMPRESS_THREADS =
+      "tarfs.decompress.threads";
+
+  /**
+   * Time in ms after which the lock of a process building an index, that
+   * did not renew it, is broken. 0 builds indexes without a lock.
+   */
+  public static final String CONF_INDEX_LOCK_TTL = "tarfs.index.lock.ttl";
+  public static final long DEFAULT_INDEX_LOCK_TTL = 10 * 60 * 1000;
+
+  /**
+   * Threads that scan an uncompressed tar for headers when it is indexed.
+   * With more than one, byte ranges of the tar are read in parallel (see
+   * {@link ParallelHeaderScanner}), which reads the whole tar instead of
+   * only its headers.
+   */
+  public static final String CONF_INDEX_SCAN_THREADS =
+      "tarfs.index.scan.threads";
+
+  /**
+   * Also scan the tar sequentially, and fail if the parallel scan found
+   * anything else
+   */
+  public static final String CONF_INDEX_SCAN_VALIDATE =
+      "tarfs.index.scan.validate";
+
+  /**
+   * Size of the buffer an uncompressed tar is scanned through when it is
+   * indexed by one thread (see {@link BufferedHeaderScanner}). Only files
+   * larger than it are seeked over. Pays off for tars of many small files,
+   * where it reads little more than the headers anyway. 0, the default,
+   * seeks from each header to the next.
+   */
+  public static final String CONF_INDEX_SCAN_BUFFER_SIZE =
+      "tarfs.index.scan.buffer.size";
+
+  /** Time in ms between two looks for an index another process builds */
+  public static final String CONF_INDEX_LOCK_POLL = "tarfs.index.lock.poll";
+  public static final long DEFAULT_INDEX_LOCK_POLL = 1000;
+
+  /**
+   * First bytes of a binary index file. The leading byte is not printable,
+   * so a text index can never start with it.
+   */
+  static final byte[] BINARY_MAGIC = { (byte) 0x89, 'T', 'I', 'X' };
+  static final int BINARY_VERSION = 1;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Offset of the type flag inside a tar header. {@link TarArchiveEntry} does
+   * not expose the raw flag, so it is read straight from the header.
+   */
+  private static final int TYPEFLAG_OFFSET = 156;
+
+  /*
+   * The index. All columns are indexed by entry id; entries are sorted by the
+   * UTF-8 bytes of their name. The name of entry i is the bytes
+   * [nameStarts[i], nameStarts[i + 1]) of nameBytes.
+   */
+  private int count = 0;
+  private ByteBuffer nameBytes = ByteBuffer.allocate(0);
+  private int[] nameStarts = new int[1];
+  private long[] sizes = new long[0];
+  private long[] offsets = new long[0];
+  private long[] modTimes = new long[0];
+  private int[] modes = new int[0];
+  private int[] userIds = new int[0];
+  private int[] groupIds = new int[0];
+  private byte[] types = new byte[0];
+  /** Distinct user and group names, referred to by userIds and groupIds */
+  private String[] owners = new String[0];
+  /** Entry ids in the order of their offset in the tar */
+  private int[] byOffset = new int[0];
+  /** CRC32 of the header of each entry, if headerCrcsKnown */
+  private int[] headerCrcs = new int[0];
+  private boolean headerCrcsKnown = false;
+  /** Names and directories of the tar, to turn down names not in it */
+  private NameBloomFilter nameFilter = null;
+
+  /** Length and modification time of the tar the index was built from */
+  private long tarLength = -1;
+  private long tarModTime = -1;
+  /**
+   * Offset right after the last header of the tar and its data, where the
+   * end of archive marker starts and where <code>tar -r</code> appends
+   */
+  private long scanEnd = -1;
+  /** The tar as it is now */
+  private final FileStatus tarStatus;
+
+  private final boolean offHeap;
+
+  /**
+   * An index file that exists but can not be used as it is, e.g. because it
+   * has no file metadata. It is replaced when the index is rebuilt.
+   */
+  private Path unusableIndexPath = null;
+
+  /** Set for a gzip compressed tar */
+  private final boolean gzip;
+  /** Where inflation can be resumed, for a gzip compressed tar */
+  private GzipCheckpointIndex gzipIndex = null;
+
+  /** Set for a bzip2 or xz compressed tar */
+  private final BlockCodec blockCodec;
+  /** Compressed blocks of a bzip2 or xz compressed tar */
+  private CompressedBlockIndex blockIndex = null;
+
+  /** Held while this process builds the index */
+  private IndexBuildLease lease = null;
+
+  /** Directories of the tar, built on first use */
+  private volatile TarDirectoryTree tree = null;
 
   public TarIndex(FileSystem fs, Path tarPath) throws IOException {
     this(fs, tarPath, true, new Configuration());
@@ -76,70 +224,514 @@ public class TarIndex {
   public TarIndex(FileSystem fs, Path tarPath, boolean isWrite,
       Configuration conf) throws IOException {
 
+    this.offHeap = conf.getBoolean(CONF_INDEX_OFFHEAP, false);
+    this.gzip = TarFSUtils.isGZ(fs, tarPath);
+    this.blockCodec = gzip ? null : BlockCodec.detect(fs, tarPath);
+    this.tarStatus = fs.getFileStatus(tarPath);
+
     Path indexPath = getIndexPath(tarPath);
     Path altIndexP = getAltIndexPath(tarPath, conf);
 
+    Path readFrom = indexPath;
     boolean readOK = false;
-    readOK = readIndexFile(fs, indexPath);
+    readOK = readIndexFile(fs, indexPath)
+        && readCompressionIndex(fs, indexPath);
 
-    if (readOK == false)
-      readOK = readIndexFile(fs, altIndexP);
+    if (readOK == false) {
+      readFrom = altIndexP;
+      readOK = readIndexFile(fs, altIndexP)
+          && readCompressionIndex(fs, altIndexP);
+    }
+
+    if (readOK && isStale()) {
+      readOK = false;
+      if (canAppend()) {
+        Path written = isWrite
+            ? awaitIndex(fs, tarPath, indexPath, altIndexP, conf) : null;
+        if (written != null) {
+          // another process brought the index up to date meanwhile
+          readOK = true;
+          readFrom = written;
+        } else {
+          try {
+            // waiting reads the index files again
+            if ((!isWrite || readIndexFile(fs, readFrom)) && canAppend()) {
+              LOG.info("Tar " + tarPath + " grew since it was indexed. "
+                  + "Indexing from offset " + scanEnd + ".");
+              readOK = appendEntries(fs, tarPath, conf);
+              if (readOK && isWrite && !writeIndex(fs, readFrom, true))
+                LOG.warn("Could not update index file " + readFrom);
+            }
+          } finally {
+            if (lease != null) {
+              lease.release();
+              lease = null;
+            }
+          }
+        }
+      }
+      if (!readOK) {
+        LOG.info("Tar " + tarPath + " changed since it was indexed. "
+            + "Rebuilding the index.");
+        unusableIndexPath = readFrom;
+        gzipIndex = null;
+        blockIndex = null;
+      }
+    }
+
+    if (readOK == false && isWrite) {
+      Path written = awaitIndex(fs, tarPath, indexPath, altIndexP, conf);
+      if (written != null) {
+        readOK = true;
+        readFrom = written;
+      }
+    }
 
     if (readOK == false) {
-      FSDataInputStream is = fs.open(tarPath);
-      byte[] buffer = new byte[512];
+      try {
+        build(fs, tarPath, conf);
 
-      while (true) {
-        int bytesRead = is.read(buffer);
-        if (bytesRead == -1)
-          break;
-        if (bytesRead < 512)
-          throw new IOException("Could not read the full header.");
-
-        long currOffset = is.getPos();
-        TarArchiveEntry entry = new TarArchiveEntry(buffer);
-
-        // Index only normal files. Do not support directories yet.
-        if (entry.isFile() && !entry.isDirectory()) {
-          String name = entry.getName().trim();
-          if (!name.equals("")) {
-            IndexEntry ie = new IndexEntry(entry.getSize(), currOffset);
-            index.put(name, ie);
+        if (isWrite) {
+          Path writtenTo = null;
+          if (writeIndexFiles(fs, indexPath,
+              indexPath.equals(unusableIndexPath)))
+            writtenTo = indexPath;
+          else if (altIndexP != null && writeIndexFiles(fs, altIndexP,
+              altIndexP.equals(unusableIndexPath)))
+            writtenTo = altIndexP;
+
+          if (writtenTo == null) {
+            Path p = altIndexP == null ? indexPath : altIndexP;
+
+            LOG.error("Could not create INDEX file " + p.toUri());
+            if (altIndexP == null)
+              LOG.error("You can specify alternate location for index" +
+                  " creation using tarfs.tmp.dir property.");
+
+            LOG.error("Skipping writing index file.");
           }
         }
+      } finally {
+        if (lease != null) {
+          lease.release();
+          lease = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Builds the index by reading all the headers of the tar
+   */
+  private void build(FileSystem fs, Path tarPath, Configuration conf)
+      throws IOException {
+    Builder builder = new Builder();
+    if (gzip) {
+      CheckpointedGzipInputStream is = new CheckpointedGzipInputStream(
+          fs.open(tarPath),
+          conf.getLong(CONF_GZIP_CHECKPOINT_SPACING,
+              DEFAULT_GZIP_CHECKPOINT_SPACING));
+      try {
+        scanEnd = scanEntries(is, builder, 0);
+      } finally {
+        is.close();
+      }
+      gzipIndex = is.getCheckpointIndex();
+    } else if (blockCodec != null) {
+      CompressedBlockIndex blocks = blockCodec.locateBlocks(fs, tarPath);
+      int threads = getDecompressThreads(conf);
+      ExecutorService pool = ParallelBlockInputStream.newPool(threads);
+      ParallelBlockInputStream is = new ParallelBlockInputStream(
+          fs, tarPath, blockCodec, blocks, pool, threads);
+      try {
+        scanEnd = scanEntries(is, builder, 0);
+      } finally {
+        is.close();
+        pool.shutdownNow();
+      }
+      if (!blocks.isComplete())
+        throw new IOException("Could not decompress all of " + tarPath);
+      blockIndex = blocks;
+    } else if (getScanThreads(conf) > 1) {
+      scanEnd = new ParallelHeaderScanner(fs, tarPath, tarStatus.getLen(),
+          getScanThreads(conf)).scan(builder);
+      if (conf.getBoolean(CONF_INDEX_SCAN_VALIDATE, false)) {
+        Builder reference = new Builder();
+        if (scanSequential(fs, tarPath, reference, conf) != scanEnd
+            || !reference.sameAs(builder))
+          throw new IOException("Parallel scan of " + tarPath
+              + " does not match the sequential scan");
+      }
+    } else {
+      scanEnd = scanSequential(fs, tarPath, builder, conf);
+    }
+    load(builder);
+    tarLength = tarStatus.getLen();
+    tarModTime = tarStatus.getModificationTime();
+  }
+
+  private long scanSequential(FileSystem fs, Path tarPath, Builder builder,
+      Configuration conf) throws IOException {
+    FSDataInputStream is = fs.open(tarPath);
+    try {
+      return scanPlain(is, builder, 0, conf);
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Scans an uncompressed tar from a stream positioned at offset start
+   */
+  private long scanPlain(FSDataInputStream is, Builder builder, long start,
+      Configuration conf) throws IOException {
+    int bufferSize = conf.getInt(CONF_INDEX_SCAN_BUFFER_SIZE, 0);
+    if (bufferSize <= 0)
+      return scanEntries(is, builder, start);
+    return new BufferedHeaderScanner(is, bufferSize).scan(builder, start);
+  }
+
+  static int getScanThreads(Configuration conf) {
+    return conf.getInt(CONF_INDEX_SCAN_THREADS, 1);
+  }
+
+  /**
+   * Takes the lease on building the index of the tar or, while another
+   * process holds it, waits for that process to write the index.
+   *
+   * @return the index file read meanwhile, or null if the index is to be
+   *         built here, under {@link #lease} if one could be taken
+   */
+  private Path awaitIndex(FileSystem fs, Path tarPath, Path indexPath,
+      Path altIndexP, Configuration conf) throws IOException {
+
+    long ttl = conf.getLong(CONF_INDEX_LOCK_TTL, DEFAULT_INDEX_LOCK_TTL);
+    long poll = conf.getLong(CONF_INDEX_LOCK_POLL, DEFAULT_INDEX_LOCK_POLL);
+    if (ttl <= 0)
+      return null;
+
+    Path lockPath = null;
+    for (Path p : new Path[] { indexPath, altIndexP }) {
+      if (p == null)
+        continue;
+      try {
+        lease = IndexBuildLease.tryAcquire(
+            fs, IndexBuildLease.getLockPath(p), ttl);
+        lockPath = IndexBuildLease.getLockPath(p);
+        break;
+      } catch (IOException e) {
+        LOG.debug("Can not create index build lock next to " + p, e);
+      }
+    }
+    if (lockPath == null) {
+      LOG.warn("Could not create an index build lock for " + tarPath
+          + ". Indexing it without one.");
+      return null;
+    }
+
+    while (lease == null) {
+      if (IndexBuildLease.breakIfExpired(fs, lockPath, ttl)) {
+        LOG.warn("Broke index build lock " + lockPath
+            + ", not renewed for " + ttl + " ms.");
+      } else {
+        try {
+          Thread.sleep(poll);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException(
+              "Interrupted waiting for the index of " + tarPath);
+        }
+        Path written = readFreshIndex(fs, indexPath, altIndexP);
+        if (written != null)
+          return written;
+      }
+      lease = IndexBuildLease.tryAcquire(fs, lockPath, ttl);
+    }
+
+    // the previous holder may have written the index just before we took
+    // over
+    Path written = readFreshIndex(fs, indexPath, altIndexP);
+    if (written != null) {
+      lease.release();
+      lease = null;
+    }
+    return written;
+  }
 
-        long nextOffset = currOffset + entry.getSize();
-        if (nextOffset % 512 != 0)
-          nextOffset = ((nextOffset / 512) + 1) * 512;
-        is.seek(nextOffset);
+  /**
+   * @return the index file read, or null if none is usable
+   */
+  private Path readFreshIndex(FileSystem fs, Path indexPath, Path altIndexP)
+      throws IOException {
+    for (Path p : new Path[] { indexPath, altIndexP }) {
+      if (readIndexFile(fs, p) && readCompressionIndex(fs, p) && !isStale())
+        return p;
+    }
+    return null;
+  }
+
+  /**
+   * Whether the tar has an index file that matches it, so that loading the
+   * index will not read the tar. Only the start of the index file is read.
+   */
+  static boolean hasFreshIndex(FileSystem fs, Path tarPath,
+      Configuration conf) throws IOException {
+    FileStatus tar = fs.getFileStatus(tarPath);
+    String sidecar = null;
+    if (TarFSUtils.isGZ(fs, tarPath))
+      sidecar = GzipCheckpointIndex.EXT;
+    else if (BlockCodec.detect(fs, tarPath) != null)
+      sidecar = CompressedBlockIndex.EXT;
+
+    for (Path p : new Path[] {
+        getIndexPath(tarPath), getAltIndexPath(tarPath, conf) }) {
+      if (p == null || !fs.exists(p))
+        continue;
+      if (sidecar != null && !fs.exists(getSidecarPath(p, sidecar)))
+        continue;
+
+      byte[] magic = new byte[BINARY_MAGIC.length];
+      FSDataInputStream in = fs.open(p);
+      try {
+        in.readFully(magic);
+        if (Arrays.equals(magic, BINARY_MAGIC)
+            && in.readInt() == BINARY_VERSION
+            && in.readLong() == tar.getLen()
+            && in.readLong() == tar.getModificationTime())
+          return true;
+      } catch (EOFException e) {
+        // not an index file
+      } finally {
+        in.close();
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether the index can be used without checking the tar headers: it was
+   * built from a tar of the same length and modification time as the tar
+   * now, and has header checksums to check headers against when wanted.
+   */
+  boolean isTrusted() {
+    return headerCrcsKnown
+        && tarLength == tarStatus.getLen()
+        && tarModTime == tarStatus.getModificationTime();
+  }
+
+  /**
+   * Whether the tar changed since it was indexed
+   */
+  private boolean isStale() {
+    return tarLength != tarStatus.getLen()
+        || tarModTime != tarStatus.getModificationTime();
+  }
+
+  /**
+   * Whether the tar may only have grown, so that indexing the part after the
+   * old end of archive brings the index up to date. A compressed tar is
+   * always indexed again.
+   */
+  private boolean canAppend() {
+    return !gzip && blockCodec == null && headerCrcsKnown && scanEnd != -1
+        && tarStatus.getLen() > tarLength;
+  }
+
+  /**
+   * Adds the files after the indexed end of the tar to the index, provided
+   * the last indexed header is still in place.
+   *
+   * @return false if the tar was changed before its old end
+   */
+  private boolean appendEntries(FileSystem fs, Path tarPath,
+      Configuration conf) throws IOException {
+    FSDataInputStream is = fs.open(tarPath);
+    try {
+      if (count > 0) {
+        int last = byOffset[count - 1];
+        byte[] header = new byte[512];
+        is.readFully(offsets[last] - 512, header);
+        if (!checkHeader(last, header))
+          return false;
       }
+
+      Builder builder = new Builder();
+      for (int i = 0; i < count; i++) {
+        int id = byOffset[i];
+        builder.add(getName(id), sizes[id], offsets[id], modTimes[id],
+            modes[id], getUserName(id), getGroupName(id), types[id],
+            headerCrcs[id]);
+      }
+      is.seek(scanEnd);
+      scanEnd = scanPlain(is, builder, scanEnd, conf);
+      load(builder);
+    } finally {
       is.close();
+    }
+    tarLength = tarStatus.getLen();
+    tarModTime = tarStatus.getModificationTime();
+    return true;
+  }
+
+  /**
+   * Checks a header read from the tar against the index
+   *
+   * @return false if the header is not the one indexed for the entry
+   */
+  boolean checkHeader(int id, byte[] header) {
+    if (headerCrcsKnown && headerCrc(header) != headerCrcs[id])
+      return false;
+    return compareName(new TarArchiveEntry(header).getName().trim(), id) == 0;
+  }
 
-      if (isWrite) {
-        boolean writeOK = writeIndex(fs, indexPath);
+  private static int headerCrc(byte[] header) {
+    CRC32 crc = new CRC32();
+    crc.update(header, 0, 512);
+    return (int) crc.getValue();
+  }
 
-        if (writeOK == false && altIndexP != null)
-          writeOK = writeIndex(fs, altIndexP);
+  /**
+   * Reads the tar headers from a stream positioned at offset start of the
+   * tar, skipping over the data of each file.
+   *
+   * @return the offset after the last header and its data
+   */
+  private long scanEntries(InputStream is, Builder builder, long start)
+      throws IOException {
+    byte[] buffer = new byte[512];
+    byte[] skipBuffer = null;
+    long pos = start;
+    long end = start;
 
-        if (writeOK == false) {
-          Path p = altIndexP == null ? indexPath : altIndexP;
+    while (true) {
+      int bytesRead = 0;
+      while (bytesRead < 512) {
+        int n = is.read(buffer, bytesRead, 512 - bytesRead);
+        if (n == -1)
+          break;
+        bytesRead += n;
+      }
+      if (bytesRead == 0)
+        break;
+      if (bytesRead < 512)
+        throw new IOException("Could not read the full header.");
 
-          LOG.error("Could not create INDEX file " + p.toUri());
-          if (altIndexP == null)
-            LOG.error("You can specify alternate location for index" +
-                " creation using tarfs.tmp.dir property.");
+      long nextOffset = addHeader(buffer, pos, builder);
+      pos += 512;
+      if (!isZeroBlock(buffer))
+        end = nextOffset;
 
-          LOG.error("Skipping writing index file.");
+      if (is instanceof Seekable) {
+        ((Seekable) is).seek(nextOffset);
+      } else {
+        if (skipBuffer == null)
+          skipBuffer = new byte[64 * 1024];
+        while (pos < nextOffset) {
+          int n = is.read(skipBuffer, 0,
+              (int) Math.min(skipBuffer.length, nextOffset - pos));
+          if (n == -1)
+            break;
+          pos += n;
         }
       }
+      pos = nextOffset;
     }
+    return end;
   }
 
-  private Path getIndexPath(Path tarPath) {
+  /**
+   * Adds the file of a header found at offset headerPos of the tar, unless
+   * it is not a file to index
+   *
+   * @return the offset of the header that follows
+   */
+  static long addHeader(byte[] header, long headerPos, Builder builder)
+      throws IOException {
+    long currOffset = headerPos + 512;
+    TarArchiveEntry entry = new TarArchiveEntry(header);
+
+    // Index only files. Directories are derived from the names of the
+    // files (see TarDirectoryTree), whether or not the tar has entries
+    // for them.
+    if (entry.isFile() && !entry.isDirectory()) {
+      String name = entry.getName().trim();
+      if (!name.equals("")) {
+        builder.add(
+            name,
+            entry.getSize(),
+            currOffset,
+            entry.getModTime().getTime(),
+            entry.getMode(),
+            entry.getUserName(),
+            entry.getGroupName(),
+            header[TYPEFLAG_OFFSET],
+            headerCrc(header));
+      }
+    }
+
+    long nextOffset = currOffset + entry.getSize();
+    if (nextOffset % 512 != 0)
+      nextOffset = ((nextOffset / 512) + 1) * 512;
+    return nextOffset;
+  }
+
+  static boolean isZeroBlock(byte[] header) {
+    for (int i = 0; i < 512; i++) {
+      if (header[i] != 0)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * For a compressed tar, reads the gzip checkpoints or the block layout that
+   * go with an index file. Always succeeds for an uncompressed tar.
+   */
+  private boolean readCompressionIndex(FileSystem fs, Path indexPath)
+      throws IOException {
+    if (gzip) {
+      gzipIndex = GzipCheckpointIndex.read(
+          fs, getSidecarPath(indexPath, GzipCheckpointIndex.EXT));
+      if (gzipIndex == null) {
+        LOG.info("No gzip index next to " + indexPath + ". Rebuilding it.");
+        unusableIndexPath = indexPath;
+        return false;
+      }
+    }
+
+    else if (blockCodec != null) {
+      blockIndex = CompressedBlockIndex.read(
+          fs, getSidecarPath(indexPath, CompressedBlockIndex.EXT));
+      if (blockIndex == null || blockIndex.getCodec() != blockCodec.getId()) {
+        LOG.info("No block index next to " + indexPath + ". Rebuilding it.");
+        blockIndex = null;
+        unusableIndexPath = indexPath;
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A file that goes with an index file, named after it with another
+   * extension
+   */
+  private static Path getSidecarPath(Path indexPath, String ext) {
+    String p = indexPath.toUri().toString();
+    return new Path(p.substring(0, p.length() - INDEX_EXT.length()) + ext);
+  }
+
+  static int getDecompressThreads(Configuration conf) {
+    return Math.max(1, conf.getInt(CONF_DECOMPRESS_THREADS,
+        Runtime.getRuntime().availableProcessors()));
+  }
+
+
+  private static Path getIndexPath(Path tarPath) {
     return new Path(tarPath.toUri() + INDEX_EXT);
   }
 
-  private Path getAltIndexPath(Path tarPath, Configuration conf) {
+  private static Path getAltIndexPath(Path tarPath, Configuration conf) {
     String tmp = conf.get("tarfs.tmp.dir", null);
     if (tmp == null)
       return null;
@@ -148,40 +740,498 @@ public class TarIndex {
   }
 
   /**
-   * Writes the index map to a file
+   * Collects entries in the order they are found, in growable columns.
+   * {@link TarIndex#load(Builder)} sorts them into the final index.
+   */
+  static class Builder {
+
+    int n = 0;
+    byte[] nameBuf = new byte[4096];
+    int nameLen = 0;
+    int[] nameStarts = new int[65];
+    long[] sizes = new long[64];
+    long[] offsets = new long[64];
+    long[] modTimes = new long[64];
+    int[] modes = new int[64];
+    int[] userIds = new int[64];
+    int[] groupIds = new int[64];
+    byte[] types = new byte[64];
+    int[] headerCrcs = new int[64];
+
+    Map<String, Integer> ownerIds = new HashMap<String, Integer>();
+    List<String> owners = new ArrayList<String>();
+
+    void add(String name, long size, long offset, long modTime, int mode,
+        String userName, String groupName, byte type, int headerCrc)
+        throws IOException {
+      byte[] b = name.getBytes(UTF8);
+      add(b, 0, b.length, size, offset, modTime, mode, userName, groupName,
+          type, headerCrc);
+    }
+
+    /** Adds entry i of another builder */
+    void addFrom(Builder o, int i) throws IOException {
+      add(o.nameBuf, o.nameStarts[i], o.nameStarts[i + 1] - o.nameStarts[i],
+          o.sizes[i], o.offsets[i], o.modTimes[i], o.modes[i],
+          o.owners.get(o.userIds[i]), o.owners.get(o.groupIds[i]),
+          o.types[i], o.headerCrcs[i]);
+    }
+
+    private void add(byte[] name, int nameOff, int len, long size,
+        long offset, long modTime, int mode, String userName,
+        String groupName, byte type, int headerCrc) throws IOException {
+
+      if (n == sizes.length) {
+        int cap = n * 2;
+        nameStarts = Arrays.copyOf(nameStarts, cap + 1);
+        sizes = Arrays.copyOf(sizes, cap);
+        offsets = Arrays.copyOf(offsets, cap);
+        modTimes = Arrays.copyOf(modTimes, cap);
+        modes = Arrays.copyOf(modes, cap);
+        userIds = Arrays.copyOf(userIds, cap);
+        groupIds = Arrays.copyOf(groupIds, cap);
+        types = Arrays.copyOf(types, cap);
+        headerCrcs = Arrays.copyOf(headerCrcs, cap);
+      }
+
+      if ((long) nameLen + len > Integer.MAX_VALUE)
+        throw new IOException("Too many names for one index");
+      if (nameLen + len > nameBuf.length)
+        nameBuf = Arrays.copyOf(nameBuf,
+            (int) Math.min(Integer.MAX_VALUE,
+                Math.max((long) nameLen + len, 2L * nameBuf.length)));
+      System.arraycopy(name, nameOff, nameBuf, nameLen, len);
+      nameStarts[n] = nameLen;
+      nameLen += len;
+      nameStarts[n + 1] = nameLen;
+
+      sizes[n] = size;
+      offsets[n] = offset;
+      modTimes[n] = modTime;
+      modes[n] = mode;
+      userIds[n] = ownerId(userName);
+      groupIds[n] = ownerId(groupName);
+      types[n] = type;
+      headerCrcs[n] = headerCrc;
+      n++;
+    }
+
+    private int ownerId(String owner) {
+      Integer id = ownerIds.get(owner);
+      if (id == null) {
+        id = owners.size();
+        owners.add(owner);
+        ownerIds.put(owner, id);
+      }
+      return id;
+    }
+
+    /**
+     * Whether both builders hold the same entries in the same order
+     */
+    boolean sameAs(Builder o) {
+      if (n != o.n)
+        return false;
+      for (int i = 0; i < n; i++) {
+        if (compareBytes(nameBuf, nameStarts[i], nameStarts[i + 1],
+                o.nameBuf, o.nameStarts[i], o.nameStarts[i + 1]) != 0
+            || sizes[i] != o.sizes[i] || offsets[i] != o.offsets[i]
+            || modTimes[i] != o.modTimes[i] || modes[i] != o.modes[i]
+            || !owners.get(userIds[i]).equals(o.owners.get(o.userIds[i]))
+            || !owners.get(groupIds[i]).equals(o.owners.get(o.groupIds[i]))
+            || types[i] != o.types[i] || headerCrcs[i] != o.headerCrcs[i])
+          return false;
+      }
+      return true;
+    }
+
+    int compareNames(int a, int b) {
+      return compareBytes(nameBuf, nameStarts[a], nameStarts[a + 1],
+          nameBuf, nameStarts[b], nameStarts[b + 1]);
+    }
+  }
+
+  /**
+   * Sorts the collected entries into the index. If a name occurs more than
+   * once, the entry that comes last in the tar wins.
+   */
+  private void load(final Builder b) {
+    int[] order = identity(b.n);
+    sortIds(order, new IdComparator() {
+      @Override
+      public int compare(int x, int y) {
+        int c = b.compareNames(x, y);
+        if (c != 0)
+          return c;
+        return Long.compare(b.offsets[x], b.offsets[y]);
+      }
+    });
+
+    // drop duplicates, keeping the last one
+    int n = 0;
+    for (int i = 0; i < order.length; i++) {
+      if (i + 1 < order.length && b.compareNames(order[i], order[i + 1]) == 0)
+        continue;
+      order[n++] = order[i];
+    }
+
+    allocate(n);
+    int nameLen = 0;
+    for (int i = 0; i < n; i++)
+      nameLen += b.nameStarts[order[i] + 1] - b.nameStarts[order[i]];
+    nameBytes = allocateNames(nameLen);
+
+    for (int i = 0; i < n; i++) {
+      int id = order[i];
+      nameStarts[i] = nameBytes.position();
+      nameBytes.put(b.nameBuf, b.nameStarts[id],
+          b.nameStarts[id + 1] - b.nameStarts[id]);
+      sizes[i] = b.sizes[id];
+      offsets[i] = b.offsets[id];
+      modTimes[i] = b.modTimes[id];
+      modes[i] = b.modes[id];
+      userIds[i] = b.userIds[id];
+      groupIds[i] = b.groupIds[id];
+      types[i] = b.types[id];
+      headerCrcs[i] = b.headerCrcs[id];
+    }
+    nameStarts[n] = nameBytes.position();
+    nameBytes.clear();
+    owners = b.owners.toArray(new String[b.owners.size()]);
+    byOffset = sortByOffset();
+    headerCrcsKnown = true;
+    nameFilter = NameBloomFilter.build(nameBytes, nameStarts, count);
+  }
+
+  private void allocate(int n) {
+    count = n;
+    nameStarts = new int[n + 1];
+    sizes = new long[n];
+    offsets = new long[n];
+    modTimes = new long[n];
+    modes = new int[n];
+    userIds = new int[n];
+    groupIds = new int[n];
+    types = new byte[n];
+    byOffset = new int[n];
+    headerCrcs = new int[n];
+  }
+
+  private ByteBuffer allocateNames(int len) {
+    return offHeap ? ByteBuffer.allocateDirect(len) : ByteBuffer.allocate(len);
+  }
+
+  private int[] sortByOffset() {
+    int[] ids = identity(count);
+    sortByOffset(ids);
+    return ids;
+  }
+
+  /** Sorts entry ids into the order of the tar */
+  void sortByOffset(int[] ids) {
+    sortIds(ids, new IdComparator() {
+      @Override
+      public int compare(int x, int y) {
+        return Long.compare(offsets[x], offsets[y]);
+      }
+    });
+  }
+
+  private interface IdComparator {
+    int compare(int x, int y);
+  }
+
+  private static int[] identity(int n) {
+    int[] ids = new int[n];
+    for (int i = 0; i < n; i++)
+      ids[i] = i;
+    return ids;
+  }
+
+  /** Stable merge sort of entry ids, without boxing them */
+  private static void sortIds(int[] ids, IdComparator cmp) {
+    int[] tmp = new int[ids.length];
+    int[] src = ids, dst = tmp;
+    for (int width = 1; width < ids.length; width *= 2) {
+      for (int lo = 0; lo < ids.length; lo += 2 * width) {
+        int mid = Math.min(lo + width, ids.length);
+        int hi = Math.min(lo + 2 * width, ids.length);
+        int i = lo, j = mid, k = lo;
+        while (i < mid && j < hi)
+          dst[k++] = cmp.compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+        while (i < mid)
+          dst[k++] = src[i++];
+        while (j < hi)
+          dst[k++] = src[j++];
+      }
+      int[] t = src;
+      src = dst;
+      dst = t;
+    }
+    if (src != ids)
+      System.arraycopy(src, 0, ids, 0, ids.length);
+  }
+
+  private static int compareBytes(byte[] b1, int s1, int e1,
+      byte[] b2, int s2, int e2) {
+    while (s1 < e1 && s2 < e2) {
+      int c1 = b1[s1++] & 0xff;
+      int c2 = b2[s2++] & 0xff;
+      if (c1 != c2)
+        return c1 - c2;
+    }
+    return (e1 - s1) - (e2 - s2);
+  }
+
+  /**
+   * Compares a name against the stored name of an entry, in UTF-8 byte order,
+   * without encoding the name or decoding the entry.
+   */
+  private int compareName(String name, int id) {
+    int p = nameStarts[id];
+    int end = nameStarts[id + 1];
+    int i = 0;
+    while (i < name.length() && p < end) {
+      int c1 = name.codePointAt(i);
+      i += Character.charCount(c1);
+
+      // decode one code point
+      int b = nameBytes.get(p++) & 0xff;
+      int c2;
+      if (b < 0x80) {
+        c2 = b;
+      } else if (b < 0xe0) {
+        c2 = ((b & 0x1f) << 6) | (nameBytes.get(p++) & 0x3f);
+      } else if (b < 0xf0) {
+        c2 = ((b & 0x0f) << 12) | ((nameBytes.get(p++) & 0x3f) << 6)
+            | (nameBytes.get(p++) & 0x3f);
+      } else {
+        c2 = ((b & 0x07) << 18) | ((nameBytes.get(p++) & 0x3f) << 12)
+            | ((nameBytes.get(p++) & 0x3f) << 6) | (nameBytes.get(p++) & 0x3f);
+      }
+
+      if (c1 != c2)
+        return c1 < c2 ? -1 : 1;
+    }
+    if (i < name.length())
+      return 1;
+    if (p < end)
+      return -1;
+    return 0;
+  }
+
+  /**
+   * Writes the index to a file in the binary format. All numbers are big
+   * endian.
+   *
+   * <pre>
+   * magic        4 bytes, {@link #BINARY_MAGIC}
+   * version      int
+   * tar length   long, length of the tar indexed
+   * tar mtime    long, modification time of the tar
+   * scan end     long, offset of the end of archive marker, -1 if not
+   *              known
+   * count        int, number of entries
+   * owners       int count, then for each: int length, UTF-8 bytes
+   * names        for each entry, in name order: vint length of the prefix
+   *              shared with the previous name, vint suffix length, suffix
+   *              UTF-8 bytes
+   * sizes        long[count]
+   * offsets      long[count]
+   * mtimes       long[count]
+   * modes        int[count]
+   * users        int[count], into owners
+   * groups       int[count], into owners
+   * types        byte[count]
+   * byOffset     int[count], entry ids in offset order
+   * crcs known   byte, 1 if header checksums follow
+   * headerCrcs   int[count], CRC32 of the header of each entry
+   * hashes       int, number of hashes of the name filter
+   * filter       int length, then long[length], bits of the name filter,
+   *              see {@link NameBloomFilter}
+   * </pre>
    *
    * @param fs
    * @param indexPath
+   * @param overwrite
+   *          replace an existing index file
    * @throws IOException
    */
-  private boolean writeIndex(FileSystem fs, Path indexPath) throws IOException {
+  private boolean writeIndex(FileSystem fs, Path indexPath, boolean overwrite)
+      throws IOException {
 
-    if (fs.exists(indexPath)) {
+    if (!overwrite && fs.exists(indexPath)) {
       LOG.error("Index file already exists. Skipping writing index.");
       return false;
     }
 
+    Path tmp = getTempPath(indexPath);
     OutputStream os = null;
-    PrintWriter out = null;
+    DataOutputStream out = null;
+    boolean written = false;
 
     try {
       fs.mkdirs(indexPath.getParent());
-      os = fs.create(indexPath);
-      out = new PrintWriter(os);
+      os = fs.create(tmp, true);
+      out = new DataOutputStream(new BufferedOutputStream(os));
+
+      out.write(BINARY_MAGIC);
+      out.writeInt(BINARY_VERSION);
+      out.writeLong(tarStatus.getLen());
+      out.writeLong(tarStatus.getModificationTime());
+      out.writeLong(scanEnd);
+      out.writeInt(count);
 
-      for (String name : index.keySet()) {
-        IndexEntry ie = index.get(name);
-        out.println(name + " " + ie.size + " " + ie.offset);
+      out.writeInt(owners.length);
+      for (String owner : owners) {
+        byte[] b = owner.getBytes(UTF8);
+        out.writeInt(b.length);
+        out.write(b);
       }
-      return true;
+
+      int prevStart = 0, prevEnd = 0;
+      for (int i = 0; i < count; i++) {
+        int start = nameStarts[i];
+        int end = nameStarts[i + 1];
+        int shared = 0;
+        int max = Math.min(prevEnd - prevStart, end - start);
+        while (shared < max && nameBytes.get(prevStart + shared)
+            == nameBytes.get(start + shared))
+          shared++;
+        writeVInt(out, shared);
+        writeVInt(out, end - start - shared);
+        for (int p = start + shared; p < end; p++)
+          out.write(nameBytes.get(p));
+        prevStart = start;
+        prevEnd = end;
+      }
+
+      for (int i = 0; i < count; i++)
+        out.writeLong(sizes[i]);
+      for (int i = 0; i < count; i++)
+        out.writeLong(offsets[i]);
+      for (int i = 0; i < count; i++)
+        out.writeLong(modTimes[i]);
+      for (int i = 0; i < count; i++)
+        out.writeInt(modes[i]);
+      for (int i = 0; i < count; i++)
+        out.writeInt(userIds[i]);
+      for (int i = 0; i < count; i++)
+        out.writeInt(groupIds[i]);
+      out.write(types, 0, count);
+      for (int i = 0; i < count; i++)
+        out.writeInt(byOffset[i]);
+      out.writeBoolean(headerCrcsKnown);
+      if (headerCrcsKnown) {
+        for (int i = 0; i < count; i++)
+          out.writeInt(headerCrcs[i]);
+      }
+      out.writeInt(nameFilter.getHashCount());
+      long[] filterBits = nameFilter.getBits();
+      out.writeInt(filterBits.length);
+      for (long bits : filterBits)
+        out.writeLong(bits);
+      out.close();
+      out = null;
+      os = null;
+      written = true;
     } catch (AccessControlException e) {
       return false;
     } finally {
-      if (out != null)
-        out.close();
-      if (os != null)
-        os.close();
+      try {
+        if (out != null)
+          out.close();
+        else if (os != null)
+          os.close();
+      } finally {
+        if (!written)
+          deleteQuietly(fs, tmp);
+      }
     }
+    return commit(fs, tmp, indexPath, overwrite);
+  }
+
+  /**
+   * Writes the gzip or block index that goes with an index file, then the
+   * index file. Readers that find the index file therefore find the rest.
+   */
+  private boolean writeIndexFiles(FileSystem fs, Path indexPath,
+      boolean overwrite) throws IOException {
+
+    if (!overwrite && fs.exists(indexPath)) {
+      LOG.error("Index file already exists. Skipping writing index.");
+      return false;
+    }
+
+    if (gzipIndex != null && !gzipIndex.write(fs,
+        getSidecarPath(indexPath, GzipCheckpointIndex.EXT), true)) {
+      LOG.error("Could not create gzip index file for " + indexPath);
+      return false;
+    }
+
+    else if (blockIndex != null && !blockIndex.write(fs,
+        getSidecarPath(indexPath, CompressedBlockIndex.EXT), true)) {
+      LOG.error("Could not create block index file for " + indexPath);
+      return false;
+    }
+
+    return writeIndex(fs, indexPath, overwrite);
+  }
+
+  /**
+   * A unique name next to a file, to write it under before renaming it to
+   * its final name
+   */
+  static Path getTempPath(Path path) {
+    return new Path(path.getParent(),
+        "." + path.getName() + "." + UUID.randomUUID() + ".tmp");
+  }
+
+  /**
+   * Renames a file written under a temporary name to its final name, so
+   * that readers never see it half written
+   *
+   * @return false if there is a file with the final name and overwrite is
+   *         not set
+   */
+  static boolean commit(FileSystem fs, Path tmp, Path path,
+      boolean overwrite) throws IOException {
+    // HDFS does not rename over an existing file
+    if (overwrite && fs.exists(path))
+      fs.delete(path, false);
+    if (fs.rename(tmp, path))
+      return true;
+    deleteQuietly(fs, tmp);
+    return false;
+  }
+
+  static void deleteQuietly(FileSystem fs, Path path) {
+    try {
+      fs.delete(path, false);
+    } catch (IOException e) {
+      LOG.warn("Could not delete " + path, e);
+    }
+  }
+
+  private static void writeVInt(DataOutputStream out, int v)
+      throws IOException {
+    while ((v & ~0x7f) != 0) {
+      out.writeByte((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    out.writeByte(v);
+  }
+
+  private static int readVInt(ByteBuffer buf) {
+    int v = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buf.get();
+      v |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return v;
   }
 
   private boolean readIndexFile(FileSystem fs, Path indexPath)
@@ -190,71 +1240,361 @@ public class TarIndex {
     if (indexPath == null || !fs.exists(indexPath))
       return false;
 
-    FSDataInputStream is = null;
-    Scanner s = null;
-
     try {
-      is = fs.open(indexPath);
-      s = new Scanner(is);
-
-      while (s.hasNextLine()) {
-        String[] tokens = s.nextLine().split(" ");
-        if (tokens.length != 3) {
-          LOG.error("Invalid Index File: " + indexPath);
-          return false;
-        }
+      if (isBinaryIndex(fs, indexPath))
+        return readBinaryIndex(fs, indexPath);
 
-        IndexEntry ie = new IndexEntry(
-            Long.parseLong(tokens[1]),
-            Long.parseLong(tokens[2]));
-        index.put(tokens[0], ie);
-      }
-      return true;
+      LOG.info("Index file " + indexPath + " is in the old text format "
+          + "and has no file metadata. Rebuilding it.");
+      unusableIndexPath = indexPath;
+      return false;
     } catch (AccessControlException e) {
       LOG.error("Can not open Index file for reading " + indexPath + " "
           + e.getMessage());
       return false;
+    }
+  }
+
+  private boolean isBinaryIndex(FileSystem fs, Path indexPath)
+      throws IOException {
+    FSDataInputStream is = fs.open(indexPath);
+    try {
+      byte[] magic = new byte[BINARY_MAGIC.length];
+      int n = 0;
+      while (n < magic.length) {
+        int r = is.read(magic, n, magic.length - n);
+        if (r == -1)
+          return false;
+        n += r;
+      }
+      return Arrays.equals(magic, BINARY_MAGIC);
     } finally {
-      if (s != null)
-        s.close();
-      if (is != null)
-        is.close();
+      is.close();
     }
   }
 
-  private IndexEntry getIndexEntry(String name) throws IOException {
-    IndexEntry ie = index.get(name);
-    if (ie == null)
+  /**
+   * Gets the whole index file into a buffer with a single positioned read.
+   */
+  private ByteBuffer readWholeFile(FileSystem fs, Path indexPath)
+      throws IOException {
+
+    long len = fs.getFileStatus(indexPath).getLen();
+    if (len > Integer.MAX_VALUE)
+      throw new IOException("Index file " + indexPath + " is too large");
+
+    byte[] b = new byte[(int) len];
+    FSDataInputStream is = fs.open(indexPath);
+    try {
+      is.readFully(0, b);
+    } finally {
+      is.close();
+    }
+    return ByteBuffer.wrap(b);
+  }
+
+  private boolean readBinaryIndex(FileSystem fs, Path indexPath)
+      throws IOException {
+
+    ByteBuffer buf = readWholeFile(fs, indexPath);
+
+    try {
+      buf.position(BINARY_MAGIC.length);
+      int version = buf.getInt();
+      if (version != BINARY_VERSION) {
+        LOG.error("Index file " + indexPath + " has version " + version
+            + ", only version " + BINARY_VERSION + " is supported");
+        return false;
+      }
+
+      tarLength = buf.getLong();
+      tarModTime = buf.getLong();
+      scanEnd = buf.getLong();
+      int n = buf.getInt();
+      allocate(n);
+
+      owners = new String[buf.getInt()];
+      for (int i = 0; i < owners.length; i++) {
+        byte[] b = new byte[buf.getInt()];
+        buf.get(b);
+        owners[i] = new String(b, UTF8);
+      }
+
+      // first pass over the name table finds the size of the names
+      int namesAt = buf.position();
+      long nameLen = 0;
+      for (int i = 0; i < n; i++) {
+        int shared = readVInt(buf);
+        int suffix = readVInt(buf);
+        nameLen += shared + suffix;
+        buf.position(buf.position() + suffix);
+      }
+      if (nameLen > Integer.MAX_VALUE)
+        throw new IOException("Too many names for one index");
+
+      nameBytes = allocateNames((int) nameLen);
+      buf.position(namesAt);
+      int prevStart = 0;
+      for (int i = 0; i < n; i++) {
+        int shared = readVInt(buf);
+        int suffix = readVInt(buf);
+        int start = nameBytes.position();
+        nameStarts[i] = start;
+        for (int p = 0; p < shared; p++)
+          nameBytes.put(nameBytes.get(prevStart + p));
+        ByteBuffer slice = buf.slice();
+        slice.limit(suffix);
+        nameBytes.put(slice);
+        buf.position(buf.position() + suffix);
+        prevStart = start;
+      }
+      nameStarts[n] = nameBytes.position();
+      nameBytes.clear();
+
+      buf.asLongBuffer().get(sizes);
+      buf.position(buf.position() + 8 * n);
+      buf.asLongBuffer().get(offsets);
+      buf.position(buf.position() + 8 * n);
+      buf.asLongBuffer().get(modTimes);
+      buf.position(buf.position() + 8 * n);
+      buf.asIntBuffer().get(modes);
+      buf.position(buf.position() + 4 * n);
+      buf.asIntBuffer().get(userIds);
+      buf.position(buf.position() + 4 * n);
+      buf.asIntBuffer().get(groupIds);
+      buf.position(buf.position() + 4 * n);
+      buf.get(types);
+
+      buf.asIntBuffer().get(byOffset);
+      buf.position(buf.position() + 4 * n);
+      if (buf.get() != 0) {
+        buf.asIntBuffer().get(headerCrcs);
+        buf.position(buf.position() + 4 * n);
+        headerCrcsKnown = true;
+      }
+      int hashes = buf.getInt();
+      long[] filterBits = new long[buf.getInt()];
+      buf.asLongBuffer().get(filterBits);
+      nameFilter = new NameBloomFilter(filterBits, hashes);
+      return true;
+    } catch (RuntimeException e) {
+      // BufferUnderflowException, IndexOutOfBoundsException...
+      LOG.error("Invalid Index File: " + indexPath, e);
+      allocate(0);
+      nameBytes = ByteBuffer.allocate(0);
+      headerCrcsKnown = false;
+      nameFilter = null;
+      tarLength = -1;
+      tarModTime = -1;
+      scanEnd = -1;
+      return false;
+    }
+  }
+
+  /**
+   * Binary search for a name. Does not allocate.
+   *
+   * @return the entry id, or -1 if the name is not in the index
+   */
+  int lookup(String name) {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compareName(name, mid);
+      if (c == 0)
+        return mid;
+      if (c < 0)
+        hi = mid - 1;
+      else
+        lo = mid + 1;
+    }
+    return -1;
+  }
+
+  /**
+   * Whether the tar may have a file or a directory of that name. Most names
+   * that are not in it are turned down without searching the names.
+   */
+  boolean mayContain(String name) {
+    return nameFilter == null || nameFilter.mightContain(name);
+  }
+
+  /**
+   * The id of an entry
+   *
+   * @throws IOException
+   *           if there is no such file inside the tar
+   */
+  int getEntryId(String name) throws IOException {
+    int id = lookup(name);
+    if (id < 0)
       throw new IOException("Requested file \""
           + name + "\" does not exist inside tar.");
-    return ie;
+    return id;
+  }
+
+  /**
+   * Start of the bytes of the tar file needed to read from an offset of the
+   * uncompressed tar. The same offset for an uncompressed tar.
+   */
+  long getCompressedStart(long offset) {
+    if (gzipIndex != null)
+      return gzipIndex.getCompressedStart(offset);
+    if (blockIndex != null)
+      return blockIndex.getCompressedStart(offset);
+    return offset;
+  }
+
+  /**
+   * End of the bytes of the tar file needed to read up to an offset of the
+   * uncompressed tar. May be past the end of the file.
+   */
+  long getCompressedEnd(long offset) {
+    if (gzipIndex != null)
+      return gzipIndex.getCompressedEnd(offset);
+    if (blockIndex != null)
+      return blockIndex.getCompressedEnd(offset);
+    return offset;
+  }
+
+  /**
+   * First offset of the uncompressed tar that can be read starting at or
+   * after an offset of the tar file. May be past the end of the tar.
+   */
+  long getUncompressedStart(long compressedOffset) {
+    if (gzipIndex != null)
+      return gzipIndex.getUncompressedStart(compressedOffset);
+    if (blockIndex != null)
+      return blockIndex.getUncompressedStart(compressedOffset);
+    return compressedOffset;
+  }
+
+  /**
+   * Checkpoints to read the uncompressed tar, or null if the tar is not
+   * compressed
+   */
+  GzipCheckpointIndex getGzipIndex() {
+    return gzipIndex;
+  }
+
+  /**
+   * Block layout of a bzip2 or xz compressed tar, or null
+   */
+  CompressedBlockIndex getBlockIndex() {
+    return blockIndex;
+  }
+
+  /**
+   * The directories of the tar, derived from the names of its files the
+   * first time they are asked for
+   */
+  TarDirectoryTree getDirectoryTree() {
+    TarDirectoryTree t = tree;
+    if (t == null) {
+      synchronized (this) {
+        t = tree;
+        if (t == null)
+          tree = t = TarDirectoryTree.build(this);
+      }
+    }
+    return t;
+  }
+
+  /**
+   * Approximate memory taken by the index, in bytes. It grows when the
+   * directory tree is built.
+   */
+  long getMemorySize() {
+    long size = nameBytes.capacity() + 4L * nameStarts.length
+        + (3 * 8 + 4 * 4 + 1) * (long) count + 4L * headerCrcs.length;
+    for (String owner : owners)
+      size += 40 + 2 * owner.length();
+    if (gzipIndex != null)
+      size += gzipIndex.getMemorySize();
+    if (blockIndex != null)
+      size += blockIndex.getMemorySize();
+    if (nameFilter != null)
+      size += nameFilter.getMemorySize();
+    TarDirectoryTree t = tree;
+    if (t != null)
+      size += t.getMemorySize();
+    return size;
+  }
+
+  /**
+   * Number of entries in the index
+   */
+  int getEntryCount() {
+    return count;
+  }
+
+  /**
+   * The id of the entry that is <code>rank</code>-th in the tar. Iterating
+   * rank from 0 to {@link #getEntryCount()} walks the tar in offset order.
+   */
+  int getIdByOffset(int rank) {
+    return byOffset[rank];
+  }
+
+  String getName(int id) {
+    int start = nameStarts[id];
+    byte[] b = new byte[nameStarts[id + 1] - start];
+    for (int i = 0; i < b.length; i++)
+      b[i] = nameBytes.get(start + i);
+    return new String(b, UTF8);
+  }
+
+  long getSize(int id) {
+    return sizes[id];
+  }
+
+  long getOffset(int id) {
+    return offsets[id];
+  }
+
+  long getModTime(int id) {
+    return modTimes[id];
+  }
+
+  int getMode(int id) {
+    return modes[id];
+  }
+
+  String getUserName(int id) {
+    return owners[userIds[id]];
+  }
+
+  String getGroupName(int id) {
+    return owners[groupIds[id]];
+  }
+
+  byte getType(int id) {
+    return types[id];
   }
 
   public long getOffset(String name) throws IOException {
-    return getIndexEntry(name).offset;
+    return offsets[getEntryId(name)];
   }
 
   public long getSize(String name) throws IOException {
-    return getIndexEntry(name).size;
+    return sizes[getEntryId(name)];
   }
 
   /**
    * return a sorted list of all offsets
    */
   public long[] getOffsetList() {
-    long[] offsetArr = new long[index.size()];
-    int i = 0;
-    for (String name : index.keySet()) {
-      offsetArr[i++] = index.get(name).offset;
-    }
-
-    // TBD: Could this sort be a bottleneck?
-    Arrays.sort(offsetArr);
+    long[] offsetArr = new long[count];
+    for (int i = 0; i < count; i++)
+      offsetArr[i] = offsets[byOffset[i]];
     return offsetArr;
   }
 
   public String[] getFileList() {
-    String[] fileNames = new String[index.size()];
-    return index.keySet().toArray(fileNames);
+    String[] fileNames = new String[count];
+    for (int i = 0; i < count; i++)
+      fileNames[i] = getName(i);
+    return fileNames;
   }
 }
@@ -0,0 +1,326 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Indexes of tars shared by all the TarFileSystems of the process, so that
+ * an index is loaded once however many file system instances read the tar.
+ * <br/>
+ * An index is looked up by the path, length and modification time of its
+ * tar, so a changed tar gets a new index. The cache holds indexes up to a
+ * total size in bytes, evicting the least recently used first. An index
+ * that grew since it was cached, e.g. by building its directory tree, is
+ * charged again the next time it is looked up. The cache also remembers
+ * when the status of each tar was last found to match its index, so that
+ * {@link #getRecentIndex(FileSystem, Path, long)} can answer without
+ * asking for the status again. Of the
+ * threads asking for an index that is not cached, one loads it and the
+ * others wait for it.
+ */
+public class TarIndexCache {
+
+  public static final Log LOG = LogFactory.getLog(TarIndexCache.class);
+
+  /**
+   * Bytes of indexes kept by the process. The bound of whoever loads an
+   * index last applies. 0 does not cache indexes.
+   */
+  public static final String CONF_INDEX_CACHE_SIZE = "tarfs.index.cache.size";
+  public static final long DEFAULT_INDEX_CACHE_SIZE = 64 * 1024 * 1024;
+
+  private static final TarIndexCache INSTANCE = new TarIndexCache();
+
+  /** Version of a tar an index is for */
+  private static class Key {
+    final String path;
+    final long length;
+    final long modTime;
+
+    Key(String path, long length, long modTime) {
+      this.path = path;
+      this.length = length;
+      this.modTime = modTime;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return path.equals(k.path) && length == k.length
+          && modTime == k.modTime;
+    }
+
+    @Override
+    public int hashCode() {
+      int h = path.hashCode();
+      h = 31 * h + (int) (length ^ (length >>> 32));
+      return 31 * h + (int) (modTime ^ (modTime >>> 32));
+    }
+  }
+
+  /**
+   * An index cached, the bytes it is counted for, and when the status of
+   * the tar last matched it
+   */
+  private static class Entry {
+    final TarIndex index;
+    long charged;
+    long checkedAt;
+
+    Entry(TarIndex index, long charged, long checkedAt) {
+      this.index = index;
+      this.charged = charged;
+      this.checkedAt = checkedAt;
+    }
+  }
+
+  /** In access order, least recently used first */
+  private final LinkedHashMap<Key, Entry> indexes =
+      new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+  private final Map<Key, FutureTask<TarIndex>> loading =
+      new HashMap<Key, FutureTask<TarIndex>>();
+  /** The version of each tar cached that its status last showed */
+  private final Map<String, Key> latest = new HashMap<String, Key>();
+  private long bytes = 0;
+  private long maxBytes = DEFAULT_INDEX_CACHE_SIZE;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong loads = new AtomicLong();
+  private final AtomicLong loadFailures = new AtomicLong();
+  private final AtomicLong loadNanos = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  TarIndexCache() {
+  }
+
+  /**
+   * The cache of the process
+   */
+  public static TarIndexCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * The index of a tar, loaded (see
+   * {@link TarIndex#TarIndex(FileSystem, Path, boolean, Configuration)})
+   * unless it is cached
+   */
+  TarIndex getIndex(FileSystem fs, Path tarPath, boolean isWrite,
+      Configuration conf) throws IOException {
+    return getIndex(fs, tarPath, fs.getFileStatus(tarPath), isWrite, conf);
+  }
+
+  /**
+   * Like {@link #getIndex(FileSystem, Path, boolean, Configuration)}, given
+   * the status of the tar as it is now
+   */
+  TarIndex getIndex(final FileSystem fs, final Path tarPath,
+      FileStatus status, final boolean isWrite, final Configuration conf)
+      throws IOException {
+    long max = conf.getLong(CONF_INDEX_CACHE_SIZE, DEFAULT_INDEX_CACHE_SIZE);
+    if (max <= 0)
+      return new TarIndex(fs, tarPath, isWrite, conf);
+
+    Key key = new Key(fs.makeQualified(tarPath).toString(), status.getLen(),
+        status.getModificationTime());
+    long checkedAt = System.currentTimeMillis();
+
+    FutureTask<TarIndex> task;
+    boolean loader = false;
+    synchronized (this) {
+      maxBytes = max;
+      Entry e = indexes.get(key);
+      if (e != null) {
+        hits.incrementAndGet();
+        e.checkedAt = Math.max(e.checkedAt, checkedAt);
+        latest.put(key.path, key);
+        long size = e.index.getMemorySize();
+        if (size != e.charged) {
+          bytes += size - e.charged;
+          e.charged = size;
+          evict();
+        }
+        return e.index;
+      }
+      misses.incrementAndGet();
+      task = loading.get(key);
+      if (task == null) {
+        task = new FutureTask<TarIndex>(new Callable<TarIndex>() {
+          @Override
+          public TarIndex call() throws IOException {
+            return new TarIndex(fs, tarPath, isWrite, conf);
+          }
+        });
+        loading.put(key, task);
+        loader = true;
+      }
+    }
+
+    if (loader) {
+      long start = System.nanoTime();
+      task.run();
+      loadNanos.addAndGet(System.nanoTime() - start);
+      loads.incrementAndGet();
+      synchronized (this) {
+        loading.remove(key);
+        try {
+          put(key, task.get(), checkedAt);
+        } catch (ExecutionException e) {
+          loadFailures.incrementAndGet();
+        } catch (InterruptedException e) {
+          // the task is done, get() does not wait
+        }
+      }
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(
+          "Interrupted waiting for the index of " + tarPath);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException("Could not load the index of " + tarPath, cause);
+    }
+  }
+
+  /**
+   * The cached index of a tar, provided its status was found to match the
+   * index no more than maxAge ms ago; the status is not asked for again.
+   *
+   * @return the index, or null if the tar has to be checked
+   */
+  TarIndex getRecentIndex(FileSystem fs, Path tarPath, long maxAge) {
+    if (maxAge <= 0)
+      return null;
+    String path = fs.makeQualified(tarPath).toString();
+    synchronized (this) {
+      Key key = latest.get(path);
+      Entry e = key == null ? null : indexes.get(key);
+      if (e == null || System.currentTimeMillis() - e.checkedAt > maxAge)
+        return null;
+      hits.incrementAndGet();
+      return e.index;
+    }
+  }
+
+  private void put(Key key, TarIndex index, long checkedAt) {
+    long size = index.getMemorySize();
+    if (size > maxBytes) {
+      LOG.info("Index of " + key.path + " is too large to cache: " + size
+          + " bytes");
+      return;
+    }
+    Entry old = indexes.put(key, new Entry(index, size, checkedAt));
+    latest.put(key.path, key);
+    if (old != null)
+      bytes -= old.charged;
+    bytes += size;
+    evict();
+  }
+
+  /**
+   * Evicts the least recently used indexes until the cache is within its
+   * bound
+   */
+  private void evict() {
+    Iterator<Map.Entry<Key, Entry>> it = indexes.entrySet().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      Map.Entry<Key, Entry> eldest = it.next();
+      bytes -= eldest.getValue().charged;
+      it.remove();
+      if (eldest.getKey().equals(latest.get(eldest.getKey().path)))
+        latest.remove(eldest.getKey().path);
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drops all the cached indexes
+   */
+  public synchronized void clear() {
+    indexes.clear();
+    latest.clear();
+    bytes = 0;
+  }
+
+  /** Lookups that found the index cached */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Lookups that did not, and loaded the index or waited for its load */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Indexes loaded, including the ones that failed to load */
+  public long getLoadCount() {
+    return loads.get();
+  }
+
+  public long getLoadFailureCount() {
+    return loadFailures.get();
+  }
+
+  /** Total time spent loading indexes, in ms */
+  public long getTotalLoadTime() {
+    return loadNanos.get() / 1000000;
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Number of indexes cached */
+  public synchronized int size() {
+    return indexes.size();
+  }
+
+  /** Total size of the indexes cached, in bytes */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+}
@@ -0,0 +1,278 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.util.StringUtils;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+/**
+ * Builds the indexes of many tars ahead of time, so that the first job to
+ * read them does not have to. <br/>
+ * Arguments are tars, directories, which are searched for tars
+ * recursively, or globs. Tars whose index is up to date are skipped; an
+ * index file in the old text format, which does not record its tar, is
+ * rebuilt. The tars are indexed by a pool of threads, or with
+ * <code>-mr</code> by a map only job, one tar per map task by default.
+ *
+ * <pre>
+ * hadoop jar hadoop-tarfs.jar org.apache.hadoop.fs.tar.TarIndexer \
+ *   [-threads &lt;n&gt;] [-mr [-tarsPerMap &lt;n&gt;]] &lt;path&gt; ...
+ * </pre>
+ */
+public class TarIndexer extends Configured implements Tool {
+
+  public static final Log LOG = LogFactory.getLog(TarIndexer.class);
+
+  private static final String USAGE = "Usage: TarIndexer [-threads <n>] "
+      + "[-mr [-tarsPerMap <n>]] <path> ...";
+
+  private static final String[] TAR_EXTS = {
+    ".tar", ".tar.gz", ".tgz", ".tar.bz2", ".tbz2", ".tbz", ".tar.xz", ".txz"
+  };
+
+  /** Counters of the map only job */
+  public static enum Counter {
+    TARS_INDEXED, TARS_SKIPPED, TARS_FAILED, FILES_INDEXED, BYTES_INDEXED
+  }
+
+  /** What was indexed, shared by the threads indexing */
+  private static class Totals {
+    final AtomicLong indexed = new AtomicLong();
+    final AtomicLong skipped = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong files = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+  }
+
+  static boolean isTarName(String name) {
+    for (String ext : TAR_EXTS) {
+      if (name.endsWith(ext))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * The tars named by the arguments: tars, directories and globs
+   */
+  List<Path> findTars(List<Path> paths) throws IOException {
+    List<Path> tars = new ArrayList<Path>();
+    for (Path path : paths) {
+      FileSystem fs = path.getFileSystem(getConf());
+      FileStatus[] matches = fs.globStatus(path);
+      if (matches == null || matches.length == 0)
+        throw new IOException("No such file or directory: " + path);
+
+      for (FileStatus match : matches) {
+        if (!match.isDirectory()) {
+          tars.add(match.getPath());
+          continue;
+        }
+        RemoteIterator<LocatedFileStatus> it = fs.listFiles(
+          match.getPath(), true);
+        while (it.hasNext()) {
+          Path p = it.next().getPath();
+          if (isTarName(p.getName()))
+            tars.add(p);
+        }
+      }
+    }
+    return tars;
+  }
+
+  /**
+   * Indexes a tar, unless its index is up to date
+   */
+  private static void index(Path tar, Configuration conf, Totals totals) {
+    try {
+      FileSystem fs = tar.getFileSystem(conf);
+      if (TarIndex.hasFreshIndex(fs, tar, conf)) {
+        LOG.info("Index of " + tar + " is up to date");
+        totals.skipped.incrementAndGet();
+        return;
+      }
+
+      long start = System.currentTimeMillis();
+      TarIndex index = new TarIndex(fs, tar, true, conf);
+      long len = fs.getFileStatus(tar).getLen();
+      LOG.info("Indexed " + tar + ": " + index.getEntryCount() + " files, "
+          + StringUtils.byteDesc(len) + " in "
+          + (System.currentTimeMillis() - start) + " ms");
+      totals.indexed.incrementAndGet();
+      totals.files.addAndGet(index.getEntryCount());
+      totals.bytes.addAndGet(len);
+    } catch (IOException e) {
+      LOG.error("Could not index " + tar, e);
+      totals.failed.incrementAndGet();
+    }
+  }
+
+  private Totals runLocal(List<Path> tars, int threads)
+      throws InterruptedException {
+    final Totals totals = new Totals();
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    for (final Path tar : tars) {
+      pool.execute(new Runnable() {
+        @Override
+        public void run() {
+          index(tar, getConf(), totals);
+        }
+      });
+    }
+    pool.shutdown();
+    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    return totals;
+  }
+
+  /**
+   * Indexes the tars named on the lines of its input
+   */
+  public static class IndexMapper
+      extends Mapper<LongWritable, Text, NullWritable, NullWritable> {
+
+    @Override
+    protected void map(LongWritable key, Text value, Context context)
+        throws IOException {
+      Totals totals = new Totals();
+      index(new Path(value.toString()), context.getConfiguration(), totals);
+      context.getCounter(Counter.TARS_INDEXED).increment(totals.indexed.get());
+      context.getCounter(Counter.TARS_SKIPPED).increment(totals.skipped.get());
+      context.getCounter(Counter.TARS_FAILED).increment(totals.failed.get());
+      context.getCounter(Counter.FILES_INDEXED).increment(totals.files.get());
+      context.getCounter(Counter.BYTES_INDEXED).increment(totals.bytes.get());
+    }
+  }
+
+  private Totals runJob(List<Path> tars, int tarsPerMap) throws Exception {
+    Configuration conf = getConf();
+    FileSystem fs = FileSystem.get(conf);
+    Path work = fs.makeQualified(new Path(
+      conf.get("hadoop.tmp.dir", "/tmp"),
+      "tarindexer-" + System.currentTimeMillis()));
+    Path list = new Path(work, "tars");
+    FSDataOutputStream out = fs.create(list, false);
+    try {
+      for (Path tar : tars)
+        out.write((tar.toString() + "\n").getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+
+    try {
+      Job job = Job.getInstance(conf, "TarIndexer: " + tars.size() + " tars");
+      job.setJarByClass(TarIndexer.class);
+      job.setMapperClass(IndexMapper.class);
+      job.setNumReduceTasks(0);
+      job.setInputFormatClass(NLineInputFormat.class);
+      NLineInputFormat.setNumLinesPerSplit(job, tarsPerMap);
+      FileInputFormat.addInputPath(job, list);
+      job.setOutputFormatClass(NullOutputFormat.class);
+      job.setOutputKeyClass(NullWritable.class);
+      job.setOutputValueClass(NullWritable.class);
+      // a second attempt would only wait for the lock of the first one
+      job.setSpeculativeExecution(false);
+
+      if (!job.waitForCompletion(true))
+        throw new IOException("Job " + job.getJobID() + " failed");
+
+      Counters counters = job.getCounters();
+      Totals totals = new Totals();
+      totals.indexed.set(counters.findCounter(Counter.TARS_INDEXED).getValue());
+      totals.skipped.set(counters.findCounter(Counter.TARS_SKIPPED).getValue());
+      totals.failed.set(counters.findCounter(Counter.TARS_FAILED).getValue());
+      totals.files.set(counters.findCounter(Counter.FILES_INDEXED).getValue());
+      totals.bytes.set(counters.findCounter(Counter.BYTES_INDEXED).getValue());
+      return totals;
+    } finally {
+      fs.delete(work, true);
+    }
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    boolean mr = false;
+    int tarsPerMap = 1;
+    List<Path> paths = new ArrayList<Path>();
+
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-threads") && i + 1 < args.length) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-tarsPerMap") && i + 1 < args.length) {
+        tarsPerMap = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-mr")) {
+        mr = true;
+      } else if (args[i].startsWith("-")) {
+        System.err.println(USAGE);
+        return 2;
+      } else {
+        paths.add(new Path(args[i]));
+      }
+    }
+    if (paths.isEmpty() || threads < 1 || tarsPerMap < 1) {
+      System.err.println(USAGE);
+      return 2;
+    }
+
+    List<Path> tars = findTars(paths);
+    long start = System.currentTimeMillis();
+    Totals totals = mr ? runJob(tars, tarsPerMap) : runLocal(tars, threads);
+    double secs = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+
+    System.out.println(String.format(
+      "Indexed %d tars, skipped %d up to date, %d failed: %d files, %s "
+        + "in %.1f s, %.0f files/s, %s/s",
+      totals.indexed.get(), totals.skipped.get(), totals.failed.get(),
+      totals.files.get(), StringUtils.byteDesc(totals.bytes.get()), secs,
+      totals.files.get() / secs,
+      StringUtils.byteDesc((long) (totals.bytes.get() / secs))));
+    return totals.failed.get() == 0 ? 0 : 1;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new TarIndexer(), args));
+  }
+}
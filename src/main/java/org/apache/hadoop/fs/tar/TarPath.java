@@ -0,0 +1,133 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.net.URI;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A tar:// path split into the tar, as a path on the underlying file system,
+ * and the name of the file inside it. <br/>
+ * e.g. tar://hdfs-namenode:port/dir/archive.tar/+dir1+file1.txt is the tar
+ * hdfs://namenode:port/dir/archive.tar and the file dir1/file1.txt. <br/>
+ * A path is parsed once, without regular expressions, so that the parts can
+ * be used by every call that gets the same path.
+ */
+public final class TarPath {
+
+  static final char INFILESEP = '+';
+
+  private final Path path;
+  private final Path baseTar;
+  private final String member;
+  private final String tarRoot;
+
+  private TarPath(Path path, Path baseTar, String member, String tarRoot) {
+    this.path = path;
+    this.baseTar = baseTar;
+    this.member = member;
+    this.tarRoot = tarRoot;
+  }
+
+  /**
+   * @param path an absolute tar:// path
+   */
+  public static TarPath parse(Path path) {
+    URI uri = path.toUri();
+    return new TarPath(path, getBaseTarPath(uri), getMember(uri),
+      getTarRoot(uri));
+  }
+
+  /** The tar:// path parsed */
+  public Path getPath() {
+    return path;
+  }
+
+  /** The tar, on the underlying file system */
+  public Path getBaseTar() {
+    return baseTar;
+  }
+
+  /**
+   * The name of the file or directory inside the tar, null for the tar
+   * itself
+   */
+  public String getMember() {
+    return member;
+  }
+
+  /** The tar:// path of the tar, without the file inside it */
+  public String getTarRoot() {
+    return tarRoot;
+  }
+
+  /**
+   * The tar:// path of a file or directory inside the same tar
+   *
+   * @param name name inside the tar, as the index has it
+   */
+  public Path getMemberPath(String name) {
+    StringBuilder sb = new StringBuilder(tarRoot.length() + name.length() + 2);
+    sb.append(tarRoot).append(Path.SEPARATOR_CHAR).append(INFILESEP)
+      .append(name.replace(Path.SEPARATOR_CHAR, INFILESEP));
+    return new Path(sb.toString());
+  }
+
+  static String getMember(URI uri) {
+    String fullUri = uri.toString();
+    int i = fullUri.indexOf(INFILESEP);
+    if (i == -1)
+      return null;
+    return fullUri.substring(i + 1).replace(INFILESEP, Path.SEPARATOR_CHAR);
+  }
+
+  static Path getBaseTarPath(URI uri) {
+    // the authority is the scheme and authority of the underlying file
+    // system, joined by a '-'
+    String prefix = uri.getAuthority();
+    if (prefix != null) {
+      int dash = prefix.indexOf('-');
+      if (dash != -1)
+        prefix = prefix.substring(0, dash) + "://" + prefix.substring(dash + 1);
+    } else {
+      prefix = "";
+    }
+
+    String basePath = uri.getPath();
+    int i = basePath.indexOf(INFILESEP);
+    if (i != -1)
+      basePath = basePath.substring(0, i);
+    return new Path(prefix + basePath);
+  }
+
+  private static String getTarRoot(URI uri) {
+    String s = uri.toASCIIString();
+    int i = s.indexOf(INFILESEP);
+    if (i == -1)
+      return s;
+    while (i > 0 && s.charAt(i - 1) == '/')
+      i--;
+    return s.substring(0, i);
+  }
+
+  @Override
+  public String toString() {
+    return path.toString();
+  }
+}
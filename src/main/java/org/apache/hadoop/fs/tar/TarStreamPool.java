@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.fs.tar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Keeps streams over a tar open after the files read through them are
+ * closed, so that the next open does not have to open the tar again. On
+ * HDFS that saves a NameNode call and a new DataNode connection. <br/>
+ * A stream is kept with the length and modification time of the tar it was
+ * opened on, and is only handed out again for the same version of the tar:
+ * a stream opened before the tar was replaced or appended to may still
+ * read the old content. <br/>
+ * At most <code>maxIdle</code> streams are kept, and a stream not used for
+ * <code>idleTimeout</code> ms is closed, by a timer if the pool is not used
+ * meanwhile. There is no limit on the number of streams lent out at the
+ * same time.
+ */
+class TarStreamPool implements Closeable {
+
+  public static final Log LOG = LogFactory.getLog(TarStreamPool.class);
+
+  private static class Idle {
+    final Path path;
+    final long length;
+    final long modTime;
+    final FSDataInputStream stream;
+    final long since;
+
+    Idle(Path path, long length, long modTime, FSDataInputStream stream,
+        long since) {
+      this.path = path;
+      this.length = length;
+      this.modTime = modTime;
+      this.stream = stream;
+      this.since = since;
+    }
+  }
+
+  private final int maxIdle;
+  private final long idleTimeout;
+  /** most recently returned first */
+  private final LinkedList<Idle> idle = new LinkedList<Idle>();
+  private boolean closed = false;
+  /** Closes the idle streams as they expire, while there are any */
+  private ScheduledFuture<?> sweep = null;
+
+  TarStreamPool(int maxIdle, long idleTimeout) {
+    this.maxIdle = maxIdle;
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * An idle stream over the tar at path as it is now, or null if there is
+   * none. Streams over another version of the tar are closed.
+   */
+  synchronized FSDataInputStream take(Path path, FileStatus tar) {
+    expire();
+    FSDataInputStream found = null;
+    Iterator<Idle> it = idle.iterator();
+    while (it.hasNext()) {
+      Idle i = it.next();
+      if (!i.path.equals(path))
+        continue;
+      if (i.length != tar.getLen() || i.modTime != tar.getModificationTime()) {
+        it.remove();
+        closeQuietly(i.stream);
+      } else if (found == null) {
+        it.remove();
+        found = i.stream;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Lends a stream over the tar at path, opened on the given version of it.
+   * Closing what is returned gives the stream back to the pool;
+   * {@link #discard(FSDataInputStream)} closes it.
+   */
+  FSDataInputStream lend(Path path, FileStatus tar, FSDataInputStream stream)
+      throws IOException {
+    return new LentStream(this, path, tar.getLen(),
+      tar.getModificationTime(), stream);
+  }
+
+  synchronized void giveBack(Path path, long length, long modTime,
+      FSDataInputStream stream) {
+    if (closed || maxIdle <= 0) {
+      closeQuietly(stream);
+      return;
+    }
+    idle.addFirst(new Idle(path, length, modTime, stream, now()));
+    while (idle.size() > maxIdle)
+      closeQuietly(idle.removeLast().stream);
+    expire();
+  }
+
+  /**
+   * Closes a lent stream instead of giving it back, e.g. after a read
+   * through it failed
+   */
+  static void discard(FSDataInputStream lent) {
+    if (lent instanceof LentStream)
+      ((LentStream) lent).discard();
+    else
+      closeQuietly(lent);
+  }
+
+  /**
+   * Closes the idle streams that expired, and has the timer come back when
+   * the next one does
+   */
+  private void expire() {
+    long now = now();
+    while (!idle.isEmpty() && now - idle.getLast().since >= idleTimeout)
+      closeQuietly(idle.removeLast().stream);
+    if (sweep == null && !idle.isEmpty()) {
+      sweep = TarFSUtils.getTimer().schedule(new Runnable() {
+        @Override
+        public void run() {
+          sweep();
+        }
+      }, idle.getLast().since + idleTimeout - now, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** The time, in ms. Tests may stop it. */
+  long now() {
+    return System.currentTimeMillis();
+  }
+
+  synchronized void sweep() {
+    sweep = null;
+    if (!closed)
+      expire();
+  }
+
+  synchronized int getIdleCount() {
+    expire();
+    return idle.size();
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (sweep != null) {
+      sweep.cancel(false);
+      sweep = null;
+    }
+    while (!idle.isEmpty())
+      closeQuietly(idle.removeFirst().stream);
+  }
+
+  private static void closeQuietly(FSDataInputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException e) {
+      LOG.warn("Could not close a pooled stream", e);
+    }
+  }
+
+  /**
+   * A pooled stream while it is lent out. Once closed, it no longer reaches
+   * the pooled stream, which may already be lent to someone else.
+   */
+  private static class LentStream extends FSDataInputStream {
+    private final TarStreamPool pool;
+    private final Path path;
+    private final long length;
+    private final long modTime;
+    private final FSDataInputStream stream;
+
+    LentStream(TarStreamPool pool, Path path, long length, long modTime,
+        FSDataInputStream stream) throws IOException {
+      super(stream);
+      this.pool = pool;
+      this.path = path;
+      this.length = length;
+      this.modTime = modTime;
+      this.stream = stream;
+    }
+
+    @Override
+    public InputStream getWrappedStream() {
+      return stream.getWrappedStream();
+    }
+
+    @Override
+    public synchronized void close() {
+      if (in != stream)
+        return;
+      in = new ClosedInputStream();
+      pool.giveBack(path, length, modTime, stream);
+    }
+
+    synchronized void discard() {
+      if (in != stream)
+        return;
+      in = new ClosedInputStream();
+      closeQuietly(stream);
+    }
+  }
+
+  private static class ClosedInputStream extends FSInputStream {
+    @Override
+    public void seek(long pos) throws IOException {
+      throw new IOException("Stream is closed");
+    }
+
+    @Override
+    public long getPos() throws IOException {
+      throw new IOException("Stream is closed");
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+      throw new IOException("Stream is closed");
+    }
+
+    @Override
+    public int read() throws IOException {
+      throw new IOException("Stream is closed");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      throw new IOException("Stream is closed");
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      throw new IOException("Stream is closed");
+    }
+  }
+}
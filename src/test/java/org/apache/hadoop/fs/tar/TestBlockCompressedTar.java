@@ -0,0 +1,159 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlockCompressedTar {
+
+  private static final int MEMBERS = 6;
+  private static final int MEMBER_SIZE = 150 * 1024;
+
+  private File tarFile;
+  private File compressedFile;
+  private byte[] tarBytes;
+  private Configuration conf;
+  private FileSystem localFS;
+
+  @Before
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("block", ".tar");
+    TestUtils.createLocalTextTarFile(tarFile, MEMBERS, MEMBER_SIZE, 42);
+    tarBytes = FileUtils.readFileToByteArray(tarFile);
+
+    conf = new Configuration();
+    conf.setInt(TarIndex.CONF_DECOMPRESS_THREADS, 3);
+    localFS = FileSystem.getLocal(conf);
+  }
+
+  @After
+  public void cleanup() {
+    tarFile.delete();
+    if (compressedFile == null)
+      return;
+    compressedFile.delete();
+    for (String ext : new String[] {
+      TarIndex.INDEX_EXT, CompressedBlockIndex.EXT }) {
+      File f = new File(compressedFile.getAbsolutePath() + ext);
+      f.delete();
+      new File(f.getParentFile(), "." + f.getName() + ".crc").delete();
+    }
+  }
+
+  private void checkMembers(int codec, int minBlocks) throws Exception {
+    Path path = new Path(compressedFile.getAbsolutePath());
+    assertEquals(codec, BlockCodec.detect(localFS, path).getId());
+
+    TarIndex plain = new TarIndex(
+      localFS, new Path(tarFile.getAbsolutePath()), false, conf);
+
+    // built on first use, then read back from the index files
+    for (int pass = 0; pass < 2; pass++) {
+      TarIndex index = new TarIndex(localFS, path, true, conf);
+      assertTrue(Arrays.equals(plain.getFileList(), index.getFileList()));
+      assertTrue(Arrays.equals(plain.getOffsetList(), index.getOffsetList()));
+      CompressedBlockIndex blocks = index.getBlockIndex();
+      assertTrue(blocks.getCount() >= minBlocks);
+      assertEquals(tarBytes.length, blocks.getUncompressedLength());
+
+      Path tarPath = new Path("tar://" + compressedFile.getAbsolutePath());
+      TarFileSystem tarfs = new TarFileSystem();
+      tarfs.initialize(tarPath.toUri(), conf);
+      try {
+        for (String name : plain.getFileList()) {
+          long offset = plain.getOffset(name);
+          byte[] expected = Arrays.copyOfRange(
+            tarBytes, (int) offset, (int) (offset + plain.getSize(name)));
+          Path member = new Path(tarPath + "/+" + name);
+          FileStatus stat = tarfs.getFileStatus(member);
+          BlockLocation[] locs =
+            tarfs.getFileBlockLocations(stat, 0, stat.getLen());
+          assertEquals(1, locs.length);
+          assertEquals(stat.getLen(), locs[0].getLength());
+
+          InputStream in = tarfs.open(member);
+          try {
+            assertTrue(Arrays.equals(expected, IOUtils.toByteArray(in)));
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        tarfs.close();
+      }
+    }
+  }
+
+  private void checkRandomSeeks() throws Exception {
+    Path path = new Path(compressedFile.getAbsolutePath());
+    TarIndex index = new TarIndex(localFS, path, true, conf);
+    CompressedBlockIndex blocks = index.getBlockIndex();
+
+    ExecutorService pool = ParallelBlockInputStream.newPool(2);
+    FSDataInputStream in = new FSDataInputStream(
+      new ParallelBlockInputStream(localFS, path,
+        BlockCodec.forId(blocks.getCodec()), blocks, pool, 2));
+    try {
+      Random random = new Random(7);
+      byte[] buf = new byte[1000];
+      for (int i = 0; i < 100; i++) {
+        int pos = random.nextInt(tarBytes.length - buf.length);
+        in.seek(pos);
+        in.readFully(buf);
+        assertEquals(pos + buf.length, in.getPos());
+        assertTrue(Arrays.equals(
+          Arrays.copyOfRange(tarBytes, pos, pos + buf.length), buf));
+      }
+
+      in.seek(0);
+      assertTrue(Arrays.equals(tarBytes, IOUtils.toByteArray(in)));
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+      pool.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testBzip2() throws Exception {
+    compressedFile = new File(tarFile.getAbsolutePath() + ".bz2");
+    TestUtils.bzip2File(tarFile, compressedFile, 1);
+    checkMembers(BlockCodec.BZIP2, 5);
+    checkRandomSeeks();
+  }
+
+  @Test
+  public void testBzip2Streams() throws Exception {
+    compressedFile = new File(tarFile.getAbsolutePath() + ".bz2");
+    TestUtils.bzip2File(tarFile, compressedFile, 4);
+    checkMembers(BlockCodec.BZIP2, 8);
+    checkRandomSeeks();
+  }
+
+  @Test
+  public void testXz() throws Exception {
+    compressedFile = new File(tarFile.getAbsolutePath() + ".xz");
+    TestUtils.xzFile(tarFile, compressedFile, 100 * 1024);
+    checkMembers(BlockCodec.XZ, 5);
+    checkRandomSeeks();
+  }
+}
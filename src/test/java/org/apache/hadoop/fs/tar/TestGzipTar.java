@@ -0,0 +1,145 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestGzipTar {
+
+  private static final int MEMBERS = 6;
+  private static final int MEMBER_SIZE = 150 * 1024;
+
+  private File tarFile;
+  private File tgzFile;
+  private byte[] tarBytes;
+  private Configuration conf;
+  private FileSystem localFS;
+
+  @Before
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("gzip", ".tar");
+    tgzFile = new File(tarFile.getAbsolutePath() + ".gz");
+    TestUtils.createLocalTextTarFile(tarFile, MEMBERS, MEMBER_SIZE, 42);
+    tarBytes = FileUtils.readFileToByteArray(tarFile);
+
+    conf = new Configuration();
+    conf.setLong(TarIndex.CONF_GZIP_CHECKPOINT_SPACING, 64 * 1024);
+    localFS = FileSystem.getLocal(conf);
+  }
+
+  @After
+  public void cleanup() {
+    tarFile.delete();
+    tgzFile.delete();
+    for (String ext : new String[] {
+      TarIndex.INDEX_EXT, GzipCheckpointIndex.EXT }) {
+      File f = new File(tgzFile.getAbsolutePath() + ext);
+      f.delete();
+      new File(f.getParentFile(), "." + f.getName() + ".crc").delete();
+    }
+  }
+
+  private void checkMembers(int gzipMembers) throws Exception {
+    TestUtils.gzipFile(tarFile, tgzFile, gzipMembers);
+    assertTrue(TarFSUtils.isGZ(localFS, new Path(tgzFile.getAbsolutePath())));
+
+    TarIndex plain = new TarIndex(
+      localFS, new Path(tarFile.getAbsolutePath()), false, conf);
+
+    // built on first use, then read back from the index files
+    for (int pass = 0; pass < 2; pass++) {
+      Path tgzPath = new Path("tar://" + tgzFile.getAbsolutePath());
+      TarFileSystem tarfs = new TarFileSystem();
+      tarfs.initialize(tgzPath.toUri(), conf);
+      try {
+        for (String name : plain.getFileList()) {
+          long offset = plain.getOffset(name);
+          byte[] expected = Arrays.copyOfRange(
+            tarBytes, (int) offset, (int) (offset + plain.getSize(name)));
+          Path member = new Path(tgzPath + "/+" + name);
+          FileStatus stat = tarfs.getFileStatus(member);
+          BlockLocation[] locs =
+            tarfs.getFileBlockLocations(stat, 0, stat.getLen());
+          assertEquals(1, locs.length);
+          assertEquals(stat.getLen(), locs[0].getLength());
+
+          InputStream in = tarfs.open(member);
+          try {
+            assertTrue(Arrays.equals(expected, IOUtils.toByteArray(in)));
+          } finally {
+            in.close();
+          }
+        }
+      } finally {
+        tarfs.close();
+      }
+      assertTrue(new File(
+        tgzFile.getAbsolutePath() + GzipCheckpointIndex.EXT).exists());
+    }
+  }
+
+  @Test
+  public void testSingleMember() throws Exception {
+    checkMembers(1);
+  }
+
+  @Test
+  public void testMultipleMembers() throws Exception {
+    checkMembers(5);
+  }
+
+  @Test
+  public void testRandomSeeks() throws Exception {
+    TestUtils.gzipFile(tarFile, tgzFile, 3);
+    Path path = new Path(tgzFile.getAbsolutePath());
+    TarIndex index = new TarIndex(localFS, path, true, conf);
+    GzipCheckpointIndex gzipIndex = index.getGzipIndex();
+
+    // checkpoints inside deflate blocks, not only at member starts
+    int midByte = 0;
+    for (int i = 0; i < gzipIndex.getCount(); i++) {
+      if (!gzipIndex.isMemberStart(i) && gzipIndex.getBitOffset(i) != 0)
+        midByte++;
+    }
+    assertTrue(gzipIndex.getCount() > 3);
+    assertTrue(midByte > 0);
+
+    FSDataInputStream in = new FSDataInputStream(
+      new SeekableGzipInputStream(localFS.open(path), gzipIndex));
+    try {
+      Random random = new Random(7);
+      byte[] buf = new byte[1000];
+      for (int i = 0; i < 200; i++) {
+        int pos = random.nextInt(tarBytes.length - buf.length);
+        in.seek(pos);
+        in.readFully(buf);
+        assertEquals(pos + buf.length, in.getPos());
+        assertTrue(Arrays.equals(
+          Arrays.copyOfRange(tarBytes, pos, pos + buf.length), buf));
+      }
+      in.seek(tarBytes.length - 1);
+      assertEquals(tarBytes[tarBytes.length - 1] & 0xff, in.read());
+      assertEquals(-1, in.read());
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTarCombineFileInputFormat {
+
+  private static final int MEMBERS = 10;
+  private static final String LINES = "first line\nsecond line\nlast line";
+
+  private File tarFile;
+
+  @Before
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("combine", ".tar");
+    TestUtils.createLocalTarFile(tarFile, "", LINES, MEMBERS);
+  }
+
+  @After
+  public void cleanup() {
+    File index = new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT);
+    tarFile.delete();
+    index.delete();
+    new File(index.getParentFile(), "." + index.getName() + ".crc").delete();
+  }
+
+  @Test
+  public void testSplitsAndRecords() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("fs.tar.impl", TarFileSystem.class.getName());
+    Job job = Job.getInstance(conf);
+    long memberSize = (LINES + "0").length();
+    // room for three files per split
+    FileInputFormat.setMaxInputSplitSize(job, 3 * memberSize + 1);
+    FileInputFormat.addInputPath(job,
+      new Path("tar://" + tarFile.getAbsolutePath()));
+
+    TarCombineFileInputFormat format = new TarCombineFileInputFormat();
+    List<InputSplit> splits = format.getSplits(job);
+    assertEquals(4, splits.size());
+
+    List<String> lines = new ArrayList<String>();
+    int files = 0;
+    for (InputSplit split : splits) {
+      files += ((CombineFileSplit) split).getNumPaths();
+      TaskAttemptContext context = new TaskAttemptContextImpl(
+        job.getConfiguration(), new TaskAttemptID());
+      RecordReader<LongWritable, Text> reader =
+        format.createRecordReader(split, context);
+      reader.initialize(split, context);
+      try {
+        int line = 0;
+        while (reader.nextKeyValue()) {
+          lines.add(reader.getCurrentValue().toString());
+          // keys are offsets inside each file
+          long[] offsets = { 0, 11, 23 };
+          assertEquals(offsets[line++ % 3], reader.getCurrentKey().get());
+        }
+        assertEquals(1.0f, reader.getProgress(), 0.0001f);
+        assertFalse(reader.nextKeyValue());
+      } finally {
+        reader.close();
+      }
+    }
+    assertEquals(MEMBERS, files);
+
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < MEMBERS; i++) {
+      expected.add("first line");
+      expected.add("second line");
+      expected.add("last line" + i);
+    }
+    Collections.sort(expected);
+    Collections.sort(lines);
+    assertEquals(expected, lines);
+  }
+
+  @Test
+  public void testDirectoryInput() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("fs.tar.impl", TarFileSystem.class.getName());
+    Job job = Job.getInstance(conf);
+    long memberSize = (LINES + "0").length();
+    FileInputFormat.setMaxInputSplitSize(job, 3 * memberSize + 1);
+    Path dir = new Path("tar://" + tarFile.getAbsolutePath() + "/+dir0+dir1");
+    FileInputFormat.addInputPath(job, dir);
+
+    // file_2 to file_9, in the order of the tar
+    List<InputSplit> splits = new TarCombineFileInputFormat().getSplits(job);
+    assertEquals(3, splits.size());
+    List<String> names = new ArrayList<String>();
+    for (InputSplit split : splits) {
+      for (Path path : ((CombineFileSplit) split).getPaths()) {
+        assertTrue(path.toString().startsWith(dir.toString() + "+"));
+        names.add(path.getName());
+      }
+    }
+    assertEquals(MEMBERS - 2, names.size());
+    assertTrue(names.get(0).endsWith("file_2"));
+    assertTrue(names.get(names.size() - 1).endsWith("file_9"));
+  }
+}
@@ -2,15 +2,44 @@ package org.apache.hadoop.fs.tar;
 
 import static org.junit.Assert.assertEquals;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.ReadOption;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.fs.tar.test.TarFileSystemTestFramework;
 import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.apache.hadoop.io.ElasticByteBufferPool;
 import org.junit.Test;
 
 import junit.framework.Assert;
@@ -32,14 +61,28 @@ public class TestTarFileSystem extends TarFileSystemTestFramework {
       this.getTestTarFile(), "", SAMPLE_TEXT, 10);
   }
 
+  /**
+   * All the files of the test tar, file_i being i directories deep
+   */
+  private FileStatus[] listAllFiles(FileSystem fs) throws IOException {
+    List<FileStatus> ret = new ArrayList<FileStatus>();
+    RemoteIterator<LocatedFileStatus> it =
+      fs.listFiles(this.getTestTarPath(), true);
+    while (it.hasNext())
+      ret.add(it.next());
+    return ret.toArray(new FileStatus[ret.size()]);
+  }
+
   @Test
   public void testListStatus() throws IOException, URISyntaxException {
-    assertEquals(this.getTarfs().listStatus(this.getTestTarPath()).length, 10);
+    // file_0 and dir0
+    assertEquals(this.getTarfs().listStatus(this.getTestTarPath()).length, 2);
+    assertEquals(10, listAllFiles(this.getTarfs()).length);
   }
 
   @Test
   public void testGetFileStatus() throws IOException, URISyntaxException {
-    final FileStatus[] stats = this.getTarfs().listStatus(this.getTestTarPath());
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
     assertEquals(stats.length, 10);
     for (int i = 0; i < stats.length; i++) {
       Assert.assertEquals(
@@ -49,7 +92,7 @@ public class TestTarFileSystem extends TarFileSystemTestFramework {
 
   @Test
   public void testRead() throws IOException, URISyntaxException {
-    final FileStatus[] stats = this.getTarfs().listStatus(this.getTestTarPath());
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
     assertEquals(stats.length, 10);
     for (int i = 0; i < stats.length; i++) {
       InputStream in = null;
@@ -64,4 +107,751 @@ public class TestTarFileSystem extends TarFileSystemTestFramework {
       }
     }
   }
+
+  @Test
+  public void testBulkReadSkipAvailable() throws IOException {
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
+    for (int i = 0; i < stats.length; i++) {
+      String expected = SAMPLE_TEXT + i;
+      InputStream in = null;
+      try {
+        in = this.getTarfs().open(stats[i].getPath());
+        assertEquals(expected.length(), in.available());
+
+        assertEquals(6, in.skip(6));
+        byte[] buf = new byte[expected.length() * 2];
+        int total = 0;
+        int n;
+        while ((n = in.read(buf, total, buf.length - total)) != -1) {
+          total += n;
+        }
+        assertEquals(expected.substring(6), new String(buf, 0, total));
+        assertEquals(0, in.available());
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+  }
+
+  @Test
+  public void testPositionedRead() throws Exception {
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
+    for (int i = 0; i < stats.length; i++) {
+      final String expected = SAMPLE_TEXT + i;
+      final FSDataInputStream in = this.getTarfs().open(stats[i].getPath());
+      try {
+        in.seek(3);
+        Thread[] readers = new Thread[4];
+        final AtomicReference<Throwable> failure =
+          new AtomicReference<Throwable>();
+        for (int t = 0; t < readers.length; t++) {
+          final int start = t * 10;
+          readers[t] = new Thread() {
+            @Override
+            public void run() {
+              try {
+                byte[] buf = new byte[20];
+                in.readFully(start, buf);
+                assertEquals(expected.substring(start, start + 20),
+                  new String(buf));
+              } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+              }
+            }
+          };
+          readers[t].start();
+        }
+        for (Thread reader : readers) {
+          reader.join();
+        }
+        if (failure.get() != null)
+          throw new AssertionError(failure.get());
+
+        // positioned reads do not move the stream
+        assertEquals(3, in.getPos());
+
+        byte[] buf = new byte[10];
+        assertEquals(-1, in.read(expected.length(), buf, 0, buf.length));
+        assertEquals(2, in.read(expected.length() - 2, buf, 0, buf.length));
+        try {
+          in.readFully(expected.length() - 2, buf);
+          Assert.fail("readFully past the end of the file must fail");
+        } catch (EOFException e) {
+          // expected
+        }
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+  }
+
+  @Test
+  public void testByteBufferRead() throws IOException {
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
+    ElasticByteBufferPool pool = new ElasticByteBufferPool();
+    for (int i = 0; i < stats.length; i++) {
+      String expected = SAMPLE_TEXT + i;
+      FSDataInputStream in = null;
+      try {
+        in = this.getTarfs().open(stats[i].getPath());
+
+        // a mix of buffered, direct and pooled reads
+        byte[] head = new byte[5];
+        in.readFully(head);
+        ByteBuffer direct = ByteBuffer.allocateDirect(50);
+        while (direct.hasRemaining() && in.read(direct) > 0) {
+        }
+        direct.flip();
+        byte[] middle = new byte[direct.remaining()];
+        direct.get(middle);
+
+        StringBuilder rest = new StringBuilder();
+        ByteBuffer pooled;
+        while ((pooled = in.read(pool, 64,
+            EnumSet.noneOf(ReadOption.class))) != null) {
+          byte[] b = new byte[pooled.remaining()];
+          pooled.get(b);
+          rest.append(new String(b));
+          in.releaseBuffer(pooled);
+        }
+
+        assertEquals(expected,
+          new String(head) + new String(middle) + rest.toString());
+        assertEquals(-1, in.read(ByteBuffer.allocate(10)));
+      } finally {
+        IOUtils.closeQuietly(in);
+      }
+    }
+  }
+
+  @Test
+  public void testStatusFromIndex() throws IOException {
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
+    TarArchiveInputStream tin = new TarArchiveInputStream(
+      new FileInputStream(this.getTestTarFile()));
+    try {
+      int i = 0;
+      TarArchiveEntry entry;
+      while ((entry = tin.getNextTarEntry()) != null) {
+        FileStatus stat = stats[i++];
+        assertEquals(entry.getSize(), stat.getLen());
+        assertEquals(entry.getModTime().getTime(), stat.getModificationTime());
+        assertEquals(new FsPermission((short) entry.getMode()),
+          stat.getPermission());
+        assertEquals(entry.getUserName(), stat.getOwner());
+        assertEquals(entry.getGroupName(), stat.getGroup());
+        Assert.assertFalse(stat.isDirectory());
+      }
+      assertEquals(stats.length, i);
+    } finally {
+      tin.close();
+    }
+  }
+
+  @Test
+  public void testOldIndexFormatIsRebuilt() throws IOException {
+    // write an index in the old "name size offset" format
+    final FileStatus[] stats = listAllFiles(this.getTarfs());
+    File indexFile = this.getTestIndexFile();
+    TarIndex index = new TarIndex(
+      FileSystem.getLocal(new Configuration()),
+      new Path(this.getTestTarFile().getAbsolutePath()));
+    this.getTestIndexCrcFile().delete();
+    PrintWriter out = new PrintWriter(indexFile);
+    for (String name : index.getFileList()) {
+      out.println(name + " " + index.getSize(name) + " "
+        + index.getOffset(name));
+    }
+    out.close();
+
+    // the index of the tar as it is is cached, read the file again
+    TarIndexCache.getInstance().clear();
+    TarFileSystem tarfs = new TarFileSystem();
+    tarfs.initialize(this.getTestTarPath().toUri(), new Configuration());
+    try {
+      final FileStatus[] newStats = listAllFiles(tarfs);
+      assertEquals(stats.length, newStats.length);
+      for (int i = 0; i < stats.length; i++) {
+        assertEquals(stats[i].getPath(), newStats[i].getPath());
+        assertEquals(stats[i].getOwner(), newStats[i].getOwner());
+      }
+    } finally {
+      tarfs.close();
+    }
+
+    // rewritten in the current format
+    byte[] magic = new byte[TarIndex.BINARY_MAGIC.length];
+    FileInputStream in = new FileInputStream(indexFile);
+    IOUtils.readFully(in, magic);
+    in.close();
+    Assert.assertTrue(Arrays.equals(TarIndex.BINARY_MAGIC, magic));
+  }
+
+  @Test
+  public void testBlockLocations() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    final FileStatus[] stats = listAllFiles(tarfs);
+
+    for (FileStatus stat : stats) {
+      BlockLocation[] locs = tarfs.getFileBlockLocations(stat, 0, stat.getLen());
+      assertEquals(1, locs.length);
+      assertEquals(0, locs[0].getOffset());
+      assertEquals(stat.getLen(), locs[0].getLength());
+
+      // a length past the end of the file is cut to it
+      locs = tarfs.getFileBlockLocations(stat, 1, Long.MAX_VALUE);
+      assertEquals(1, locs.length);
+      assertEquals(1, locs[0].getOffset());
+      assertEquals(stat.getLen() - 1, locs[0].getLength());
+    }
+
+    RemoteIterator<LocatedFileStatus> it =
+      tarfs.listFiles(this.getTestTarPath(), true);
+    int n = 0;
+    while (it.hasNext()) {
+      LocatedFileStatus stat = it.next();
+      assertEquals(1, stat.getBlockLocations().length);
+      assertEquals(stat.getLen(), stat.getBlockLocations()[0].getLength());
+      n++;
+    }
+    assertEquals(stats.length, n);
+
+    // a tar spread over blocks of 1 KB, block i on host hi
+    long tarLen = this.getTestTarFile().length();
+    BlockLocation[] tarLocs = new BlockLocation[(int) (tarLen / 1024)];
+    for (int i = 0; i < tarLocs.length; i++) {
+      tarLocs[i] = new BlockLocation(new String[] { "h" + i + ":50010" },
+        new String[] { "h" + i }, i * 1024, 1024);
+    }
+    TarIndex index = new TarIndex(FileSystem.getLocal(new Configuration()),
+      new Path(this.getTestTarFile().getAbsolutePath()), false,
+      new Configuration());
+    for (FileStatus stat : stats) {
+      int id = index.getEntryId(stat.getPath().getName().substring(1)
+        .replaceAll("\\+", "/"));
+      long offset = index.getOffset(id);
+      BlockLocation[] locs = tarfs.getMemberBlockLocations(
+        index, id, 0, stat.getLen(), tarLocs);
+
+      long pos = 0;
+      for (BlockLocation loc : locs) {
+        assertEquals(pos, loc.getOffset());
+        assertEquals("h" + ((offset + pos) / 1024), loc.getHosts()[0]);
+        pos += loc.getLength();
+      }
+      assertEquals(stat.getLen(), pos);
+      assertEquals((offset + stat.getLen() - 1) / 1024 - offset / 1024 + 1,
+        locs.length);
+      assertEquals(locs.length, tarfs.getMemberBlockLocations(
+        index, id, 0, Long.MAX_VALUE, tarLocs).length);
+    }
+  }
+
+  @Test
+  public void testScan() throws IOException {
+    final TarFileSystem tarfs = this.getTarfs();
+    final FileStatus[] stats = listAllFiles(tarfs);
+    final List<FileStatus> seen = new ArrayList<FileStatus>();
+
+    tarfs.scan(this.getTestTarPath(), new TarFileSystem.Visitor() {
+      @Override
+      public boolean visit(FileStatus status, InputStream in)
+          throws IOException {
+        int i = seen.size();
+        seen.add(status);
+        if (i % 2 == 0) {
+          // read every other file fully, leave the others unread
+          Assert.assertEquals(SAMPLE_TEXT + i, IOUtils.toString(in));
+          Assert.assertEquals(-1, in.read());
+        } else {
+          Assert.assertEquals(SAMPLE_TEXT.charAt(0), in.read());
+        }
+        return true;
+      }
+    });
+    Assert.assertEquals(Arrays.asList(stats), seen);
+
+    // stopping early, and a single file
+    seen.clear();
+    tarfs.scan(this.getTestTarPath(), new TarFileSystem.Visitor() {
+      @Override
+      public boolean visit(FileStatus status, InputStream in) {
+        seen.add(status);
+        return seen.size() < 3;
+      }
+    });
+    Assert.assertEquals(3, seen.size());
+
+    seen.clear();
+    tarfs.scan(stats[4].getPath(), new TarFileSystem.Visitor() {
+      @Override
+      public boolean visit(FileStatus status, InputStream in)
+          throws IOException {
+        seen.add(status);
+        Assert.assertEquals(SAMPLE_TEXT + 4, IOUtils.toString(in));
+        return true;
+      }
+    });
+    Assert.assertEquals(Arrays.asList(stats[4]), seen);
+
+    // the files under a directory
+    seen.clear();
+    tarfs.scan(new Path(this.getTestTarPath() + "/+dir0+dir1"),
+      new TarFileSystem.Visitor() {
+        @Override
+        public boolean visit(FileStatus status, InputStream in)
+            throws IOException {
+          seen.add(status);
+          Assert.assertEquals(SAMPLE_TEXT + (seen.size() + 1),
+            IOUtils.toString(in));
+          return true;
+        }
+      });
+    Assert.assertEquals(Arrays.asList(stats).subList(2, stats.length), seen);
+
+    try {
+      tarfs.scan(new Path(this.getTestTarPath() + "/+nothere"),
+        new TarFileSystem.Visitor() {
+          @Override
+          public boolean visit(FileStatus status, InputStream in) {
+            return true;
+          }
+        });
+      Assert.fail("scanned a directory not in the tar");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testStreamPool() throws Exception {
+    TarFileSystem tarfs = this.getTarfs();
+    TarStreamPool pool = tarfs.getStreamPool();
+    FileStatus[] stats = listAllFiles(tarfs);
+    Assert.assertEquals(0, pool.getIdleCount());
+
+    // files opened one after another share one stream over the tar
+    for (int i = stats.length - 1; i >= 0; i--) {
+      InputStream in = tarfs.open(stats[i].getPath());
+      Assert.assertEquals(0, pool.getIdleCount());
+      Assert.assertEquals(SAMPLE_TEXT + i, IOUtils.toString(in));
+      in.close();
+      in.close();
+      Assert.assertEquals(1, pool.getIdleCount());
+    }
+
+    // files open at the same time each have their own
+    InputStream a = tarfs.open(stats[1].getPath());
+    InputStream b = tarfs.open(stats[2].getPath());
+    Assert.assertEquals(SAMPLE_TEXT + 1, IOUtils.toString(a));
+    a.close();
+    Assert.assertEquals(SAMPLE_TEXT + 2, IOUtils.toString(b));
+    b.close();
+    Assert.assertEquals(2, pool.getIdleCount());
+
+    // a closed file no longer reaches the stream given back to the pool
+    Path base = TarFileSystem.getBaseTarPath(this.getTestTarPath());
+    FileStatus tar = tarfs.getUnderlyingFS().getFileStatus(base);
+    FSDataInputStream c = tarfs.borrowTar(base, tar,
+      tarfs.getIndex(this.getTestTarPath()));
+    c.close();
+    try {
+      c.read(0, new byte[1], 0, 1);
+      Assert.fail("Read after close");
+    } catch (IOException e) {
+      // expected
+    }
+
+    Configuration conf = new Configuration();
+    conf.setInt(TarFileSystem.CONF_STREAM_POOL_SIZE, 1);
+    TarFileSystem small = new TarFileSystem();
+    small.initialize(this.getTestTarPath().toUri(), conf);
+    try {
+      a = small.open(stats[1].getPath());
+      b = small.open(stats[2].getPath());
+      a.close();
+      b.close();
+      Assert.assertEquals(1, small.getStreamPool().getIdleCount());
+    } finally {
+      small.close();
+    }
+
+    // expired streams are closed, by the timer too, on a stopped clock
+    final long[] now = { 1000 };
+    TarStreamPool expiring = new TarStreamPool(2, 50) {
+      @Override
+      long now() {
+        return now[0];
+      }
+    };
+    final boolean[] closed = { false, false };
+    for (int i = 0; i < closed.length; i++) {
+      final int s = i;
+      FSDataInputStream stream =
+        new FSDataInputStream(tarfs.getUnderlyingFS().open(base)) {
+          @Override
+          public void close() throws IOException {
+            closed[s] = true;
+            super.close();
+          }
+        };
+      expiring.lend(base, tar, stream).close();
+      now[0] += 30;
+    }
+    expiring.sweep();
+    Assert.assertTrue(closed[0]);
+    Assert.assertFalse(closed[1]);
+    now[0] += 30;
+    expiring.sweep();
+    Assert.assertTrue(closed[1]);
+    Assert.assertEquals(0, expiring.getIdleCount());
+    expiring.close();
+  }
+
+  @Test
+  public void testStreamPoolReplacedTar() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    String tar = this.getTestTarPath().toString();
+    InputStream in = tarfs.open(new Path(tar + "/+file_0"));
+    Assert.assertEquals(SAMPLE_TEXT + 0, IOUtils.toString(in));
+    in.close();
+    Assert.assertEquals(1, tarfs.getStreamPool().getIdleCount());
+
+    // the idle stream still reads the tar it was opened on
+    File tarFile = this.getTestTarFile();
+    File replacement = new File(tarFile.getPath() + ".new");
+    TestUtils.createLocalTarFile(replacement, "a.txt", "bb.txt", "ccc.txt");
+    replacement.setLastModified(tarFile.lastModified() + 2000);
+    Assert.assertTrue(replacement.renameTo(tarFile));
+
+    in = tarfs.open(new Path(tar + "/+ccc.txt"));
+    Assert.assertEquals("ccc.txt", IOUtils.toString(in));
+    in.close();
+    Assert.assertEquals(1, tarfs.getStreamPool().getIdleCount());
+  }
+
+  @Test
+  public void testTrustedIndexOpen() throws IOException {
+    FileStatus[] stats = listAllFiles(this.getTarfs());
+    TarIndex index = this.getTarfs().getIndex(this.getTestTarPath());
+    int id = index.getEntryId(
+      TarFileSystem.getFileInArchive(stats[3].getPath()));
+
+    // change the mode in the header of a file, but not the tar's mtime
+    long mtime = this.getTestTarFile().lastModified();
+    RandomAccessFile raf = new RandomAccessFile(this.getTestTarFile(), "rw");
+    try {
+      raf.seek(index.getOffset(id) - 512 + 100);
+      raf.write('7');
+    } finally {
+      raf.close();
+    }
+    Assert.assertTrue(this.getTestTarFile().setLastModified(mtime));
+
+    Configuration conf = new Configuration();
+    conf.setBoolean(TarFileSystem.CONF_INDEX_TRUSTED, true);
+    conf.setInt(TarFileSystem.CONF_INDEX_VERIFY_INTERVAL, 0);
+    TarFileSystem trusted = new TarFileSystem();
+    trusted.initialize(this.getTestTarPath().toUri(), conf);
+    try {
+      InputStream in = trusted.open(stats[3].getPath());
+      Assert.assertEquals(SAMPLE_TEXT + 3, IOUtils.toString(in));
+      in.close();
+    } finally {
+      trusted.close();
+    }
+
+    // checking every header finds the change
+    conf.setInt(TarFileSystem.CONF_INDEX_VERIFY_INTERVAL, 1);
+    trusted = new TarFileSystem();
+    trusted.initialize(this.getTestTarPath().toUri(), conf);
+    try {
+      trusted.open(stats[3].getPath());
+      Assert.fail("Changed header not detected");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      trusted.close();
+    }
+
+    // so does an index that is not trusted
+    try {
+      this.getTarfs().open(stats[3].getPath());
+      Assert.fail("Changed header not detected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testManyArchives() throws IOException {
+    File other = File.createTempFile("other", ".tar");
+    File otherIndex = new File(other.getAbsolutePath() + TarIndex.INDEX_EXT);
+    TestUtils.createLocalTarFile(other, "x.txt", "dir/y.txt");
+    Path otherPath = new Path("tar://" + other.getAbsolutePath());
+
+    Configuration conf = new Configuration();
+    conf.set("fs.tar.impl", TarFileSystem.class.getName());
+    FileSystem fs = FileSystem.newInstance(this.getTestTarPath().toUri(),
+      conf);
+    try {
+      // a file system for one tar reads the other through its own index
+      assertEquals(10, listAllFiles(fs).length);
+      FileStatus[] stats = fs.listStatus(otherPath);
+      assertEquals(2, stats.length);
+      assertEquals(new Path(otherPath + "/+dir"), stats[1].getPath());
+      assertEquals(5, fs.getFileStatus(stats[0].getPath()).getLen());
+      InputStream in = fs.open(new Path(otherPath + "/+dir+y.txt"));
+      Assert.assertEquals("dir/y.txt", IOUtils.toString(in));
+      in.close();
+      try {
+        fs.getFileStatus(new Path(otherPath + "/+file_0"));
+        Assert.fail("File of the first tar found in the second");
+      } catch (IOException e) {
+        // expected
+      }
+      Assert.assertTrue(otherIndex.exists());
+    } finally {
+      fs.close();
+      other.delete();
+      otherIndex.delete();
+      new File(other.getParentFile(), "." + otherIndex.getName() + ".crc")
+        .delete();
+    }
+  }
+
+  @Test
+  public void testDirectories() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    Path dir1 = new Path(this.getTestTarPath() + "/+dir0+dir1");
+    FileStatus status = tarfs.getFileStatus(dir1);
+    Assert.assertTrue(status.isDirectory());
+    assertEquals(dir1, status.getPath());
+
+    // file_2 and dir2, in the order of the tar
+    FileStatus[] children = tarfs.listStatus(dir1);
+    assertEquals(2, children.length);
+    assertEquals(new Path(dir1 + "+file_2"), children[0].getPath());
+    Assert.assertFalse(children[0].isDirectory());
+    assertEquals(new Path(dir1 + "+dir2"), children[1].getPath());
+    Assert.assertTrue(children[1].isDirectory());
+    Assert.assertTrue(tarfs.isDirectory(children[1].getPath()));
+    InputStream in = tarfs.open(children[0].getPath());
+    Assert.assertEquals(SAMPLE_TEXT + 2, IOUtils.toString(in));
+    in.close();
+
+    // the files under it, and only its own ones when not recursive
+    List<String> names = new ArrayList<String>();
+    RemoteIterator<LocatedFileStatus> it = tarfs.listFiles(dir1, true);
+    while (it.hasNext())
+      names.add(it.next().getPath().getName());
+    assertEquals(8, names.size());
+    assertEquals("+dir0+dir1+file_2", names.get(0));
+    it = tarfs.listFiles(dir1, false);
+    Assert.assertTrue(it.hasNext());
+    assertEquals(children[0].getPath(), it.next().getPath());
+    Assert.assertFalse(it.hasNext());
+
+    // a file lists as itself
+    assertEquals(children[0].getPath(),
+      tarfs.listStatus(children[0].getPath())[0].getPath());
+
+    Path missing = new Path(this.getTestTarPath() + "/+dir0+nothing");
+    Assert.assertFalse(tarfs.exists(missing));
+    try {
+      tarfs.listStatus(missing);
+      Assert.fail("Listed a directory that does not exist");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReplacedTar() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    String tar = this.getTestTarPath().toString();
+    Assert.assertTrue(tarfs.exists(new Path(tar + "/+file_0")));
+
+    long mtime = this.getTestTarFile().lastModified();
+    TestUtils.createLocalTarFile(this.getTestTarFile(), "b.txt", "c.txt");
+    this.getTestTarFile().setLastModified(mtime + 2000);
+
+    // the same instance sees the new tar
+    assertEquals(2, tarfs.listStatus(this.getTestTarPath()).length);
+    try {
+      tarfs.getFileStatus(new Path(tar + "/+file_0"));
+      Assert.fail("status of a file of the old tar");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+    Assert.assertTrue(tarfs.exists(new Path(tar + "/+c.txt")));
+
+    Configuration conf = new Configuration();
+    conf.setLong(TarFileSystem.CONF_INDEX_RECHECK_INTERVAL, 0);
+    TarFileSystem rechecking = new TarFileSystem();
+    rechecking.initialize(this.getTestTarPath().toUri(), conf);
+    try {
+      Assert.assertFalse(rechecking.exists(new Path(tar + "/+file_0")));
+      Assert.assertTrue(rechecking.exists(new Path(tar + "/+c.txt")));
+    } finally {
+      rechecking.close();
+    }
+  }
+
+  /** Counts the status calls made to the local file system */
+  public static class CountingFileSystem extends LocalFileSystem {
+    static final AtomicInteger STATUS_CALLS = new AtomicInteger();
+
+    @Override
+    public FileStatus getFileStatus(Path f) throws IOException {
+      STATUS_CALLS.incrementAndGet();
+      return super.getFileStatus(f);
+    }
+  }
+
+  @Test
+  public void testExistsWithoutStatus() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("fs.file.impl", CountingFileSystem.class.getName());
+    conf.setBoolean("fs.file.impl.disable.cache", true);
+    conf.setLong(TarFileSystem.CONF_INDEX_RECHECK_INTERVAL, 60 * 1000);
+    TarFileSystem tarfs = new TarFileSystem();
+    tarfs.initialize(this.getTestTarPath().toUri(), conf);
+    String tar = this.getTestTarPath().toString();
+    try {
+      Assert.assertTrue(tarfs.exists(new Path(tar + "/+file_0")));
+      CountingFileSystem.STATUS_CALLS.set(0);
+      for (int i = 0; i < 100; i++) {
+        Assert.assertTrue(tarfs.exists(this.getTestTarPath()));
+        Assert.assertTrue(tarfs.isFile(new Path(tar + "/+file_0")));
+        Assert.assertTrue(tarfs.isDirectory(new Path(tar + "/+dir0")));
+        Assert.assertFalse(tarfs.exists(new Path(tar + "/+_SUCCESS" + i)));
+      }
+      assertEquals(0, CountingFileSystem.STATUS_CALLS.get());
+    } finally {
+      tarfs.close();
+    }
+
+    // checked every time
+    conf.setLong(TarFileSystem.CONF_INDEX_RECHECK_INTERVAL, 0);
+    tarfs = new TarFileSystem();
+    tarfs.initialize(this.getTestTarPath().toUri(), conf);
+    try {
+      CountingFileSystem.STATUS_CALLS.set(0);
+      Assert.assertTrue(tarfs.exists(new Path(tar + "/+file_0")));
+      Assert.assertTrue(tarfs.exists(new Path(tar + "/+file_0")));
+      assertEquals(2, CountingFileSystem.STATUS_CALLS.get());
+    } finally {
+      tarfs.close();
+    }
+  }
+
+  @Test
+  public void testExistsFromIndex() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    String tar = this.getTestTarPath().toString();
+    Assert.assertTrue(tarfs.exists(this.getTestTarPath()));
+    Assert.assertTrue(tarfs.isDirectory(this.getTestTarPath()));
+
+    Path file = new Path(tar + "/+dir0+dir1+file_2");
+    Assert.assertTrue(tarfs.exists(file));
+    Assert.assertTrue(tarfs.isFile(file));
+    Assert.assertFalse(tarfs.isDirectory(file));
+
+    Path dir = new Path(tar + "/+dir0+dir1");
+    Assert.assertTrue(tarfs.exists(dir));
+    Assert.assertTrue(tarfs.isDirectory(dir));
+    Assert.assertFalse(tarfs.isFile(dir));
+
+    for (int i = 0; i < 100; i++) {
+      Path missing = new Path(tar + "/+dir0+_SUCCESS" + i);
+      Assert.assertFalse(tarfs.exists(missing));
+      Assert.assertFalse(tarfs.isFile(missing));
+      Assert.assertFalse(tarfs.isDirectory(missing));
+    }
+    Assert.assertFalse(tarfs.exists(new Path(tar + "-missing.tar")));
+  }
+
+  @Test
+  public void testContentSummary() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    String tar = this.getTestTarPath().toString();
+
+    // the tar and dir0 to dir8, file_i being i directories deep
+    ContentSummary summary = tarfs.getContentSummary(this.getTestTarPath());
+    long length = 0;
+    for (int i = 0; i < 10; i++)
+      length += (SAMPLE_TEXT + i).length();
+    assertEquals(10, summary.getFileCount());
+    assertEquals(10, summary.getDirectoryCount());
+    assertEquals(length, summary.getLength());
+
+    summary = tarfs.getContentSummary(new Path(tar + "/+dir0+dir1"));
+    assertEquals(8, summary.getFileCount());
+    assertEquals(8, summary.getDirectoryCount());
+    assertEquals(length - (SAMPLE_TEXT + 0).length()
+      - (SAMPLE_TEXT + 1).length(), summary.getLength());
+
+    summary = tarfs.getContentSummary(new Path(tar + "/+dir0+file_1"));
+    assertEquals(1, summary.getFileCount());
+    assertEquals(0, summary.getDirectoryCount());
+    assertEquals((SAMPLE_TEXT + 1).length(), summary.getLength());
+
+    try {
+      tarfs.getContentSummary(new Path(tar + "/+nothing"));
+      Assert.fail("Summed up a directory that does not exist");
+    } catch (FileNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testLazyListing() throws IOException {
+    TarFileSystem tarfs = this.getTarfs();
+    Path root = this.getTestTarPath();
+    Path dir0 = new Path(this.getTestTarPath() + "/+dir0");
+
+    // the same entries as listStatus, in the same order
+    FileStatus[] children = tarfs.listStatus(dir0);
+    RemoteIterator<FileStatus> it = tarfs.listStatusIterator(dir0);
+    for (FileStatus child : children) {
+      Assert.assertTrue(it.hasNext());
+      assertEquals(child, it.next());
+    }
+    Assert.assertFalse(it.hasNext());
+    try {
+      it.next();
+      Assert.fail("Iterated past the end");
+    } catch (NoSuchElementException e) {
+      // expected
+    }
+
+    // the files of the whole tar come in the order of the tar
+    FileStatus[] stats = listAllFiles(tarfs);
+    for (int i = 0; i < stats.length; i++)
+      Assert.assertTrue(stats[i].getPath().getName().endsWith("+file_" + i));
+
+    // directories have no locations, and filtered entries are skipped
+    RemoteIterator<LocatedFileStatus> located = tarfs.listLocatedStatus(root);
+    LocatedFileStatus file0 = located.next();
+    Assert.assertFalse(file0.isDirectory());
+    Assert.assertTrue(file0.getBlockLocations().length > 0);
+    LocatedFileStatus dir = located.next();
+    Assert.assertTrue(dir.isDirectory());
+    Assert.assertNull(dir.getBlockLocations());
+    Assert.assertFalse(located.hasNext());
+
+    PathFilter noFiles = new PathFilter() {
+      @Override
+      public boolean accept(Path path) {
+        return !path.getName().contains("+file_");
+      }
+    };
+    located = tarfs.listLocatedStatus(root, noFiles);
+    assertEquals(dir.getPath(), located.next().getPath());
+    Assert.assertFalse(located.hasNext());
+    FileStatus[] filtered = tarfs.listStatus(root, noFiles);
+    assertEquals(1, filtered.length);
+    assertEquals(dir.getPath(), filtered[0].getPath());
+  }
 }
@@ -0,0 +1,453 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTarIndex {
+
+  private static final String[] NAMES = {
+    "b.txt", "a.txt", "dir/with space.txt", "dir/a", "dir", "a.txt.1", "z"
+  };
+
+  private File tarFile;
+  private Path tarPath;
+  private Configuration conf;
+  private FileSystem localFS;
+
+  @Before
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("index", ".tar");
+    TestUtils.createLocalTarFile(tarFile, NAMES);
+    tarPath = new Path(tarFile.getAbsolutePath());
+    conf = new Configuration();
+    localFS = FileSystem.getLocal(conf);
+  }
+
+  @After
+  public void cleanup() {
+    tarFile.delete();
+    getIndexFile().delete();
+    getIndexCrcFile().delete();
+    getLockFile().delete();
+  }
+
+  private File getIndexFile() {
+    return new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT);
+  }
+
+  private File getIndexCrcFile() {
+    return new File(tarFile.getParentFile(),
+      "." + getIndexFile().getName() + ".crc");
+  }
+
+  private byte[] readMagic() throws IOException {
+    byte[] magic = new byte[TarIndex.BINARY_MAGIC.length];
+    FileInputStream in = new FileInputStream(getIndexFile());
+    try {
+      IOUtils.readFully(in, magic);
+    } finally {
+      in.close();
+    }
+    return magic;
+  }
+
+  private void assertSameIndex(TarIndex expected, TarIndex actual)
+      throws IOException {
+    assertTrue(Arrays.equals(expected.getFileList(), actual.getFileList()));
+    assertTrue(Arrays.equals(
+      expected.getOffsetList(), actual.getOffsetList()));
+    for (String name : expected.getFileList()) {
+      int e = expected.getEntryId(name);
+      int a = actual.getEntryId(name);
+      assertEquals(expected.getName(e), actual.getName(a));
+      assertEquals(expected.getSize(e), actual.getSize(a));
+      assertEquals(expected.getOffset(e), actual.getOffset(a));
+      assertEquals(expected.getModTime(e), actual.getModTime(a));
+      assertEquals(expected.getMode(e), actual.getMode(a));
+      assertEquals(expected.getUserName(e), actual.getUserName(a));
+      assertEquals(expected.getGroupName(e), actual.getGroupName(a));
+      assertEquals(expected.getType(e), actual.getType(a));
+    }
+    for (int i = 0; i < expected.getEntryCount(); i++) {
+      assertEquals(expected.getIdByOffset(i), actual.getIdByOffset(i));
+    }
+  }
+
+  @Test
+  public void testLookup() throws IOException {
+    TarIndex index = new TarIndex(localFS, tarPath, false, conf);
+    String[] files = index.getFileList();
+    // "dir" is a plain file here, it has no trailing '/'
+    assertEquals(NAMES.length, files.length);
+    for (String name : NAMES) {
+      assertEquals(name.length(), index.getSize(name));
+    }
+
+    long[] offsets = index.getOffsetList();
+    for (int i = 1; i < offsets.length; i++) {
+      assertTrue(offsets[i - 1] < offsets[i]);
+    }
+
+    try {
+      index.getOffset("missing");
+      fail("lookup of a missing name must fail");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBinaryIndexRoundTrip() throws IOException {
+    TarIndex built = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(Arrays.equals(TarIndex.BINARY_MAGIC, readMagic()));
+
+    assertSameIndex(built, new TarIndex(localFS, tarPath, true, conf));
+    // without checksums, as on HDFS
+    assertSameIndex(built,
+      new TarIndex(((LocalFileSystem) localFS).getRaw(),
+        tarPath, true, conf));
+  }
+
+  @Test
+  public void testNameFilter() throws IOException {
+    TarIndex built = new TarIndex(localFS, tarPath, true, conf);
+    TarIndex read = new TarIndex(localFS, tarPath, true, conf);
+    for (TarIndex index : new TarIndex[] { built, read }) {
+      for (String name : NAMES)
+        assertTrue(index.mayContain(name));
+      assertTrue(index.mayContain("dir/"));
+      assertTrue(index.mayContain(""));
+
+      int passed = 0;
+      for (int i = 0; i < 1000; i++) {
+        if (index.mayContain("missing/" + i))
+          passed++;
+      }
+      assertTrue(passed < 50);
+    }
+
+    // sized for the directories too: one file, six directories
+    byte[] name = "a/b/c/d/e/f/file".getBytes("UTF-8");
+    NameBloomFilter deep = NameBloomFilter.build(ByteBuffer.wrap(name),
+      new int[] { 0, name.length }, 1);
+    assertTrue(64L * deep.getBits().length
+      >= 7 * NameBloomFilter.BITS_PER_NAME);
+  }
+
+  @Test
+  public void testOffHeapNamesAndOffsetOrder() throws IOException {
+    Configuration offHeap = new Configuration();
+    offHeap.setBoolean(TarIndex.CONF_INDEX_OFFHEAP, true);
+    TarIndex built = new TarIndex(localFS, tarPath, true, offHeap);
+    TarIndex read = new TarIndex(localFS, tarPath, true, offHeap);
+    assertSameIndex(built, read);
+
+    // walking by offset gives the names in the order they were archived
+    for (int i = 0; i < read.getEntryCount(); i++) {
+      assertEquals(NAMES[i], read.getName(read.getIdByOffset(i)));
+    }
+    assertEquals(-1, read.lookup("dir/"));
+    assertEquals(-1, read.lookup("a.tx"));
+    assertEquals(-1, read.lookup("\u00e9"));
+  }
+
+  @Test
+  public void testTrustedIndex() throws IOException {
+    TarIndex built = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(built.isTrusted());
+    TarIndex read = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(read.isTrusted());
+
+    byte[] header = new byte[512];
+    int id = read.getEntryId("a.txt");
+    RandomAccessFile raf = new RandomAccessFile(tarFile, "r");
+    try {
+      raf.seek(read.getOffset(id) - 512);
+      raf.readFully(header);
+    } finally {
+      raf.close();
+    }
+    assertTrue(read.checkHeader(id, header));
+    assertTrue(!read.checkHeader(read.getEntryId("b.txt"), header));
+    // same name, other metadata
+    header[100]++;
+    assertTrue(!read.checkHeader(id, header));
+  }
+
+  /** Offset of the end of archive marker, where tar -r appends */
+  private long getEndOfArchive(TarIndex index) {
+    int last = index.getIdByOffset(index.getEntryCount() - 1);
+    return (index.getOffset(last) + index.getSize(last) + 511) / 512 * 512;
+  }
+
+  @Test
+  public void testStaleIndex() throws IOException {
+    TarIndex built = new TarIndex(localFS, tarPath, true, conf);
+    long end = getEndOfArchive(built);
+
+    // append like tar -r does, over the end of archive marker
+    File more = File.createTempFile("more", ".tar");
+    TestUtils.createLocalTarFile(more, "new.txt", "a.txt");
+    // a header before the old end changes, which only a full scan would see
+    RandomAccessFile raf = new RandomAccessFile(tarFile, "rw");
+    try {
+      raf.seek(built.getOffset(built.getEntryId("b.txt")) - 512 + 100);
+      raf.write('7');
+      raf.seek(end);
+      raf.write(FileUtils.readFileToByteArray(more));
+    } finally {
+      raf.close();
+      more.delete();
+    }
+
+    TarIndex appended = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(appended.isTrusted());
+    assertEquals(NAMES.length + 1, appended.getEntryCount());
+    assertEquals("new.txt".length(), appended.getSize("new.txt"));
+    // the later a.txt wins
+    assertEquals(end + 2 * 512 + 512, appended.getOffset("a.txt"));
+    int b = appended.getEntryId("b.txt");
+    assertEquals(built.getMode(built.getEntryId("b.txt")),
+      appended.getMode(b));
+    assertSameIndex(appended, new TarIndex(localFS, tarPath, true, conf));
+
+    // any other change rebuilds the index from the start
+    assertTrue(tarFile.setLastModified(tarFile.lastModified() - 10000));
+    TarIndex rebuilt = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(rebuilt.isTrusted());
+    assertEquals(NAMES.length + 1, rebuilt.getEntryCount());
+    assertTrue(built.getMode(built.getEntryId("b.txt"))
+      != rebuilt.getMode(rebuilt.getEntryId("b.txt")));
+
+    TestUtils.createLocalTarFile(tarFile, "other.txt");
+    rebuilt = new TarIndex(localFS, tarPath, true, conf);
+    assertTrue(Arrays.equals(new String[] { "other.txt" },
+      rebuilt.getFileList()));
+  }
+
+  private File getLockFile() {
+    return new File(getIndexFile().getAbsolutePath() + IndexBuildLease.EXT);
+  }
+
+  @Test
+  public void testWaitsForLockHolder() throws Exception {
+    Path indexPath = new Path(getIndexFile().getAbsolutePath());
+    IndexBuildLease lease = IndexBuildLease.tryAcquire(localFS,
+      IndexBuildLease.getLockPath(indexPath), 60000);
+    assertTrue(lease != null);
+    assertEquals(null, IndexBuildLease.tryAcquire(localFS,
+      IndexBuildLease.getLockPath(indexPath), 60000));
+
+    final Configuration waitConf = new Configuration();
+    waitConf.setLong(TarIndex.CONF_INDEX_LOCK_POLL, 20);
+    final TarIndex[] waited = new TarIndex[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waited[0] = new TarIndex(localFS, tarPath, true, waitConf);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    waiter.start();
+    Thread.sleep(200);
+    assertTrue(waiter.isAlive());
+
+    // the lock holder writes the index
+    Configuration noLock = new Configuration();
+    noLock.setLong(TarIndex.CONF_INDEX_LOCK_TTL, 0);
+    TarIndex built = new TarIndex(localFS, tarPath, true, noLock);
+    waiter.join(10000);
+    assertTrue(!waiter.isAlive());
+    assertSameIndex(built, waited[0]);
+    // it did not take the lock over
+    assertTrue(getLockFile().exists());
+    lease.release();
+    assertTrue(!getLockFile().exists());
+  }
+
+  @Test
+  public void testBreaksExpiredLock() throws IOException {
+    Path lockPath = IndexBuildLease.getLockPath(
+      new Path(getIndexFile().getAbsolutePath()));
+    // left behind by a builder that died
+    localFS.create(lockPath, false).close();
+    localFS.setTimes(lockPath, System.currentTimeMillis() - 5000, -1);
+
+    Configuration lockConf = new Configuration();
+    lockConf.setLong(TarIndex.CONF_INDEX_LOCK_TTL, 1000);
+    lockConf.setLong(TarIndex.CONF_INDEX_LOCK_POLL, 20);
+    TarIndex built = new TarIndex(localFS, tarPath, true, lockConf);
+    assertEquals(NAMES.length, built.getEntryCount());
+    assertTrue(getIndexFile().exists());
+    assertTrue(!getLockFile().exists());
+  }
+
+  @Test
+  public void testLeaseIsRenewed() throws Exception {
+    Path lockPath = IndexBuildLease.getLockPath(
+      new Path(getIndexFile().getAbsolutePath()));
+    IndexBuildLease lease = IndexBuildLease.tryAcquire(localFS, lockPath, 2400);
+    try {
+      // renewed while the holder does nothing, past the ttl
+      Thread.sleep(3000);
+      assertTrue(!IndexBuildLease.isExpired(localFS, lockPath, 2400));
+      assertTrue(!IndexBuildLease.breakIfExpired(localFS, lockPath, 2400));
+      assertTrue(getLockFile().exists());
+    } finally {
+      lease.release();
+    }
+    assertTrue(!getLockFile().exists());
+  }
+
+  @Test
+  public void testConcurrentBuild() throws Exception {
+    final Configuration lockConf = new Configuration();
+    lockConf.setLong(TarIndex.CONF_INDEX_LOCK_POLL, 20);
+    final TarIndex[] indexes = new TarIndex[8];
+    Thread[] threads = new Thread[indexes.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int t = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            indexes[t] = new TarIndex(localFS, tarPath, true, lockConf);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread t : threads)
+      t.join(10000);
+
+    for (TarIndex index : indexes)
+      assertSameIndex(indexes[0], index);
+    assertTrue(!getLockFile().exists());
+    // no temporary index file is left behind
+    for (String name : tarFile.getParentFile().list()) {
+      assertTrue(name, !(name.startsWith("." + getIndexFile().getName())
+        && name.endsWith(".tmp")));
+    }
+  }
+
+  @Test
+  public void testParallelScan() throws IOException {
+    // files of all sizes, some of them tars themselves, so that their data
+    // holds blocks that look like headers
+    File inner = File.createTempFile("inner", ".tar");
+    TestUtils.createLocalTarFile(inner, NAMES);
+    byte[] innerBytes = FileUtils.readFileToByteArray(inner);
+    inner.delete();
+
+    String longName = "";
+    while (longName.length() < 150)
+      longName += "long";
+    Random random = new Random(3);
+    TarArchiveOutputStream out =
+      new TarArchiveOutputStream(new FileOutputStream(tarFile));
+    try {
+      out.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+      out.putArchiveEntry(new TarArchiveEntry("dir/"));
+      out.closeArchiveEntry();
+      for (int i = 0; i < 300; i++) {
+        byte[] data = innerBytes;
+        if (i % 7 != 0) {
+          data = new byte[random.nextInt(3000)];
+          random.nextBytes(data);
+        }
+        // GNU long names take an extra header
+        String name = "dir/" + (i % 50 == 0 ? longName : "") + "file_" + i;
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        out.putArchiveEntry(entry);
+        out.write(data);
+        out.closeArchiveEntry();
+      }
+    } finally {
+      out.close();
+    }
+
+    TarIndex sequential = new TarIndex(localFS, tarPath, false, conf);
+    for (int threads : new int[] { 2, 3, 8 }) {
+      Configuration parallelConf = new Configuration();
+      parallelConf.setInt(TarIndex.CONF_INDEX_SCAN_THREADS, threads);
+      parallelConf.setBoolean(TarIndex.CONF_INDEX_SCAN_VALIDATE, true);
+      assertSameIndex(sequential,
+        new TarIndex(localFS, tarPath, false, parallelConf));
+    }
+
+    byte[] header = new byte[512];
+    RandomAccessFile raf = new RandomAccessFile(tarFile, "r");
+    try {
+      raf.seek(sequential.getOffset("dir/file_1") - 512);
+      raf.readFully(header);
+    } finally {
+      raf.close();
+    }
+    assertTrue(ParallelHeaderScanner.isHeaderCandidate(header, 0));
+    header[0]++;
+    assertTrue(!ParallelHeaderScanner.isHeaderCandidate(header, 0));
+    assertTrue(!ParallelHeaderScanner.isHeaderCandidate(new byte[512], 0));
+  }
+
+  @Test
+  public void testBufferedScan() throws IOException {
+    // small files read through and files larger than the buffer seeked over
+    Random random = new Random(5);
+    TarArchiveOutputStream out =
+      new TarArchiveOutputStream(new FileOutputStream(tarFile));
+    try {
+      for (int i = 0; i < 200; i++) {
+        byte[] data = new byte[i % 10 == 0
+          ? 5000 + random.nextInt(20000) : random.nextInt(1500)];
+        random.nextBytes(data);
+        TarArchiveEntry entry = new TarArchiveEntry("file_" + i);
+        entry.setSize(data.length);
+        out.putArchiveEntry(entry);
+        out.write(data);
+        out.closeArchiveEntry();
+      }
+    } finally {
+      out.close();
+    }
+
+    Configuration seekConf = new Configuration();
+    seekConf.setInt(TarIndex.CONF_INDEX_SCAN_BUFFER_SIZE, 0);
+    TarIndex expected = new TarIndex(localFS, tarPath, false, seekConf);
+    assertEquals(200, expected.getEntryCount());
+    for (int size : new int[] { 512, 1000, 4096, 1024 * 1024 }) {
+      Configuration bufferConf = new Configuration();
+      bufferConf.setInt(TarIndex.CONF_INDEX_SCAN_BUFFER_SIZE, size);
+      assertSameIndex(expected,
+        new TarIndex(localFS, tarPath, false, bufferConf));
+    }
+  }
+}
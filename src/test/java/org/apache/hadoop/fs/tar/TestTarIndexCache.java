@@ -0,0 +1,136 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTarIndexCache {
+
+  private File[] tars;
+  private Configuration conf;
+  private FileSystem localFS;
+  private TarIndexCache cache;
+
+  @Before
+  public void setup() throws IOException {
+    tars = new File[2];
+    for (int i = 0; i < tars.length; i++) {
+      tars[i] = File.createTempFile("cache", ".tar");
+      TestUtils.createLocalTarFile(tars[i], "a", "b", "c");
+    }
+    conf = new Configuration();
+    localFS = FileSystem.getLocal(conf);
+    cache = new TarIndexCache();
+  }
+
+  @After
+  public void cleanup() {
+    for (File tar : tars) {
+      tar.delete();
+      File index = new File(tar.getAbsolutePath() + TarIndex.INDEX_EXT);
+      index.delete();
+      new File(tar.getParentFile(), "." + index.getName() + ".crc").delete();
+    }
+  }
+
+  private TarIndex get(int i, Configuration c) throws IOException {
+    return cache.getIndex(localFS, new Path(tars[i].getAbsolutePath()),
+      true, c);
+  }
+
+  @Test
+  public void testHitsAndMisses() throws IOException {
+    TarIndex index = get(0, conf);
+    assertSame(index, get(0, conf));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(1, cache.getLoadCount());
+    assertEquals(1, cache.size());
+    assertEquals(index.getMemorySize(), cache.getBytes());
+
+    // the directory tree is charged once built
+    long before = index.getMemorySize();
+    index.getDirectoryTree();
+    assertTrue(index.getMemorySize() > before);
+    get(0, conf);
+    assertEquals(index.getMemorySize(), cache.getBytes());
+
+    // a changed tar is a new entry
+    long mtime = tars[0].lastModified();
+    TestUtils.createLocalTarFile(tars[0], "a", "b", "c", "d");
+    tars[0].setLastModified(mtime + 2000);
+    TarIndex changed = get(0, conf);
+    assertNotSame(index, changed);
+    assertEquals(4, changed.getEntryCount());
+    assertEquals(2, cache.getMissCount());
+
+    Configuration off = new Configuration();
+    off.setLong(TarIndexCache.CONF_INDEX_CACHE_SIZE, 0);
+    assertNotSame(get(1, off), get(1, off));
+    assertEquals(2, cache.getLoadCount());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    long size = get(0, conf).getMemorySize();
+    Configuration small = new Configuration();
+    small.setLong(TarIndexCache.CONF_INDEX_CACHE_SIZE, size + size / 2);
+    cache.clear();
+
+    TarIndex first = get(0, small);
+    get(1, small);
+    assertEquals(1, cache.size());
+    assertEquals(1, cache.getEvictionCount());
+    // the first one was evicted, the second one was not
+    assertNotSame(first, get(0, small));
+    assertEquals(2, cache.getEvictionCount());
+
+    Configuration tiny = new Configuration();
+    tiny.setLong(TarIndexCache.CONF_INDEX_CACHE_SIZE, size / 2);
+    cache.clear();
+    get(1, tiny);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testSingleLoad() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<TarIndex>> futures = new ArrayList<Future<TarIndex>>();
+      for (int i = 0; i < 8; i++) {
+        futures.add(pool.submit(new Callable<TarIndex>() {
+          @Override
+          public TarIndex call() throws IOException {
+            return get(0, conf);
+          }
+        }));
+      }
+      TarIndex index = futures.get(0).get();
+      for (Future<TarIndex> f : futures)
+        assertSame(index, f.get());
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(1, cache.getLoadCount());
+    assertEquals(8, cache.getHitCount() + cache.getMissCount());
+    assertTrue(cache.getTotalLoadTime() >= 0);
+  }
+}
@@ -0,0 +1,126 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.apache.hadoop.util.ToolRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestTarIndexer {
+
+  private File dir;
+  private File[] tars;
+  private Configuration conf;
+
+  @Before
+  public void setup() throws IOException {
+    dir = File.createTempFile("indexer", "");
+    dir.delete();
+    new File(dir, "sub").mkdirs();
+
+    File plain = new File(dir, "a.tar");
+    TestUtils.createLocalTarFile(plain, "x", "y");
+    File nested = new File(dir, "sub/b.tar");
+    TestUtils.createLocalTarFile(nested, "z");
+    File gz = new File(dir, "sub/c.tar.gz");
+    TestUtils.gzipFile(plain, gz, 1);
+    FileUtils.writeStringToFile(new File(dir, "notes.txt"), "not a tar");
+    tars = new File[] { plain, nested, gz };
+
+    conf = new Configuration();
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    FileUtils.deleteDirectory(dir);
+  }
+
+  @Test
+  public void testFindTars() throws IOException {
+    TarIndexer indexer = new TarIndexer();
+    indexer.setConf(conf);
+    FileSystem fs = FileSystem.getLocal(conf);
+
+    Set<Path> expected = new HashSet<Path>();
+    for (File tar : tars)
+      expected.add(fs.makeQualified(new Path(tar.getAbsolutePath())));
+    List<Path> found = indexer.findTars(
+      Arrays.asList(new Path(dir.getAbsolutePath())));
+    assertEquals(expected, new HashSet<Path>(found));
+
+    found = indexer.findTars(
+      Arrays.asList(new Path(dir.getAbsolutePath() + "/sub/*.tar")));
+    assertEquals(1, found.size());
+    assertEquals("b.tar", found.get(0).getName());
+  }
+
+  @Test
+  public void testIndexesAndSkipsFresh() throws Exception {
+    String[] args = { "-threads", "2", dir.getAbsolutePath() };
+    assertEquals(0, ToolRunner.run(conf, new TarIndexer(), args));
+
+    FileSystem fs = FileSystem.getLocal(conf);
+    long[] mtimes = new long[tars.length];
+    for (int i = 0; i < tars.length; i++) {
+      File index = new File(tars[i].getAbsolutePath() + TarIndex.INDEX_EXT);
+      assertTrue(index.exists());
+      assertTrue(TarIndex.hasFreshIndex(fs,
+        new Path(tars[i].getAbsolutePath()), conf));
+      mtimes[i] = index.lastModified();
+    }
+    assertTrue(new File(
+      tars[2].getAbsolutePath() + GzipCheckpointIndex.EXT).exists());
+
+    // up to date indexes are left alone
+    Thread.sleep(1100);
+    assertEquals(0, ToolRunner.run(conf, new TarIndexer(), args));
+    for (int i = 0; i < tars.length; i++) {
+      assertEquals(mtimes[i], new File(
+        tars[i].getAbsolutePath() + TarIndex.INDEX_EXT).lastModified());
+    }
+
+    // a changed tar is not
+    TestUtils.createLocalTarFile(tars[0], "x", "y", "w");
+    assertTrue(!TarIndex.hasFreshIndex(fs,
+      new Path(tars[0].getAbsolutePath()), conf));
+    assertEquals(0, ToolRunner.run(conf, new TarIndexer(), args));
+    assertEquals(3, new TarIndex(fs, new Path(tars[0].getAbsolutePath()),
+      false, conf).getEntryCount());
+  }
+
+  @Test
+  public void testRebuildsUnrecordedIndex() throws Exception {
+    // an index file in the old text format, which does not record the tar
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path tar = new Path(tars[1].getAbsolutePath());
+    TarIndex built = new TarIndex(fs, tar, false, conf);
+    File index = new File(tars[1].getAbsolutePath() + TarIndex.INDEX_EXT);
+    PrintWriter out = new PrintWriter(index);
+    for (int id = 0; id < built.getEntryCount(); id++) {
+      out.println(built.getName(id) + " " + built.getSize(id) + " "
+        + built.getOffset(id));
+    }
+    out.close();
+    assertTrue(!TarIndex.hasFreshIndex(fs, tar, conf));
+
+    String[] args = { tars[1].getAbsolutePath() };
+    assertEquals(0, ToolRunner.run(conf, new TarIndexer(), args));
+    assertTrue(TarIndex.hasFreshIndex(fs, tar, conf));
+    assertEquals(1, new TarIndex(fs, tar, false, conf).getEntryCount());
+  }
+}
@@ -0,0 +1,41 @@
+package org.apache.hadoop.fs.tar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+public class TestTarPath {
+
+  @Test
+  public void testParse() {
+    TarPath p = TarPath.parse(
+      new Path("tar://hdfs-namenode:8020/dir/archive.tar/+dir1+file1.txt"));
+    assertEquals(new Path("hdfs://namenode:8020/dir/archive.tar"),
+      p.getBaseTar());
+    assertEquals("dir1/file1.txt", p.getMember());
+    assertEquals("tar://hdfs-namenode:8020/dir/archive.tar", p.getTarRoot());
+
+    TarPath tar = TarPath.parse(new Path("tar:///tmp/a-b.tar"));
+    assertEquals(new Path("/tmp/a-b.tar"), tar.getBaseTar());
+    assertNull(tar.getMember());
+    assertEquals("tar:///tmp/a-b.tar", tar.getTarRoot());
+  }
+
+  @Test
+  public void testMemberPath() {
+    TarPath tar = TarPath.parse(
+      new Path("tar://hdfs-namenode:8020/dir/archive.tar"));
+    Path member = tar.getMemberPath("dir1/dir2/file1.txt");
+    assertEquals(
+      new Path("tar://hdfs-namenode:8020/dir/archive.tar/+dir1+dir2+file1.txt"),
+      member);
+
+    // and back
+    TarPath p = TarPath.parse(member);
+    assertEquals("dir1/dir2/file1.txt", p.getMember());
+    assertEquals(tar.getBaseTar(), p.getBaseTar());
+    assertEquals(member, p.getMemberPath(p.getMember()));
+  }
+}
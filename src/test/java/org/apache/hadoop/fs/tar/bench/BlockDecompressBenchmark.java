@@ -0,0 +1,108 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to read every file of a bzip2 or xz compressed tar, for different
+ * numbers of decompression threads.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *   org.openjdk.jmh.Main BlockDecompressBenchmark -p threads=1,8
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BlockDecompressBenchmark {
+
+  @Param({ "bz2", "xz" })
+  public String format;
+
+  @Param({ "1", "4" })
+  public int threads;
+
+  @Param({ "4" })
+  public int memberCount;
+
+  @Param({ "8388608" })
+  public int memberSize;
+
+  private File tarFile;
+  private File compressedFile;
+  private Path tarPath;
+  private TarFileSystem tarfs;
+  private byte[] buffer;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    compressedFile = new File(tarFile.getAbsolutePath() + "." + format);
+    TestUtils.createLocalTextTarFile(tarFile, memberCount, memberSize, 1);
+    if (format.equals("bz2"))
+      TestUtils.bzip2File(tarFile, compressedFile, 1);
+    else
+      TestUtils.xzFile(tarFile, compressedFile, 1024 * 1024);
+
+    Configuration conf = new Configuration();
+    conf.setInt(TarIndex.CONF_DECOMPRESS_THREADS, threads);
+    tarPath = new Path("tar://" + compressedFile.getAbsolutePath());
+    tarfs = new TarFileSystem();
+    tarfs.initialize(tarPath.toUri(), conf);
+
+    buffer = new byte[64 * 1024];
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    compressedFile.delete();
+    for (String ext : new String[] { TarIndex.INDEX_EXT, ".blkindex" }) {
+      File f = new File(compressedFile.getAbsolutePath() + ext);
+      f.delete();
+      new File(f.getParentFile(), "." + f.getName() + ".crc").delete();
+    }
+  }
+
+  @Benchmark
+  public long readAll() throws IOException {
+    long total = 0;
+    for (int i = 0; i < memberCount; i++) {
+      InputStream in = tarfs.open(new Path(tarPath + "/+file_" + i));
+      try {
+        int n;
+        while ((n = in.read(buffer)) != -1)
+          total += n;
+      } finally {
+        in.close();
+      }
+    }
+    return total;
+  }
+}
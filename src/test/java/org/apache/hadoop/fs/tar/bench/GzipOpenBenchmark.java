@@ -0,0 +1,101 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of opening a random file inside a .tar.gz and reading its first
+ * bytes, for different gzip checkpoint spacings. Without checkpoints this
+ * costs inflating the archive up to the file.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *   org.openjdk.jmh.Main GzipOpenBenchmark -p spacing=1048576,16777216
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(1)
+public class GzipOpenBenchmark {
+
+  @Param({ "1048576", "4194304", "16777216" })
+  public long spacing;
+
+  @Param({ "32" })
+  public int memberCount;
+
+  @Param({ "2097152" })
+  public int memberSize;
+
+  private File tarFile;
+  private File tgzFile;
+  private Path tgzPath;
+  private TarFileSystem tarfs;
+  private Random random;
+  private byte[] buffer;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    tgzFile = new File(tarFile.getAbsolutePath() + ".gz");
+    TestUtils.createLocalTextTarFile(tarFile, memberCount, memberSize, 1);
+    TestUtils.gzipFile(tarFile, tgzFile, 1);
+
+    Configuration conf = new Configuration();
+    conf.setLong(TarIndex.CONF_GZIP_CHECKPOINT_SPACING, spacing);
+    tgzPath = new Path("tar://" + tgzFile.getAbsolutePath());
+    tarfs = new TarFileSystem();
+    tarfs.initialize(tgzPath.toUri(), conf);
+
+    random = new Random(0);
+    buffer = new byte[4096];
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    tgzFile.delete();
+    for (String ext : new String[] { TarIndex.INDEX_EXT, ".gzindex" }) {
+      File f = new File(tgzFile.getAbsolutePath() + ext);
+      f.delete();
+      new File(f.getParentFile(), "." + f.getName() + ".crc").delete();
+    }
+  }
+
+  @Benchmark
+  public int openAndRead() throws IOException {
+    String name = "file_" + random.nextInt(memberCount);
+    InputStream in = tarfs.open(new Path(tgzPath + "/+" + name));
+    try {
+      return in.read(buffer);
+    } finally {
+      in.close();
+    }
+  }
+}
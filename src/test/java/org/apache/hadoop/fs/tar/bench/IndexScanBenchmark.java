@@ -0,0 +1,81 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build the index of an uncompressed tar by one thread, seeking from
+ * header to header (bufferSize 0) or through a scan buffer, for archives of
+ * 4 KB, 1 MB and 1 GB files. The archive holds at least two files, so the
+ * 1 GB one takes 2 GB of temporary space.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *   org.openjdk.jmh.Main IndexScanBenchmark -p memberSize=4096,1048576
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexScanBenchmark {
+
+  @Param({ "4096", "1048576", "1073741824" })
+  public long memberSize;
+
+  @Param({ "268435456" })
+  public long archiveSize;
+
+  @Param({ "0", "8388608", "67108864" })
+  public int bufferSize;
+
+  private File tarFile;
+  private Path tarPath;
+  private FileSystem fs;
+  private Configuration conf;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    int count = (int) Math.max(2, archiveSize / memberSize);
+    TestUtils.createLocalTarFileOfSize(tarFile, count, memberSize);
+
+    conf = new Configuration();
+    conf.setInt(TarIndex.CONF_INDEX_SCAN_BUFFER_SIZE, bufferSize);
+    fs = FileSystem.getLocal(conf);
+    tarPath = new Path(tarFile.getAbsolutePath());
+  }
+
+  @TearDown
+  public void tearDown() {
+    tarFile.delete();
+  }
+
+  @Benchmark
+  public int buildIndex() throws IOException {
+    // no index is written, so each one scans the tar
+    return new TarIndex(fs, tarPath, false, conf).getOffsetList().length;
+  }
+}
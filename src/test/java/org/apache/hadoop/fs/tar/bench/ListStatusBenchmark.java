@@ -0,0 +1,67 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to list a whole archive against the number of members in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListStatusBenchmark {
+
+  @Param({ "1000", "10000", "100000" })
+  public int memberCount;
+
+  private File tarFile;
+  private Path tarPath;
+  private TarFileSystem tarfs;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    TestUtils.createLocalTarFileOfSize(tarFile, memberCount, 100);
+
+    tarPath = new Path("tar://" + tarFile.getAbsolutePath());
+    tarfs = new TarFileSystem();
+    tarfs.initialize(tarPath.toUri(), new Configuration());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT).delete();
+    new File(tarFile.getParentFile(),
+      "." + tarFile.getName() + TarIndex.INDEX_EXT + ".crc").delete();
+  }
+
+  @Benchmark
+  public FileStatus[] listStatus() throws IOException {
+    return tarfs.listStatus(tarPath);
+  }
+}
@@ -0,0 +1,138 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.SeekableTarInputStream;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of reading a whole member of a TAR one byte at a
+ * time (the old path) with the bulk read path. Each invocation reads the
+ * complete member, so throughput is <code>memberSize / score</code>.
+ *
+ * Run with:
+ * <pre>
+ * java -cp target/test-classes:target/classes:&lt;test classpath&gt; \
+ *   org.openjdk.jmh.Main MemberReadBenchmark -p memberSize=4294967296
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class MemberReadBenchmark {
+
+  private static final String MEMBER = "file_0";
+
+  @Param({ "2147483648" })
+  public long memberSize;
+
+  @Param({ "65536" })
+  public int bufferSize;
+
+  private File tarFile;
+  private Path tarPath;
+  private FileSystem underlyingFS;
+  private TarFileSystem tarfs;
+  private TarIndex index;
+  private byte[] buffer;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    TestUtils.createLocalTarFileOfSize(tarFile, 1, memberSize);
+
+    Configuration conf = new Configuration();
+    Path basePath = new Path(tarFile.getAbsolutePath());
+    underlyingFS = FileSystem.getLocal(conf);
+    index = new TarIndex(underlyingFS, basePath, false, conf);
+
+    tarPath = new Path("tar://" + tarFile.getAbsolutePath());
+    tarfs = new TarFileSystem();
+    tarfs.initialize(tarPath.toUri(), conf);
+
+    buffer = new byte[bufferSize];
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT).delete();
+    new File(tarFile.getParentFile(),
+      "." + tarFile.getName() + TarIndex.INDEX_EXT + ".crc").delete();
+  }
+
+  private SeekableTarInputStream openRaw() throws IOException {
+    FSDataInputStream in = underlyingFS.open(
+      new Path(tarFile.getAbsolutePath()));
+    return new SeekableTarInputStream(
+      in, index.getSize(MEMBER), index.getOffset(MEMBER));
+  }
+
+  @Benchmark
+  public long singleByteRead() throws IOException {
+    SeekableTarInputStream in = openRaw();
+    try {
+      long total = 0;
+      while (in.read() != -1) {
+        total++;
+      }
+      return total;
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public long bulkRead() throws IOException {
+    SeekableTarInputStream in = openRaw();
+    try {
+      return drain(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Benchmark
+  public long tarFileSystemRead() throws IOException {
+    InputStream in = tarfs.open(new Path(tarPath + "/+" + MEMBER));
+    try {
+      return drain(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private long drain(InputStream in) throws IOException {
+    long total = 0;
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      total += n;
+    }
+    return total;
+  }
+}
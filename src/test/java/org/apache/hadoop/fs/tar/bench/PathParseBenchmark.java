@@ -0,0 +1,93 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.TarPath;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to parse a tar:// path and to make the path of a file inside the tar
+ * from its name, against the regular expression it replaced. getFileStatus
+ * of a file goes through the cache of parsed paths unless pathCacheSize is 0.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PathParseBenchmark {
+
+  private static final String NAME = "year=2015/month=06/day=01/part-00000";
+
+  @Param({ "0", "1024" })
+  public int pathCacheSize;
+
+  private File tarFile;
+  private TarFileSystem tarfs;
+  private TarPath tarPath;
+  private Path memberPath;
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    TestUtils.createLocalTarFile(tarFile, NAME);
+
+    Path root = new Path("tar://" + tarFile.getAbsolutePath());
+    Configuration conf = new Configuration();
+    conf.setInt(TarFileSystem.CONF_PATH_CACHE_SIZE, pathCacheSize);
+    tarfs = new TarFileSystem();
+    tarfs.initialize(root.toUri(), conf);
+    tarPath = TarPath.parse(root);
+    memberPath = tarPath.getMemberPath(NAME);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT).delete();
+    new File(tarFile.getParentFile(),
+      "." + tarFile.getName() + TarIndex.INDEX_EXT + ".crc").delete();
+  }
+
+  @Benchmark
+  public TarPath parse() {
+    return TarPath.parse(memberPath);
+  }
+
+  @Benchmark
+  public Path memberPath() {
+    return tarPath.getMemberPath(NAME);
+  }
+
+  @Benchmark
+  public Path regexMemberPath() {
+    return new Path(tarPath.getTarRoot() + Path.SEPARATOR + "+"
+      + NAME.replaceAll(Path.SEPARATOR, "\\+"));
+  }
+
+  @Benchmark
+  public FileStatus getFileStatus() throws IOException {
+    return tarfs.getFileStatus(memberPath);
+  }
+}
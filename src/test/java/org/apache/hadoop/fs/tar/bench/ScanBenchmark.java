@@ -0,0 +1,104 @@
+package org.apache.hadoop.fs.tar.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
+import org.apache.hadoop.fs.tar.test.TestUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to read every file of an archive of small files, opening each file
+ * against a single scan of the archive.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+
+  @Param({ "10000" })
+  public int memberCount;
+
+  @Param({ "4096" })
+  public long memberSize;
+
+  private File tarFile;
+  private Path tarPath;
+  private TarFileSystem tarfs;
+  private final byte[] buffer = new byte[64 * 1024];
+
+  @Setup
+  public void setup() throws IOException {
+    tarFile = File.createTempFile("bench", ".tar");
+    TestUtils.createLocalTarFileOfSize(tarFile, memberCount, memberSize);
+
+    tarPath = new Path("tar://" + tarFile.getAbsolutePath());
+    tarfs = new TarFileSystem();
+    tarfs.initialize(tarPath.toUri(), new Configuration());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    tarfs.close();
+    tarFile.delete();
+    new File(tarFile.getAbsolutePath() + TarIndex.INDEX_EXT).delete();
+    new File(tarFile.getParentFile(),
+      "." + tarFile.getName() + TarIndex.INDEX_EXT + ".crc").delete();
+  }
+
+  private long drain(InputStream in) throws IOException {
+    long total = 0;
+    int n;
+    while ((n = in.read(buffer)) != -1)
+      total += n;
+    return total;
+  }
+
+  @Benchmark
+  public long openEach() throws IOException {
+    long total = 0;
+    for (FileStatus status : tarfs.listStatus(tarPath)) {
+      InputStream in = tarfs.open(status.getPath());
+      try {
+        total += drain(in);
+      } finally {
+        in.close();
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public long scan() throws IOException {
+    final long[] total = new long[1];
+    tarfs.scan(tarPath, new TarFileSystem.Visitor() {
+      @Override
+      public boolean visit(FileStatus status, InputStream in)
+          throws IOException {
+        total[0] += drain(in);
+        return true;
+      }
+    });
+    return total[0];
+  }
+}
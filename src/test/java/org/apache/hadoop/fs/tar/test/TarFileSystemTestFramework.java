@@ -6,6 +6,7 @@ import java.io.IOException;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.tar.TarFileSystem;
+import org.apache.hadoop.fs.tar.TarIndex;
 import org.junit.After;
 import org.junit.Before;
 
@@ -26,6 +27,15 @@ public abstract class TarFileSystemTestFramework {
     return testTarFile;
   }
 
+  public File getTestIndexFile() {
+    return new File(testTarFile.getAbsolutePath() + TarIndex.INDEX_EXT);
+  }
+
+  public File getTestIndexCrcFile() {
+    return new File(testTarFile.getParentFile(),
+      "." + getTestIndexFile().getName() + ".crc");
+  }
+
   public Path getTestTarPath() {
     return testTarPath;
   }
@@ -50,6 +60,8 @@ public abstract class TarFileSystemTestFramework {
     }
     if (testTarFile != null) {
       testTarFile.delete();
+      getTestIndexFile().delete();
+      getTestIndexCrcFile().delete();
     }
   }
 }
@@ -4,10 +4,17 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.hadoop.fs.Path;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 
 public class TestUtils {
 
@@ -54,4 +61,168 @@ public class TestUtils {
       }
     }
   }
+
+  /**
+   * Creates a tar with one file for each name. The content of each file is
+   * its name.
+   */
+  public static void createLocalTarFile(File tarFile, String... names)
+      throws IOException {
+
+    TarArchiveOutputStream tarOutput = null;
+    try {
+      OutputStream os = new FileOutputStream(tarFile);
+      tarOutput = new TarArchiveOutputStream(os);
+
+      for (String name : names) {
+        byte[] bytes = name.getBytes();
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(bytes.length);
+        tarOutput.putArchiveEntry(entry);
+        tarOutput.write(bytes);
+        tarOutput.closeArchiveEntry();
+      }
+    } finally {
+      if (tarOutput != null) {
+        tarOutput.close();
+      }
+    }
+  }
+
+  /**
+   * Creates a tar with <code>count</code> files of <code>memberSize</code>
+   * bytes each. Used to generate large archives for benchmarks.
+   */
+  public static void createLocalTarFileOfSize(
+    File tarFile, int count, long memberSize) throws IOException {
+
+    byte[] chunk = new byte[1024 * 1024];
+    for (int i = 0; i < chunk.length; i++) {
+      chunk[i] = (byte) ('a' + (i % 26));
+    }
+
+    TarArchiveOutputStream tarOutput = null;
+    try {
+      OutputStream os = new FileOutputStream(tarFile);
+      tarOutput = new TarArchiveOutputStream(os);
+      tarOutput.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+
+      for (int i = 0; i < count; i++) {
+        TarArchiveEntry entry = new TarArchiveEntry("file_" + i);
+        entry.setSize(memberSize);
+        tarOutput.putArchiveEntry(entry);
+        long remaining = memberSize;
+        while (remaining > 0) {
+          int n = (int) Math.min(chunk.length, remaining);
+          tarOutput.write(chunk, 0, n);
+          remaining -= n;
+        }
+        tarOutput.closeArchiveEntry();
+      }
+    } finally {
+      if (tarOutput != null) {
+        tarOutput.close();
+      }
+    }
+  }
+
+  /**
+   * Creates a tar with <code>count</code> files of pseudo random text. Unlike
+   * repeated bytes, this compresses into many deflate blocks.
+   */
+  public static void createLocalTextTarFile(
+    File tarFile, int count, int memberSize, long seed) throws IOException {
+
+    Random random = new Random(seed);
+    TarArchiveOutputStream tarOutput = null;
+    try {
+      OutputStream os = new FileOutputStream(tarFile);
+      tarOutput = new TarArchiveOutputStream(os);
+
+      for (int i = 0; i < count; i++) {
+        byte[] bytes = new byte[memberSize];
+        for (int j = 0; j < bytes.length; j++) {
+          bytes[j] = (byte) ('a' + random.nextInt(random.nextInt(26) + 1));
+        }
+        TarArchiveEntry entry = new TarArchiveEntry("file_" + i);
+        entry.setSize(bytes.length);
+        tarOutput.putArchiveEntry(entry);
+        tarOutput.write(bytes);
+        tarOutput.closeArchiveEntry();
+      }
+    } finally {
+      if (tarOutput != null) {
+        tarOutput.close();
+      }
+    }
+  }
+
+  /**
+   * Gzips <code>src</code> into <code>dest</code> as <code>members</code>
+   * concatenated gzip members, the way pigz or a concatenation of .gz files
+   * would.
+   */
+  public static void gzipFile(File src, File dest, int members)
+      throws IOException {
+
+    byte[] bytes = FileUtils.readFileToByteArray(src);
+    OutputStream os = new FileOutputStream(dest);
+    try {
+      int per = bytes.length / members + 1;
+      for (int off = 0; off < bytes.length; off += per) {
+        GZIPOutputStream gz = new GZIPOutputStream(os) {
+          @Override
+          public void close() throws IOException {
+            finish();
+          }
+        };
+        gz.write(bytes, off, Math.min(per, bytes.length - off));
+        gz.close();
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Bzip2s <code>src</code> into <code>dest</code> with the smallest block
+   * size, as <code>streams</code> concatenated streams like pbzip2 writes.
+   */
+  public static void bzip2File(File src, File dest, int streams)
+      throws IOException {
+
+    byte[] bytes = FileUtils.readFileToByteArray(src);
+    OutputStream os = new FileOutputStream(dest);
+    try {
+      int per = bytes.length / streams + 1;
+      for (int off = 0; off < bytes.length; off += per) {
+        BZip2CompressorOutputStream bz = new BZip2CompressorOutputStream(
+          new CloseShieldOutputStream(os), 1);
+        bz.write(bytes, off, Math.min(per, bytes.length - off));
+        bz.close();
+      }
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Xzs <code>src</code> into <code>dest</code>, starting a new block every
+   * <code>blockSize</code> bytes like multi threaded xz does.
+   */
+  public static void xzFile(File src, File dest, int blockSize)
+      throws IOException {
+
+    byte[] bytes = FileUtils.readFileToByteArray(src);
+    XZOutputStream xz = new XZOutputStream(
+      new FileOutputStream(dest), new LZMA2Options(1));
+    try {
+      for (int off = 0; off < bytes.length; off += blockSize) {
+        xz.write(bytes, off, Math.min(blockSize, bytes.length - off));
+        xz.endBlock();
+      }
+    } finally {
+      xz.close();
+    }
+  }
 }